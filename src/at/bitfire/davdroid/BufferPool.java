@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Small pool of growable byte buffers for response bodies and serialized entities, so that
+ * every GET/multi-get member/PUT doesn't allocate (and grow and copy) its own arrays.
+ * Buffers must be released after use and must not be used afterwards.
+ */
+public class BufferPool {
+	private static final int
+		MAX_POOLED = 6,					// max. number of idle buffers
+		INITIAL_CAPACITY = 8192,
+		MAX_RETAINED_CAPACITY = 512*1024;	// don't keep buffers which have grown bigger
+
+	private static final LinkedList<Buffer> pool = new LinkedList<Buffer>();
+	private static final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+
+	public static Buffer obtain() {
+		synchronized(pool) {
+			if (!pool.isEmpty()) {
+				hits.incrementAndGet();
+				return pool.removeFirst();
+			}
+		}
+		misses.incrementAndGet();
+		return new Buffer();
+	}
+
+	static void release(Buffer buffer) {
+		buffer.reset();
+		if (buffer.capacity() > MAX_RETAINED_CAPACITY)
+			return;
+		synchronized(pool) {
+			if (pool.size() < MAX_POOLED)
+				pool.addFirst(buffer);
+		}
+	}
+
+	public static String getStatistics() {
+		long h = hits.get(), m = misses.get();
+		return h + " hit(s), " + m + " miss(es)" + ((h + m > 0) ? String.format(" (%.0f %% hit rate)", 100.0 * h / (h + m)) : "");
+	}
+
+	public static void resetStatistics() {
+		hits.set(0);
+		misses.set(0);
+	}
+
+
+	public static class Buffer extends ByteArrayOutputStream {
+		Buffer() {
+			super(INITIAL_CAPACITY);
+		}
+
+		public int capacity() {
+			return buf.length;
+		}
+
+		/* returns the buffer to the pool */
+		public void release() {
+			BufferPool.release(this);
+		}
+
+		/* appends the remaining content of a stream */
+		public void readFrom(InputStream is) throws IOException {
+			while (true) {
+				if (count == buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				int n = is.read(buf, count, buf.length - count);
+				if (n == -1)
+					return;
+				count += n;
+			}
+		}
+
+		/* appends a string in UTF-8 encoding */
+		public void writeUTF8(String s) {
+			int length = s.length();
+			if (count + 3*length > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + 3*length));
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80)
+					buf[count++] = (byte)c;
+				else if (c < 0x800) {
+					buf[count++] = (byte)(0xC0 | (c >> 6));
+					buf[count++] = (byte)(0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					buf[count++] = (byte)(0xF0 | (cp >> 18));
+					buf[count++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					buf[count++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					buf[count++] = (byte)(0x80 | (cp & 0x3F));
+				} else {
+					buf[count++] = (byte)(0xE0 | (c >> 12));
+					buf[count++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+					buf[count++] = (byte)(0x80 | (c & 0x3F));
+				}
+			}
+		}
+
+		/* returns a stream over the content (without copying; valid until release) */
+		public InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+
+		/* returns a repeatable entity with the content (without copying; valid until release) */
+		public AbstractHttpEntity toEntity() {
+			return new AbstractHttpEntity() {
+				@Override
+				public boolean isRepeatable() {
+					return true;
+				}
+
+				@Override
+				public boolean isStreaming() {
+					return false;
+				}
+
+				@Override
+				public long getContentLength() {
+					return count;
+				}
+
+				@Override
+				public InputStream getContent() {
+					return toInputStream();
+				}
+
+				@Override
+				public void writeTo(OutputStream os) throws IOException {
+					os.write(buf, 0, count);
+					os.flush();
+				}
+			};
+		}
+
+		public String md5Hex() {
+			return HashUtils.md5Hex(buf, 0, count);
+		}
+	}
+}
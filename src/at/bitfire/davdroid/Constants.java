@@ -19,9 +19,14 @@ public class Constants {
 		ACCOUNT_KEY_USERNAME = "user_name",
 		ACCOUNT_KEY_BASE_URL = "principal_url",
 		ACCOUNT_KEY_AUTH_PREEMPTIVE = "auth_preemptive",
+		ACCOUNT_KEY_MAX_UPLOADS = "max_concurrent_uploads",
+		ACCOUNT_KEY_CONFLICT_POLICY = "conflict_policy",
+		ACCOUNT_KEY_PHOTO_SYNC = "photo_sync",
 		
 		ACCOUNT_KEY_ADDRESSBOOK_PATH = "addressbook_path",
 		ACCOUNT_KEY_ADDRESSBOOK_CTAG = "addressbook_ctag",
 		
+		ACCOUNT_KEY_CALENDAR_HOMESET = "calendar_homeset",
+		
 		WEB_URL_HELP = "http://davdroid.bitfire.at/configuration?pk_campaign=davdroid-app";
 }
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid;
+
+/**
+ * Compact list of (resource name, ETag) pairs in parallel arrays, so that listings of
+ * big collections don't need an object per entry. After sort(), entries are ordered
+ * by name, which allows binary search and linear merge-joins of two lists.
+ */
+public class ETagList {
+	protected String[] names, ETags;
+	protected int size;
+
+
+	public ETagList(int capacity) {
+		names = new String[Math.max(capacity, 4)];
+		ETags = new String[names.length];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String getName(int idx) {
+		return names[idx];
+	}
+
+	public String getETag(int idx) {
+		return ETags[idx];
+	}
+
+	public void add(String name, String ETag) {
+		if (size == names.length)
+			grow(size*2);
+		names[size] = name;
+		ETags[size] = ETag;
+		size++;
+	}
+
+
+	/* sorts the entries by name (in place, without boxing; listings are often sorted already) */
+	public void sort() {
+		for (int i = 1; i < size; i++)
+			if (names[i - 1].compareTo(names[i]) > 0) {
+				sort(0, size - 1);
+				return;
+			}
+	}
+
+	/* returns the index of the entry with the given name (list must be sorted), or -1 if not found */
+	public int indexOf(String name) {
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = names[mid].compareTo(name);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+
+	protected void grow(int capacity) {
+		String[] newNames = new String[capacity], newETags = new String[capacity];
+		System.arraycopy(names, 0, newNames, 0, size);
+		System.arraycopy(ETags, 0, newETags, 0, size);
+		names = newNames;
+		ETags = newETags;
+	}
+
+	/* quicksort of the entries low..high (inclusive) with median-of-three pivot, insertion sort for small ranges */
+	private void sort(int low, int high) {
+		while (high - low > 8) {
+			int mid = (low + high) >>> 1;
+			if (names[mid].compareTo(names[low]) < 0)
+				swap(low, mid);
+			if (names[high].compareTo(names[low]) < 0)
+				swap(low, high);
+			if (names[high].compareTo(names[mid]) < 0)
+				swap(mid, high);
+			String pivot = names[mid];
+			
+			int i = low, j = high;
+			while (i <= j) {
+				while (names[i].compareTo(pivot) < 0)
+					i++;
+				while (names[j].compareTo(pivot) > 0)
+					j--;
+				if (i <= j)
+					swap(i++, j--);
+			}
+			
+			// recurse into the smaller part, so that the stack depth is O(log n)
+			if (j - low < high - i) {
+				sort(low, j);
+				low = i;
+			} else {
+				sort(i, high);
+				high = j;
+			}
+		}
+		
+		for (int i = low + 1; i <= high; i++)
+			for (int j = i; j > low && names[j - 1].compareTo(names[j]) > 0; j--)
+				swap(j - 1, j);
+	}
+
+	/* swaps two entries; subclasses with additional parallel arrays have to swap them, too */
+	protected void swap(int i, int j) {
+		String name = names[i];
+		names[i] = names[j];
+		names[j] = name;
+		
+		String ETag = ETags[i];
+		ETags[i] = ETags[j];
+		ETags[j] = ETag;
+	}
+}
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+public class HashUtils {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/* not DigestUtils.md5Hex(): Android's bundled commons-codec lacks Hex.encodeHexString() */
+	public static String md5Hex(byte[] data, int offset, int length) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(data, offset, length);
+			return new String(Hex.encodeHex(md5.digest()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String md5Hex(byte[] data) {
+		return md5Hex(data, 0, data.length);
+	}
+
+	/* hash of the UTF-8 representation */
+	public static String md5Hex(String s) {
+		return md5Hex(s.getBytes(UTF_8));
+	}
+
+}
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Cleanup;
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Span tracing for single syncs. Every sync has its own Tracer, which is passed to the
+ * components taking part in the sync. Spans are nested per thread and may carry attributes;
+ * work which is done in other threads is attached to its span with {@link Span#child(String)}.
+ * Tracing is only active when enabled by
+ * <pre>adb shell setprop log.tag.davdroid.Tracer DEBUG</pre>
+ * In this case, every sync is written to Android/data/[package]/files/traces/sync-[time].json
+ * on the external storage, in Chrome trace event format (load it with chrome://tracing).
+ *
+ * Usage: <code>@Cleanup("end") Tracer.Span span = tracer.start("name").attr("key", value);</code>
+ */
+public class Tracer {
+	private static final String TAG = "davdroid.Tracer";
+
+	private static final int MAX_SPANS = 20000;
+
+	// inactive tracer, for components which are used outside of a traced sync
+	public static final Tracer NONE = new Tracer(false);
+
+	// returned when tracing is not active
+	private static final Span NOOP = new Span(null, null, null) {
+		@Override
+		public Span child(String name) {
+			return this;
+		}
+		@Override
+		public Span attr(String key, Object value) {
+			return this;
+		}
+		@Override
+		public void end() {
+		}
+	};
+
+	private final boolean active;
+	private final long traceStart = System.nanoTime();
+	private final List<Span> finished = new ArrayList<Span>();
+	private final AtomicInteger nextID = new AtomicInteger(1);
+
+	private final ThreadLocal<Span> current = new ThreadLocal<Span>();
+
+
+	/* starts a new trace (if tracing is enabled) */
+	public static Tracer begin() {
+		return Log.isLoggable(TAG, Log.DEBUG) ? new Tracer(true) : NONE;
+	}
+
+	Tracer(boolean active) {
+		this.active = active;
+	}
+
+	/* writes the trace to a file */
+	public void finish(Context context) {
+		if (!active)
+			return;
+
+		File dir = context.getExternalFilesDir("traces");
+		if (dir == null)
+			dir = new File(context.getFilesDir(), "traces");
+		dir.mkdirs();
+		File file = new File(dir, "sync-" + System.currentTimeMillis() + ".json");
+		try {
+			export(file);
+			Log.i(TAG, "Sync trace written to " + file);
+		} catch (IOException e) {
+			Log.e(TAG, "Couldn't write sync trace", e);
+		}
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	/* starts a child span of the current span of this thread */
+	public Span start(String name) {
+		if (!active)
+			return NOOP;
+		return new Span(this, name, current.get());
+	}
+
+
+	public void export(File file) throws IOException {
+		@Cleanup Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		writer.write("{\"traceEvents\":[\n");
+		synchronized(finished) {
+			int pid = Process.myPid();
+			boolean first = true;
+			for (Span span : finished) {
+				if (!first)
+					writer.write(",\n");
+				first = false;
+
+				writer.write("{\"ph\":\"X\",\"name\":");
+				writeString(writer, span.name);
+				writer.write(",\"pid\":" + pid + ",\"tid\":" + span.threadID +
+					",\"ts\":" + (span.start - traceStart)/1000 + ",\"dur\":" + (span.end - span.start)/1000 +
+					",\"args\":{\"id\":" + span.id);
+				if (span.parent != null)
+					writer.write(",\"parent\":" + span.parent.id);
+				if (span.attributes != null)
+					for (int i = 0; i < span.attributes.size(); i += 2) {
+						writer.write(',');
+						writeString(writer, span.attributes.get(i));
+						writer.write(':');
+						writeString(writer, span.attributes.get(i + 1));
+					}
+				writer.write("}}");
+			}
+		}
+		writer.write("\n]}\n");
+	}
+
+	private static void writeString(Writer writer, String s) throws IOException {
+		writer.write('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c < 0x20)
+				writer.write(String.format("\\u%04x", (int)c));
+			else
+				writer.write(c);
+		}
+		writer.write('"');
+	}
+
+
+	public static class Span {
+		final Tracer tracer;
+		final int id;
+		final String name;
+		final Span parent, previous;
+		final long threadID, start;
+		long end;
+		List<String> attributes;
+
+		Span(Tracer tracer, String name, Span parent) {
+			this.tracer = tracer;
+			this.name = name;
+			this.parent = parent;
+			threadID = Thread.currentThread().getId();
+			start = System.nanoTime();
+			if (tracer != null) {
+				id = tracer.nextID.getAndIncrement();
+				previous = tracer.current.get();
+				tracer.current.set(this);
+			} else {
+				id = 0;
+				previous = null;
+			}
+		}
+
+		/* starts a child span in the current thread (for work which is done by a worker thread on behalf of this span) */
+		public Span child(String name) {
+			return new Span(tracer, name, this);
+		}
+
+		/* sets an attribute (replaces the value if the attribute has already been set) */
+		public Span attr(String key, Object value) {
+			if (attributes == null)
+				attributes = new ArrayList<String>(4);
+			for (int i = 0; i < attributes.size(); i += 2)
+				if (attributes.get(i).equals(key)) {
+					attributes.set(i + 1, String.valueOf(value));
+					return this;
+				}
+			attributes.add(key);
+			attributes.add(String.valueOf(value));
+			return this;
+		}
+
+		public void end() {
+			end = System.nanoTime();
+			if (tracer.current.get() == this)
+				tracer.current.set(previous);
+			synchronized(tracer.finished) {
+				if (tracer.finished.size() < MAX_SPANS)
+					tracer.finished.add(this);
+			}
+		}
+	}
+}
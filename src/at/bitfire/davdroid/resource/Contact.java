@@ -7,9 +7,10 @@
  ******************************************************************************/
 package at.bitfire.davdroid.resource;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
@@ -18,7 +19,10 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.builder.EqualsBuilder;
 
 import android.util.Log;
 import at.bitfire.davdroid.Constants;
@@ -47,8 +51,9 @@ import ezvcard.property.Telephone;
 import ezvcard.property.Title;
 import ezvcard.property.Uid;
 import ezvcard.property.Url;
+import ezvcard.property.VCardProperty;
 
-@ToString(callSuper = true)
+@ToString(callSuper = true, exclude = "photoData")
 public class Contact extends Resource {
 	private final static String TAG = "davdroid.Contact";
 	
@@ -77,7 +82,11 @@ public class Contact extends Resource {
 	@Getter @Setter private Organization organization;
 	@Getter @Setter private String jobTitle, jobDescription;
 	
-	@Getter @Setter private byte[] photo;
+	private byte[] photo;
+	// Base64-encoded photo from the vCard, decoded by getPhoto() when it's needed
+	private String photoData;
+	// hash of the received photo (see VCardPhotoScanner), used to skip unchanged photos
+	@Getter private String photoHash;
 	
 	@Getter @Setter private Anniversary anniversary;
 	@Getter @Setter private Birthday birthDay;
@@ -111,11 +120,32 @@ public class Contact extends Resource {
 	}
 
 	
+	public byte[] getPhoto() {
+		if (photo == null && photoData != null) {
+			photo = Base64.decodeBase64(photoData.getBytes());
+			photoData = null;
+		}
+		return photo;
+	}
+
+	public void setPhoto(byte[] photo) {
+		this.photo = photo;
+		photoData = null;
+		photoHash = null;
+	}
+
+	public boolean hasPhoto() {
+		return photo != null || photoData != null;
+	}
+
+	
 	/* VCard methods */
 
 	@Override
 	public void parseEntity(InputStream is) throws IOException, VCardException {
-		VCard vcard = Ezvcard.parse(is).first();
+		// cut out the photo so that it's only decoded when it's needed
+		VCardPhotoScanner scanner = new VCardPhotoScanner(IOUtils.toString(is, "UTF-8"));
+		VCard vcard = Ezvcard.parse(scanner.getVCard()).first();
 		if (vcard == null)
 			return;
 		
@@ -156,10 +186,14 @@ public class Contact extends Resource {
 		phoneNumbers = vcard.getTelephoneNumbers();
 		emails = vcard.getEmails();
 		
-		for (Photo photo : vcard.getPhotos()) {
-			this.photo = photo.getData();
-			break;
-		}
+		if (scanner.getPhotoData() != null) {
+			photoData = scanner.getPhotoData();
+			photoHash = scanner.getPhotoHash();
+		} else
+			for (Photo photo : vcard.getPhotos()) {
+				this.photo = photo.getData();
+				break;
+			}
 
 		organization = vcard.getOrganization();
 		for (Title title : vcard.getTitles()) {
@@ -198,7 +232,59 @@ public class Contact extends Resource {
 
 	
 	@Override
-	public ByteArrayOutputStream toEntity() throws IOException {
+	public void mergeFrom(Resource baseResource, Resource other) {
+		Contact base = (Contact)baseResource, contact = (Contact)other;
+		
+		uid = merge(uid, base.uid, contact.uid);
+		starred = merge(starred, base.starred, contact.starred);
+		
+		displayName = merge(displayName, base.displayName, contact.displayName);
+		nickName = merge(nickName, base.nickName, contact.nickName);
+		if (sameValue(prefix, base.prefix) && sameValue(givenName, base.givenName) && sameValue(middleName, base.middleName) &&
+			sameValue(familyName, base.familyName) && sameValue(suffix, base.suffix)) {
+			prefix = contact.prefix;
+			givenName = contact.givenName;
+			middleName = contact.middleName;
+			familyName = contact.familyName;
+			suffix = contact.suffix;
+		}
+		if (sameValue(phoneticGivenName, base.phoneticGivenName) && sameValue(phoneticMiddleName, base.phoneticMiddleName) &&
+			sameValue(phoneticFamilyName, base.phoneticFamilyName)) {
+			phoneticGivenName = contact.phoneticGivenName;
+			phoneticMiddleName = contact.phoneticMiddleName;
+			phoneticFamilyName = contact.phoneticFamilyName;
+		}
+		
+		note = merge(note, base.note, contact.note);
+		organization = merge(organization, base.organization, contact.organization);
+		jobTitle = merge(jobTitle, base.jobTitle, contact.jobTitle);
+		jobDescription = merge(jobDescription, base.jobDescription, contact.jobDescription);
+		
+		if (Arrays.equals(getPhoto(), base.getPhoto())) {
+			photo = contact.photo;
+			photoData = contact.photoData;
+			photoHash = contact.photoHash;
+		}
+		
+		anniversary = merge(anniversary, base.anniversary, contact.anniversary);
+		birthDay = merge(birthDay, base.birthDay, contact.birthDay);
+		
+		mergeList(phoneNumbers, base.phoneNumbers, contact.phoneNumbers);
+		mergeList(emails, base.emails, contact.emails);
+		mergeList(impps, base.impps, contact.impps);
+		mergeList(addresses, base.addresses, contact.addresses);
+		mergeList(URLs, base.URLs, contact.URLs);
+	}
+	
+	@Override
+	protected boolean sameValue(Object a, Object b) {
+		if (a instanceof VCardProperty)		// ez-vcard properties don't implement equals()
+			return EqualsBuilder.reflectionEquals(a, b);
+		return super.sameValue(a, b);
+	}
+	
+	@Override
+	public void writeEntity(OutputStream os) throws IOException {
 		VCard vcard = new VCard();
 		vcard.setProdId("DAVdroid/" + Constants.APP_VERSION + " (ez-vcard/" + Ezvcard.VERSION + ")");
 		
@@ -267,18 +353,16 @@ public class Contact extends Resource {
 		if (birthDay != null)
 			vcard.setBirthday(birthDay);
 		
-		if (photo != null)
-			vcard.addPhoto(new Photo(photo, ImageType.JPEG));
+		if (hasPhoto())
+			vcard.addPhoto(new Photo(getPhoto(), ImageType.JPEG));
 		
 		vcard.setRevision(Revision.now());
 		
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
 		Ezvcard
 			.write(vcard)
 			.version(VCardVersion.V3_0)
 			.versionStrict(false)
 			.prodId(false)		// we provide our own PRODID
 			.go(os);
-		return os;
 	}
 }
@@ -0,0 +1,363 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.Cleanup;
+import lombok.Getter;
+
+import android.content.Context;
+import android.util.Log;
+import at.bitfire.davdroid.BufferPool;
+import at.bitfire.davdroid.HashUtils;
+
+/**
+ * On-disk cache of raw (unparsed) iCalendar/vCard entities, keyed by (collection, member name)
+ * and valid only for the ETag they have been downloaded with. It allows to rebuild local data
+ * (for instance, after the provider has been wiped, the account has been re-added or a parser
+ * bug has been fixed) without downloading every member again.
+ *
+ * Every entry is stored gzip-compressed in its own file (ETag + content). Files are written
+ * asynchronously by a background thread, so that compression and disk I/O don't slow down
+ * the sync; entries which are still being written are served from memory. The total size of
+ * the files is bounded (by default, depending on the free storage, so that big collections
+ * don't evict each other on every sync); least recently used entries are evicted first.
+ * Lives in the app's cache directory, so Android may clear it when storage is low. I/O errors
+ * are only logged, the cache is an optimization.
+ */
+public class EntityCache {
+	private static final String TAG = "davdroid.EntityCache";
+
+	private static final String DIRECTORY_NAME = "entities";
+	public static final long
+		MIN_DEFAULT_SIZE = 8*1024*1024,
+		MAX_DEFAULT_SIZE = 64*1024*1024;
+	private static final int MAX_PENDING_SIZE = 2*1024*1024;	// entries which haven't been written yet are dropped above
+
+	private static EntityCache instance;
+
+	final File directory;
+	@Getter final long maxSize;
+
+	// file name -> file size, in access order (least recently used first); loaded on first use
+	private LinkedHashMap<String, Long> index;
+	private long size;
+
+	// entries which are still queued for writing (file name -> entry)
+	private final Map<String, PendingEntry> pending = new HashMap<String, PendingEntry>();
+	private int pendingSize;
+	private final ThreadPoolExecutor writer;
+
+	private int hits, misses, evictions, dropped;
+
+
+	public static synchronized EntityCache getInstance(Context context) {
+		if (instance == null) {
+			File cacheDir = context.getCacheDir();
+			long maxSize = Math.max(MIN_DEFAULT_SIZE, Math.min(MAX_DEFAULT_SIZE, cacheDir.getUsableSpace() / 50));
+			instance = new EntityCache(new File(cacheDir, DIRECTORY_NAME), maxSize);
+		}
+		return instance;
+	}
+
+	public EntityCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+
+		writer = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new WriterThreadFactory());
+		writer.allowCoreThreadTimeOut(true);
+	}
+
+
+	/**
+	 * Returns the cached content of a member, if it has been cached with the given ETag.
+	 * @return	buffer with the raw content (must be released by the caller), or null if not cached
+	 */
+	public synchronized BufferPool.Buffer get(String collection, String name, String ETag) {
+		if (ETag == null)
+			return null;
+		loadIndex();
+
+		String fileName = fileName(collection, name);
+		PendingEntry entry = pending.get(fileName);
+		if (entry != null) {
+			if (!ETag.equals(entry.ETag)) {
+				misses++;
+				return null;
+			}
+			BufferPool.Buffer content = BufferPool.obtain();
+			try {
+				entry.content.writeTo(content);
+			} catch(IOException e) {
+				throw new IllegalStateException(e);		// can't happen with in-memory buffers
+			}
+			hits++;
+			return content;
+		}
+
+		if (index.get(fileName) == null) {		// get() also marks the entry as recently used
+			misses++;
+			return null;
+		}
+
+		File file = new File(directory, fileName);
+		BufferPool.Buffer content = BufferPool.obtain();
+		try {
+			@Cleanup DataInputStream is = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+			if (ETag.equals(is.readUTF())) {
+				content.readFrom(is);
+				file.setLastModified(System.currentTimeMillis());
+				hits++;
+				return content;
+			}
+		} catch(IOException e) {
+			Log.w(TAG, "Couldn't read cached entity " + name + ", removing it", e);
+			remove(fileName);
+		}
+		content.release();
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Stores the content of a member with the given ETag (replaces the entry of another ETag).
+	 * The content is copied, compressed and written in the background; see {@link #flush()}.
+	 */
+	public void put(String collection, String name, String ETag, InputStream content) {
+		if (ETag == null)
+			return;
+
+		final PendingEntry entry = new PendingEntry(ETag);
+		try {
+			entry.content.readFrom(content);
+		} catch(IOException e) {
+			Log.w(TAG, "Couldn't read entity " + name, e);
+			entry.content.release();
+			return;
+		}
+
+		final String fileName = fileName(collection, name);
+		synchronized(this) {
+			if (pendingSize > 0 && pendingSize + entry.content.size() > MAX_PENDING_SIZE) {
+				// writing can't keep up, don't use more memory
+				entry.content.release();
+				dropped++;
+				return;
+			}
+			PendingEntry previous = pending.put(fileName, entry);
+			if (previous != null)
+				pendingSize -= previous.content.size();
+			pendingSize += entry.content.size();
+		}
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					write(fileName, entry);
+				} finally {
+					entry.content.release();
+				}
+			}
+		});
+	}
+
+	/* waits until all queued entries have been written */
+	public void flush() {
+		try {
+			writer.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			Log.w(TAG, "Couldn't wait for cache writes", e);
+		}
+	}
+
+	public synchronized void remove(String collection, String name) {
+		loadIndex();
+		String fileName = fileName(collection, name);
+		removePending(fileName);
+		remove(fileName);
+	}
+
+	public synchronized void clear() {
+		loadIndex();
+		pending.clear();
+		pendingSize = 0;
+		for (String fileName : index.keySet())
+			new File(directory, fileName).delete();
+		index.clear();
+		size = 0;
+	}
+
+	public synchronized long getSize() {
+		loadIndex();
+		return size;
+	}
+
+	public synchronized String getStatistics() {
+		return hits + " hits, " + misses + " misses, " + evictions + " evictions, " + dropped + " dropped, " +
+			(index != null ? index.size() : 0) + " entries (" + size/1024 + " kB)";
+	}
+
+	public synchronized void resetStatistics() {
+		hits = misses = evictions = dropped = 0;
+	}
+
+
+	/* compresses an entry into a temporary file (without holding the lock), then replaces the cached file */
+	private void write(String fileName, PendingEntry entry) {
+		File file = new File(directory, fileName),
+			tmpFile = new File(directory, fileName + ".tmp");
+		synchronized(this) {
+			if (pending.get(fileName) != entry)		// replaced or removed in the meantime
+				return;
+			loadIndex();
+		}
+
+		try {
+			@Cleanup DataOutputStream os = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))));
+			os.writeUTF(entry.ETag);
+			entry.content.writeTo(os);
+			os.close();
+		} catch(IOException e) {
+			Log.w(TAG, "Couldn't cache entity " + fileName, e);
+			tmpFile.delete();
+			synchronized(this) {
+				if (pending.get(fileName) == entry)
+					removePending(fileName);
+			}
+			return;
+		}
+
+		synchronized(this) {
+			if (pending.get(fileName) != entry) {
+				tmpFile.delete();
+				return;
+			}
+			removePending(fileName);
+
+			remove(fileName);
+			if (!tmpFile.renameTo(file)) {
+				Log.w(TAG, "Couldn't rename " + tmpFile);
+				tmpFile.delete();
+				return;
+			}
+			index.put(fileName, file.length());
+			size += file.length();
+
+			// evict least recently used entries
+			for (Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator(); size > maxSize && iterator.hasNext(); ) {
+				Map.Entry<String, Long> eldest = iterator.next();
+				new File(directory, eldest.getKey()).delete();
+				size -= eldest.getValue();
+				iterator.remove();
+				evictions++;
+			}
+		}
+	}
+
+
+	/* reads the existing files into the index, ordered by last access (= modification) time */
+	private void loadIndex() {
+		if (index != null)
+			return;
+		index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		size = 0;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.w(TAG, "Couldn't create cache directory " + directory);
+			return;
+		}
+
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified(), r = rhs.lastModified();
+				return (l < r) ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (File file : files)
+			if (file.getName().endsWith(".tmp"))		// interrupted write
+				file.delete();
+			else {
+				index.put(file.getName(), file.length());
+				size += file.length();
+			}
+		Log.d(TAG, "Loaded " + index.size() + " cached entities (" + size/1024 + " kB)");
+	}
+
+	private void remove(String fileName) {
+		Long fileSize = index.remove(fileName);
+		if (fileSize != null) {
+			size -= fileSize;
+			new File(directory, fileName).delete();
+		}
+	}
+
+	private void removePending(String fileName) {
+		PendingEntry entry = pending.remove(fileName);
+		if (entry != null)
+			pendingSize -= entry.content.size();
+	}
+
+	private static String fileName(String collection, String name) {
+		return HashUtils.md5Hex(collection + "\n" + name);
+	}
+
+
+	private static class PendingEntry {
+		final String ETag;
+		final BufferPool.Buffer content = BufferPool.obtain();
+
+		PendingEntry(String ETag) {
+			this.ETag = ETag;
+		}
+	}
+
+	private static class WriterThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "davdroid entity cache");
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -10,10 +10,14 @@
  ******************************************************************************/
 package at.bitfire.davdroid.resource;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
@@ -24,7 +28,7 @@ import lombok.Getter;
 import lombok.NonNull;
 import lombok.Setter;
 import net.fortuna.ical4j.data.CalendarBuilder;
-import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.data.FoldingWriter;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Component;
 import net.fortuna.ical4j.model.ComponentList;
@@ -32,9 +36,7 @@ import net.fortuna.ical4j.model.Date;
 import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.DefaultTimeZoneRegistryFactory;
 import net.fortuna.ical4j.model.Property;
-import net.fortuna.ical4j.model.PropertyList;
 import net.fortuna.ical4j.model.TimeZoneRegistry;
-import net.fortuna.ical4j.model.ValidationException;
 import net.fortuna.ical4j.model.component.VAlarm;
 import net.fortuna.ical4j.model.component.VEvent;
 import net.fortuna.ical4j.model.component.VTimeZone;
@@ -42,28 +44,28 @@ import net.fortuna.ical4j.model.parameter.Value;
 import net.fortuna.ical4j.model.property.Attendee;
 import net.fortuna.ical4j.model.property.Clazz;
 import net.fortuna.ical4j.model.property.DateProperty;
-import net.fortuna.ical4j.model.property.Description;
 import net.fortuna.ical4j.model.property.DtEnd;
+import net.fortuna.ical4j.model.property.DtStamp;
 import net.fortuna.ical4j.model.property.DtStart;
 import net.fortuna.ical4j.model.property.Duration;
 import net.fortuna.ical4j.model.property.ExDate;
 import net.fortuna.ical4j.model.property.ExRule;
 import net.fortuna.ical4j.model.property.LastModified;
-import net.fortuna.ical4j.model.property.Location;
 import net.fortuna.ical4j.model.property.Organizer;
 import net.fortuna.ical4j.model.property.ProdId;
 import net.fortuna.ical4j.model.property.RDate;
 import net.fortuna.ical4j.model.property.RRule;
 import net.fortuna.ical4j.model.property.Status;
-import net.fortuna.ical4j.model.property.Summary;
 import net.fortuna.ical4j.model.property.Transp;
-import net.fortuna.ical4j.model.property.Uid;
 import net.fortuna.ical4j.model.property.Version;
+import net.fortuna.ical4j.util.CompatibilityHints;
 import net.fortuna.ical4j.util.SimpleHostInfo;
+import net.fortuna.ical4j.util.Strings;
 import net.fortuna.ical4j.util.UidGenerator;
 import android.text.format.Time;
 import android.util.Log;
 import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.ParserPool;
 import at.bitfire.davdroid.syncadapter.DavSyncAdapter;
 
 
@@ -71,6 +73,9 @@ public class Event extends Resource {
 	private final static String TAG = "davdroid.Event";
 	
 	private final static TimeZoneRegistry tzRegistry = new DefaultTimeZoneRegistryFactory().createRegistry();
+	private static UidGenerator uidGenerator;
+	
+	private final static String PRODID = new ProdId("-//bitfire web engineering//DAVdroid " + Constants.APP_VERSION + "//EN").toString();
 	
 	@Getter @Setter private String summary, location, description;
 	
@@ -110,8 +115,13 @@ public class Event extends Resource {
 	
 	@Override
 	public void generateUID() {
-		UidGenerator generator = new UidGenerator(new SimpleHostInfo(DavSyncAdapter.getAndroidID()), String.valueOf(android.os.Process.myPid()));
-		uid = generator.generateUid().getValue();
+		uid = getUidGenerator().generateUid().getValue();
+	}
+	
+	private static synchronized UidGenerator getUidGenerator() {
+		if (uidGenerator == null)
+			uidGenerator = new UidGenerator(new SimpleHostInfo(DavSyncAdapter.getAndroidID()), String.valueOf(android.os.Process.myPid()));
+		return uidGenerator;
 	}
 	
 	@Override
@@ -121,24 +131,52 @@ public class Event extends Resource {
 
 
 	@Override
-	@SuppressWarnings("unchecked")
 	public void parseEntity(@NonNull InputStream entity) throws IOException, InvalidResourceException {
-		net.fortuna.ical4j.model.Calendar ical;
-		try {
-			CalendarBuilder builder = new CalendarBuilder();
-			ical = builder.build(entity);
-
-			if (ical == null)
-				throw new InvalidResourceException("No iCalendar found");
-		} catch (ParserException e) {
-			throw new InvalidResourceException(e);
+		parseEntity(entity, true);
+	}
+	
+	/**
+	 * Parses an iCalendar. If fastParsing is set, VEventReader is tried first, and the full
+	 * iCal4j CalendarBuilder is only used for iCalendars which VEventReader can't handle.
+	 */
+	@SuppressWarnings("unchecked")
+	public void parseEntity(@NonNull InputStream entity, boolean fastParsing) throws IOException, InvalidResourceException {
+		// VEventReader reads from the stream; if it can't handle the iCalendar, the stream is reset for CalendarBuilder
+		InputStream in = entity.markSupported() ? entity : new BufferedInputStream(entity);
+		
+		VEvent event = null;
+		boolean parsed = false;
+		if (fastParsing) {
+			in.mark(Integer.MAX_VALUE);
+			try {
+				event = VEventReader.read(new InputStreamReader(in, "UTF-8"), tzRegistry);
+				parsed = true;
+			} catch (VEventReader.UnsupportedException e) {
+				Log.d(TAG, "Parsing iCalendar with iCal4j: " + e.getMessage());
+				in.reset();
+			}
+		}
+		
+		if (!parsed) {
+			net.fortuna.ical4j.model.Calendar ical;
+			try {
+				CalendarBuilder builder = ParserPool.getCalendarBuilder();
+				ical = builder.build(new InputStreamReader(in, "UTF-8"));
+				
+				if (ical == null)
+					throw new InvalidResourceException("No iCalendar found");
+			} catch (ParserException e) {
+				throw new InvalidResourceException(e);
+			}
+			
+			ComponentList events = ical.getComponents(Component.VEVENT);
+			if (events != null && !events.isEmpty())
+				event = (VEvent)events.get(0);
 		}
 		
 		// event
-		ComponentList events = ical.getComponents(Component.VEVENT);
-		if (events == null || events.isEmpty())
+		if (event == null)
 			throw new InvalidResourceException("No VEVENT found");
-		VEvent event = (VEvent)events.get(0);
 		
 		if (event.getUid() != null)
 			uid = event.getUid().getValue();
@@ -198,76 +236,116 @@ public class Event extends Resource {
 		
 		this.alarms = event.getAlarms();
 	}
+	
+	@Override
+	public void mergeFrom(Resource baseResource, Resource other) {
+		Event base = (Event)baseResource, event = (Event)other;
+		
+		uid = merge(uid, base.uid, event.uid);
+		
+		dtStart = merge(dtStart, base.dtStart, event.dtStart);
+		if (sameValue(dtEnd, base.dtEnd) && sameValue(duration, base.duration)) {
+			dtEnd = event.dtEnd;
+			duration = event.duration;
+		}
+		
+		rrule = merge(rrule, base.rrule, event.rrule);
+		rdate = merge(rdate, base.rdate, event.rdate);
+		exrule = merge(exrule, base.exrule, event.exrule);
+		exdate = merge(exdate, base.exdate, event.exdate);
+		
+		summary = merge(summary, base.summary, event.summary);
+		location = merge(location, base.location, event.location);
+		description = merge(description, base.description, event.description);
+		
+		status = merge(status, base.status, event.status);
+		forPublic = merge(forPublic, base.forPublic, event.forPublic);
+		opaque = merge(opaque, base.opaque, event.opaque);
+		
+		organizer = merge(organizer, base.organizer, event.organizer);
+		mergeList(attendees, base.attendees, event.attendees);
+		
+		mergeList(alarms, base.alarms, event.alarms);
+	}
 
+	/**
+	 * Writes the event as iCalendar. The output is the same as CalendarOutputter's for a
+	 * Calendar with the VEVENT and its VTIMEZONEs, but the properties are written one by one,
+	 * so neither a Calendar/VEvent nor the whole iCalendar as String have to be built.
+	 */
 	@Override
-	@SuppressWarnings("unchecked")
-	public ByteArrayOutputStream toEntity() throws IOException {
-		net.fortuna.ical4j.model.Calendar ical = new net.fortuna.ical4j.model.Calendar();
-		ical.getProperties().add(Version.VERSION_2_0);
-		ical.getProperties().add(new ProdId("-//bitfire web engineering//DAVdroid " + Constants.APP_VERSION + "//EN"));
+	public void writeEntity(OutputStream os) throws IOException {
+		FoldingWriter writer = new FoldingWriter(new OutputStreamWriter(os, "UTF-8"),
+			CompatibilityHints.isHintEnabled(CompatibilityHints.KEY_OUTLOOK_COMPATIBILITY) ?
+				FoldingWriter.MAX_FOLD_LENGTH : FoldingWriter.REDUCED_FOLD_LENGTH);
 		
-		VEvent event = new VEvent();
-		PropertyList props = event.getProperties();
+		writer.write("BEGIN:VCALENDAR\r\n");
+		writeProperty(writer, Version.VERSION_2_0);
+		writer.write(PRODID);
 		
+		writer.write("BEGIN:VEVENT\r\n");
+		writeProperty(writer, new DtStamp());		// added by new VEvent()
 		if (uid != null)
-			props.add(new Uid(uid));
-		
-		props.add(dtStart);
-		if (dtEnd != null)
-			props.add(dtEnd);
-		if (duration != null)
-			props.add(duration);
-		
-		if (rrule != null)
-			props.add(rrule);
-		if (rdate != null)
-			props.add(rdate);
-		if (exrule != null)
-			props.add(exrule);
-		if (exdate != null)
-			props.add(exdate);
+			writeText(writer, Property.UID, uid);
+		
+		writeProperty(writer, dtStart);
+		writeProperty(writer, dtEnd);
+		writeProperty(writer, duration);
+		
+		writeProperty(writer, rrule);
+		writeProperty(writer, rdate);
+		writeProperty(writer, exrule);
+		writeProperty(writer, exdate);
 		
 		if (summary != null && !summary.isEmpty())
-			props.add(new Summary(summary));
+			writeText(writer, Property.SUMMARY, summary);
 		if (location != null && !location.isEmpty())
-			props.add(new Location(location));
+			writeText(writer, Property.LOCATION, location);
 		if (description != null && !description.isEmpty())
-			props.add(new Description(description));
+			writeText(writer, Property.DESCRIPTION, description);
 		
-		if (status != null)
-			props.add(status);
+		writeProperty(writer, status);
 		if (!opaque)
-			props.add(Transp.TRANSPARENT);
+			writeProperty(writer, Transp.TRANSPARENT);
 		
-		if (organizer != null)
-			props.add(organizer);
-		props.addAll(attendees);
+		writeProperty(writer, organizer);
+		for (Attendee attendee : attendees)
+			writeProperty(writer, attendee);
 		
 		if (forPublic != null)
-			event.getProperties().add(forPublic ? Clazz.PUBLIC : Clazz.PRIVATE);
+			writeProperty(writer, forPublic ? Clazz.PUBLIC : Clazz.PRIVATE);
 		
-		event.getAlarms().addAll(alarms);
+		// all properties before the alarms, like VEvent.toString() (RFC 5545: eventprop before alarmc)
+		writeProperty(writer, new LastModified());
 		
-		props.add(new LastModified());
-		ical.getComponents().add(event);
+		for (VAlarm alarm : alarms)
+			writer.write(alarm.toString());
+		writer.write("END:VEVENT\r\n");
 
 		// add VTIMEZONE components
 		net.fortuna.ical4j.model.TimeZone
 			tzStart = (dtStart == null ? null : dtStart.getTimeZone()),
 			tzEnd = (dtEnd == null ? null : dtEnd.getTimeZone());
 		if (tzStart != null)
-			ical.getComponents().add(tzStart.getVTimeZone());
+			writer.write(tzStart.getVTimeZone().toString());
 		if (tzEnd != null && tzEnd != tzStart)
-			ical.getComponents().add(tzEnd.getVTimeZone());
-
-		CalendarOutputter output = new CalendarOutputter(false);
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
-		try {
-			output.output(ical, os);
-		} catch (ValidationException e) {
-			Log.e(TAG, "Generated invalid iCalendar");
-		}
-		return os;
+			writer.write(tzEnd.getVTimeZone().toString());
+		
+		writer.write("END:VCALENDAR\r\n");
+		writer.flush();
+	}
+	
+	private static void writeProperty(Writer writer, Property property) throws IOException {
+		if (property != null)
+			writer.write(property.toString());
+	}
+	
+	/* same as property.toString() of a text property without parameters */
+	private static void writeText(Writer writer, String name, String value) throws IOException {
+		writer.write(name);
+		writer.write(':');
+		writer.write(Strings.escape(value));
+		writer.write("\r\n");
 	}
 
 	
@@ -355,7 +433,7 @@ public class Event extends Resource {
 
 	public static String TimezoneDefToTzId(String timezoneDef) {
 		try {
-			CalendarBuilder builder = new CalendarBuilder();
+			CalendarBuilder builder = ParserPool.getCalendarBuilder();
 			net.fortuna.ical4j.model.Calendar cal = builder.build(new StringReader(timezoneDef));
 			VTimeZone timezone = (VTimeZone)cal.getComponent(VTimeZone.VTIMEZONE);
 			return timezone.getTimeZoneId().getValue();
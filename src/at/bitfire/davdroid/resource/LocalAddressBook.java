@@ -12,13 +12,17 @@ import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import lombok.Cleanup;
+import lombok.Getter;
+import lombok.Setter;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
@@ -32,7 +36,6 @@ import android.content.ContentProviderOperation.Builder;
 import android.content.ContentUris;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.provider.ContactsContract.CommonDataKinds;
@@ -88,6 +91,19 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 	protected String entryColumnDeleted()		{ return RawContacts.DELETED; }
 
 	protected String entryColumnUID()			{ return RawContacts.SYNC1; }
+	
+	// hash of the last received photo, see Contact.getPhotoHash()
+	private static final String COLUMN_PHOTO_HASH = RawContacts.SYNC3;
+	// hash of the photo on the server; differs from COLUMN_PHOTO_HASH while a deferred photo is pending
+	private static final String COLUMN_REMOTE_PHOTO_HASH = RawContacts.SYNC4;
+	
+	/* if set, received photos are not written by add()/updateByRemoteName() but by updatePhoto() later (see PhotoSync) */
+	@Getter @Setter private boolean deferPhotos;
+	
+	// deferred photos which have already been received (remote name -> contact), so that they don't have to be fetched again;
+	// when it's full, received photos are written with the contact data instead (they'd have to be downloaded twice otherwise)
+	private static final int MAX_RECEIVED_PHOTOS = 50;
+	private Map<String, Contact> receivedPhotos = new HashMap<String, Contact>();
 
 
 
@@ -106,12 +122,21 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 	
 	@Override
 	public String getCTag() {
+		if (syncState != null) {
+			String cTag = syncState.getCTag(syncStateKey);
+			if (cTag != null)
+				return cTag;
+		}
+		// not migrated to sync state store yet
 		return accountManager.getUserData(account, Constants.ACCOUNT_KEY_ADDRESSBOOK_CTAG);
 	}
 
 	@Override
 	public void setCTag(String cTag) {
-		accountManager.setUserData(account, Constants.ACCOUNT_KEY_ADDRESSBOOK_CTAG, cTag);
+		if (syncState != null)
+			pendingStateChanges.add(SyncStateStore.Change.cTag(cTag));
+		else
+			accountManager.setUserData(account, Constants.ACCOUNT_KEY_ADDRESSBOOK_CTAG, cTag);
 	}
 
 	
@@ -121,24 +146,6 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 		return new Contact(localID, resourceName, eTag);
 	}
 	
-	public void deleteAllExceptRemoteNames(Resource[] remoteResources) {
-		String where;
-		
-		if (remoteResources.length != 0) {
-			List<String> sqlFileNames = new LinkedList<String>();
-			for (Resource res : remoteResources)
-				sqlFileNames.add(DatabaseUtils.sqlEscapeString(res.getName()));
-			where = entryColumnRemoteName() + " NOT IN (" + StringUtils.join(sqlFileNames, ",") + ")";
-		} else
-			where = entryColumnRemoteName() + " IS NOT NULL";
-			
-		Builder builder = ContentProviderOperation.newDelete(entriesURI()).withSelection(where, null);
-		pendingOperations.add(builder
-				.withYieldAllowed(true)
-				.build());
-	}
-	
-	
 	/* methods for populating the data object from the content provider */
 
 	@Override
@@ -507,21 +514,36 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 	protected Builder buildEntry(Builder builder, Resource resource) {
 		Contact contact = (Contact)resource;
 
-		return builder
+		builder = builder
 			.withValue(RawContacts.ACCOUNT_NAME, account.name)
 			.withValue(RawContacts.ACCOUNT_TYPE, account.type)
 			.withValue(entryColumnRemoteName(), contact.getName())
 			.withValue(entryColumnUID(), contact.getUid())
 			.withValue(entryColumnETag(), contact.getETag())
+			.withValue(COLUMN_REMOTE_PHOTO_HASH, contact.getPhotoHash())
 			.withValue(RawContacts.STARRED, contact.isStarred());
+		if (!isPhotoDeferred(contact))
+			builder = builder.withValue(COLUMN_PHOTO_HASH, contact.getPhotoHash());
+		else
+			receivedPhotos.put(contact.getName(), contact);		// photo is still Base64, see Contact.getPhoto()
+		return builder;
+	}
+	
+	private boolean isPhotoDeferred(Contact contact) {
+		return deferPhotos && contact.getPhotoHash() != null &&
+			(receivedPhotos.size() < MAX_RECEIVED_PHOTOS || receivedPhotos.containsKey(contact.getName()));
 	}
 	
 	
 	@Override
 	protected void addDataRows(Resource resource, long localID, int backrefIdx) {
 		Contact contact = (Contact)resource;
+		addDataRows(contact, localID, backrefIdx, !isPhotoDeferred(contact));
+	}
+	
+	private void addDataRows(Contact contact, long localID, int backrefIdx, boolean withPhoto) {
 		
-		pendingOperations.add(buildStructuredName(newDataInsertBuilder(localID, backrefIdx), contact).build());
+		queueOperation(buildStructuredName(newDataInsertBuilder(localID, backrefIdx), contact));
 		
 		for (Telephone number : contact.getPhoneNumbers())
 			queueOperation(buildPhoneNumber(newDataInsertBuilder(localID, backrefIdx), number));
@@ -529,7 +551,7 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 		for (ezvcard.property.Email email : contact.getEmails())
 			queueOperation(buildEmail(newDataInsertBuilder(localID, backrefIdx), email));
 
-		if (contact.getPhoto() != null)
+		if (withPhoto && contact.hasPhoto())
 			queueOperation(buildPhoto(newDataInsertBuilder(localID, backrefIdx), contact.getPhoto()));
 		
 		if (contact.getOrganization() != null || contact.getJobTitle() != null || contact.getJobDescription() != null)
@@ -570,6 +592,88 @@ public class LocalAddressBook extends LocalCollection<Contact> {
 				.withSelection(Data.RAW_CONTACT_ID + "=?",
 				new String[] { String.valueOf(resource.getLocalID()) }).build());
 	}
+	
+	@Override
+	protected void updateDataRows(Resource localResource, Resource remoteResource) throws LocalStorageException {
+		Contact contact = (Contact)remoteResource;
+		if (!isPhotoDeferred(contact) && (contact.getPhotoHash() == null || !contact.getPhotoHash().equals(queryPhotoHash(localResource.getLocalID())))) {
+			super.updateDataRows(localResource, remoteResource);
+			return;
+		}
+		
+		// photo hasn't changed or will be updated by updatePhoto(): keep the photo row (and don't decode the received photo)
+		pendingOperations.add(ContentProviderOperation.newDelete(dataURI())
+				.withSelection(Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "<>?",
+				new String[] { String.valueOf(localResource.getLocalID()), Photo.CONTENT_ITEM_TYPE }).build());
+		addDataRows(contact, localResource.getLocalID(), -1, false);
+	}
+	
+	/**
+	 * Returns skeletons of the contacts whose server photo hasn't been written yet (deferred photo sync).
+	 * Locally changed contacts are skipped, they keep (and upload) their local photo.
+	 * @param limit		maximum number of contacts to return
+	 */
+	public Contact[] findPendingPhotos(int limit) throws LocalStorageException {
+		String where = remoteEntriesSelection() + " AND " + COLUMN_REMOTE_PHOTO_HASH + " IS NOT NULL AND " +
+				entryColumnDirty() + "=0 AND " + entryColumnDeleted() + "=0";
+		try {
+			@Cleanup Cursor cursor = providerClient.query(entriesURI(),
+					new String[] { entryColumnID(), entryColumnRemoteName(), entryColumnETag(), COLUMN_PHOTO_HASH, COLUMN_REMOTE_PHOTO_HASH },
+					where, null, null);
+			if (cursor == null)
+				throw new LocalStorageException("Couldn't query contacts with pending photos");
+			
+			List<Contact> pending = new LinkedList<Contact>();
+			while (pending.size() < limit && cursor.moveToNext())
+				if (!cursor.getString(4).equals(cursor.getString(3)))
+					pending.add(newResource(cursor.getLong(0), cursor.getString(1), cursor.getString(2)));
+			return pending.toArray(new Contact[0]);
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+	}
+	
+	/* returns (and forgets) the server version of a contact whose deferred photo has been received by this instance, or null */
+	public Contact takeReceivedPhoto(String remoteName) {
+		return receivedPhotos.remove(remoteName);
+	}
+	
+	/* replaces the photo of a local contact by the photo of the server version (doesn't touch other data) */
+	public void updatePhoto(long localID, Contact remoteContact) {
+		beginResource();
+		pendingOperations.add(ContentProviderOperation.newDelete(dataURI())
+				.withSelection(Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+				new String[] { String.valueOf(localID), Photo.CONTENT_ITEM_TYPE }).build());
+		if (remoteContact.hasPhoto())
+			queueOperation(buildPhoto(newDataInsertBuilder(localID, -1), remoteContact.getPhoto()));
+		pendingOperations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(entriesURI(), localID))
+				.withValue(COLUMN_PHOTO_HASH, remoteContact.getPhotoHash())
+				.withValue(COLUMN_REMOTE_PHOTO_HASH, remoteContact.getPhotoHash())
+				.build());
+	}
+	
+	@Override
+	public void clearDirty(Resource resource) {
+		super.clearDirty(resource);
+		// the local photo has been uploaded, so a deferred server photo isn't pending anymore, and the hash
+		// of the last received photo doesn't describe the local photo anymore (see updateDataRows())
+		pendingOperations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(entriesURI(), resource.getLocalID()))
+				.withValue(COLUMN_PHOTO_HASH, null)
+				.withValue(COLUMN_REMOTE_PHOTO_HASH, null)
+				.build());
+	}
+	
+	private String queryPhotoHash(long localID) throws LocalStorageException {
+		try {
+			@Cleanup Cursor cursor = providerClient.query(ContentUris.withAppendedId(entriesURI(), localID),
+				new String[] { COLUMN_PHOTO_HASH }, null, null, null);
+			if (cursor != null && cursor.moveToNext())
+				return cursor.getString(0);
+			return null;
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+	}
 
 
 	protected Builder buildStructuredName(Builder builder, Contact contact) {
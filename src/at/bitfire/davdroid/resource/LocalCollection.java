@@ -11,20 +11,37 @@
 package at.bitfire.davdroid.resource;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import lombok.Cleanup;
+import lombok.Getter;
+import lombok.Setter;
 import android.accounts.Account;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderOperation.Builder;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
 import android.provider.CalendarContract;
 import android.util.Log;
+import at.bitfire.davdroid.ETagList;
+import at.bitfire.davdroid.Tracer;
 
 public abstract class LocalCollection<T extends Resource> {
 	private static final String TAG = "davdroid.LocalCollection";
@@ -32,6 +49,40 @@ public abstract class LocalCollection<T extends Resource> {
 	protected Account account;
 	protected ContentProviderClient providerClient;
 	protected ArrayList<ContentProviderOperation> pendingOperations = new ArrayList<ContentProviderOperation>();
+	
+	// pendingOperations are committed in batches of max. maxBatchSize bytes (estimated parcel size),
+	// which are split at resource boundaries only; binder transactions are limited to 1 MB per process
+	public static final int DEFAULT_MAX_BATCH_SIZE = 256*1024;
+	@Getter @Setter protected int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	// indices of pendingOperations which start a resource
+	private BitSet resourceStarts = new BitSet();
+	// operations with back-references (index in pendingOperations -> back-reference), so that
+	// they can be rebuilt with the indices of another batch
+	private Map<Integer, BackReference> backReferences = new HashMap<Integer, BackReference>();
+	private Map<Builder, BackReference> unqueuedBackReferences = new IdentityHashMap<Builder, BackReference>();
+	
+	private static class BackReference {
+		final Builder builder;
+		final String column;
+		final int index;
+		
+		BackReference(Builder builder, String column, int index) {
+			this.builder = builder;
+			this.column = column;
+			this.index = index;
+		}
+	}
+	
+	// sync state store (may be null) and changes which will be applied to it when pendingOperations are committed
+	protected SyncStateStore syncState;
+	@Getter protected String syncStateKey;
+	protected List<SyncStateStore.Change> pendingStateChanges = new LinkedList<SyncStateStore.Change>();
+	protected SyncStateStore.Snapshot snapshot;
+	// if more provider entries are missing in the store, it's rebuilt instead of querying them one by one
+	private static final int MAX_RECONCILE_ENTRIES = 50;
+	
+	// trace of the current sync
+	@Setter protected Tracer tracer = Tracer.NONE;
 
 	
 	// database fields
@@ -63,6 +114,130 @@ public abstract class LocalCollection<T extends Resource> {
 	abstract public long getId();
 	abstract public String getCTag();
 	abstract public void setCTag(String cTag);
+	
+	public String getSyncToken() {
+		return (syncState != null) ? syncState.getSyncToken(syncStateKey) : null;
+	}
+	
+	public void setSyncToken(String syncToken) {
+		pendingStateChanges.add(SyncStateStore.Change.syncToken(syncToken));
+	}
+	
+	/**
+	 * Enables the sync state store for this collection.
+	 * @param key	unique identifier of the collection (for instance, account name + remote URL)
+	 */
+	public void setSyncState(SyncStateStore store, String key) {
+		syncState = store;
+		syncStateKey = key;
+		snapshot = null;
+	}
+	
+	/* checkpoints of interrupted syncs */
+	
+	public SyncStateStore.Checkpoint getCheckpoint() {
+		return (syncState != null) ? syncState.getCheckpoint(syncStateKey) : null;
+	}
+	
+	public void saveCheckpoint(String cTag, ETagList listing) {
+		if (syncState != null && cTag != null)
+			syncState.saveCheckpoint(syncStateKey, cTag, listing);
+	}
+	
+	/* marks a resource of the checkpoint as applied as soon as the pending operations are committed */
+	public void checkpointApplied(String name) {
+		pendingStateChanges.add(SyncStateStore.Change.checkpointApplied(name));
+	}
+	
+	public void clearCheckpoint() {
+		pendingStateChanges.add(SyncStateStore.Change.clearCheckpoint());
+	}
+	
+	/* quarantine of resources which fail to upload or to parse (not staged, written immediately) */
+	
+	public Map<String, SyncStateStore.QuarantineEntry> getQuarantine() {
+		if (syncState == null)
+			return Collections.emptyMap();
+		return syncState.getQuarantine(syncStateKey, System.currentTimeMillis());
+	}
+	
+	public SyncStateStore.QuarantineEntry quarantine(String item, String ETag, String error) {
+		if (syncState == null)
+			return null;
+		return syncState.recordFailure(syncStateKey, item, ETag, error, System.currentTimeMillis());
+	}
+	
+	public void releaseFromQuarantine(String item) {
+		if (syncState != null)
+			syncState.clearFailure(syncStateKey, item);
+	}
+	
+	/**
+	 * Returns all local entries which have a remote name, sorted by remote name. If a sync state store
+	 * is available, the entries are read from there. The store is rebuilt from the content provider
+	 * if it's not consistent (interrupted commit); otherwise its local IDs are reconciled with the
+	 * provider (see {@link #reconcile(SyncStateStore.Snapshot)}).
+	 * The snapshot represents the state at the time of the first call and isn't updated by commit().
+	 */
+	public SyncStateStore.Snapshot getSnapshot() throws LocalStorageException {
+		if (snapshot != null)
+			return snapshot;
+		
+		if (syncState != null && syncState.isConsistent(syncStateKey)) {
+			snapshot = reconcile(syncState.getEntries(syncStateKey));
+			if (snapshot != null)
+				return snapshot;
+		}
+		
+		snapshot = queryRemoteEntries();
+		if (syncState != null)
+			syncState.replaceEntries(syncStateKey, snapshot);
+		return snapshot;
+	}
+	
+	/**
+	 * Compares the local IDs of the sync state entries with the provider entries which have a remote name.
+	 * Entries of rows which don't exist anymore are removed from the store, rows which are missing
+	 * in the store are added (without content hash).
+	 * @return	the reconciled entries, or null if the store differs too much and should be rebuilt
+	 */
+	protected SyncStateStore.Snapshot reconcile(SyncStateStore.Snapshot stored) throws LocalStorageException {
+		Set<Long> providerIDs = queryRemoteEntryIDs();
+		
+		List<SyncStateStore.Change> changes = new LinkedList<SyncStateStore.Change>();
+		Set<Long> storedIDs = new HashSet<Long>(stored.size());
+		for (int i = 0; i < stored.size(); i++) {
+			long localID = stored.getLocalID(i);
+			if (!providerIDs.contains(localID) || !storedIDs.add(localID))
+				changes.add(SyncStateStore.Change.remove(stored.getName(i)));
+		}
+		
+		List<Long> missing = new LinkedList<Long>();
+		for (Long localID : providerIDs)
+			if (!storedIDs.contains(localID))
+				missing.add(localID);
+		if (missing.size() > MAX_RECONCILE_ENTRIES) {
+			Log.w(TAG, "Sync state of " + syncStateKey + " misses " + missing.size() + " provider entries");
+			return null;
+		}
+		
+		try {
+			for (long localID : missing) {
+				@Cleanup Cursor cursor = providerClient.query(ContentUris.withAppendedId(entriesURI(), localID),
+						new String[] { entryColumnRemoteName(), entryColumnETag() }, null, null, null);
+				if (cursor != null && cursor.moveToNext())
+					changes.add(SyncStateStore.Change.put(cursor.getString(0), cursor.getString(1), localID, null));
+			}
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+		
+		if (changes.isEmpty())
+			return stored;
+		Log.i(TAG, "Reconciling sync state of " + syncStateKey + " (" + changes.size() + " changed entries)");
+		syncState.apply(syncStateKey, changes, null);
+		return syncState.getEntries(syncStateKey);
+	}
 
 	
 	// content provider (= database) querying
@@ -80,21 +255,30 @@ public abstract class LocalCollection<T extends Resource> {
 				throw new LocalStorageException("Couldn't query new records");
 			
 			long[] fresh = new long[cursor.getCount()];
+			if (fresh.length == 0)
+				return fresh;
+			
+			// new records: generate UID + remote file name so that we can upload,
+			// and write them into the database (together with other pending operations)
 			for (int idx = 0; cursor.moveToNext(); idx++) {
 				long id = cursor.getLong(0);
 				
-				// new record: generate UID + remote file name so that we can upload
-				T resource = findById(id, false);
+				T resource = newResource(id, null, null);
 				resource.generateUID();
 				resource.generateName();
-				// write generated UID + remote file name into database
-				ContentValues values = new ContentValues(2);
-				values.put(entryColumnUID(), resource.getUid());
-				values.put(entryColumnRemoteName(), resource.getName());
-				providerClient.update(ContentUris.withAppendedId(entriesURI(), id), values, null, null);
+				beginResource();
+				pendingOperations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(entriesURI(), id))
+						.withValue(entryColumnUID(), resource.getUid())
+						.withValue(entryColumnRemoteName(), resource.getName())
+						.withYieldAllowed(true)
+						.build());
+				pendingStateChanges.add(SyncStateStore.Change.touch(resource.getName(), id));
 				
 				fresh[idx] = id;
 			}
+			
+			Log.d(TAG, "Assigning UIDs and names to " + fresh.length + " new record(s)");
+			commit();
 			return fresh;
 		} catch(RemoteException ex) {
 			throw new LocalStorageException(ex);
@@ -179,8 +363,17 @@ public abstract class LocalCollection<T extends Resource> {
 	public abstract void populate(Resource record) throws LocalStorageException;
 	
 	protected void queueOperation(Builder builder) {
-		if (builder != null)
+		if (builder != null) {
+			BackReference backReference = unqueuedBackReferences.remove(builder);
+			if (backReference != null)
+				backReferences.put(pendingOperations.size(), backReference);
 			pendingOperations.add(builder.build());
+		}
+	}
+	
+	/* marks the next pending operation as the first one of a resource; batches are only split there */
+	protected void beginResource() {
+		resourceStarts.set(pendingOperations.size());
 	}
 
 	
@@ -189,59 +382,242 @@ public abstract class LocalCollection<T extends Resource> {
 	abstract public T newResource(long localID, String resourceName, String eTag);
 	
 	public void add(Resource resource) {
+		beginResource();
 		int idx = pendingOperations.size();
 		pendingOperations.add(
 				buildEntry(ContentProviderOperation.newInsert(entriesURI()), resource)
 				.withYieldAllowed(true)
 				.build());
+		pendingStateChanges.add(SyncStateStore.Change.insert(resource.getName(), resource.getETag(), idx, resource.getContentHash()));
 		
 		addDataRows(resource, -1, idx);
 	}
 	
 	public void updateByRemoteName(Resource remoteResource) throws LocalStorageException {
-		T localResource = findByRemoteName(remoteResource.getName(), false);
+		beginResource();
+		T localResource;
+		int idx = (snapshot != null) ? snapshot.indexOf(remoteResource.getName()) : -1;
+		if (idx != -1)
+			localResource = newResource(snapshot.getLocalID(idx), snapshot.getName(idx), snapshot.getETag(idx));
+		else
+			localResource = findByRemoteName(remoteResource.getName(), false);
+		pendingStateChanges.add(SyncStateStore.Change.put(remoteResource.getName(), remoteResource.getETag(), localResource.getLocalID(), remoteResource.getContentHash()));
 		pendingOperations.add(
 				buildEntry(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(entriesURI(), localResource.getLocalID())), remoteResource)
 				.withValue(entryColumnETag(), remoteResource.getETag())
 				.withYieldAllowed(true)
 				.build());
 		
-		removeDataRows(localResource);
-		addDataRows(remoteResource, localResource.getLocalID(), -1);
+		updateDataRows(localResource, remoteResource);
+	}
+
+	/* only updates the ETag of an entry whose content is known to be unchanged */
+	public void updateETag(Resource remoteResource, long localID) {
+		beginResource();
+		pendingOperations.add(ContentProviderOperation
+				.newUpdate(ContentUris.withAppendedId(entriesURI(), localID))
+				.withValue(entryColumnETag(), remoteResource.getETag())
+				.build());
+		pendingStateChanges.add(SyncStateStore.Change.put(remoteResource.getName(), remoteResource.getETag(), localID, remoteResource.getContentHash()));
 	}
 
 	public void delete(Resource resource) {
+		beginResource();
 		pendingOperations.add(ContentProviderOperation
 				.newDelete(ContentUris.withAppendedId(entriesURI(), resource.getLocalID()))
 				.withYieldAllowed(true)
 				.build());
+		if (resource.getName() != null)
+			pendingStateChanges.add(SyncStateStore.Change.remove(resource.getName()));
 	}
 
-	public abstract void deleteAllExceptRemoteNames(Resource[] remoteResources);
-	
 	public void clearDirty(Resource resource) {
+		beginResource();
 		pendingOperations.add(ContentProviderOperation
 				.newUpdate(ContentUris.withAppendedId(entriesURI(), resource.getLocalID()))
 				.withValue(entryColumnDirty(), 0)
 				.build());
+		if (resource.getName() != null)
+			pendingStateChanges.add(SyncStateStore.Change.touch(resource.getName(), resource.getLocalID()));
 	}
 
 	public void commit() throws LocalStorageException {
 		if (!pendingOperations.isEmpty())
 			try {
 				Log.d(TAG, "Committing " + pendingOperations.size() + " operations");
-				providerClient.applyBatch(pendingOperations);
-				pendingOperations.clear();
+				if (syncState != null && !pendingStateChanges.isEmpty())
+					syncState.beginUpdate(syncStateKey);
+				Tracer.Span span = tracer.start("commit").attr("operations", pendingOperations.size());
+				ContentProviderResult[] results;
+				try {
+					results = applyBatches();
+				} finally {
+					span.end();
+				}
+				clearPendingOperations();
+				applyStateChanges(pendingStateChanges, results);
 			} catch (RemoteException ex) {
 				throw new LocalStorageException(ex);
 			} catch(OperationApplicationException ex) {
 				throw new LocalStorageException(ex);
+			} finally {
+				pendingStateChanges.clear();
 			}
+		else if (!pendingStateChanges.isEmpty()) {
+			applyStateChanges(pendingStateChanges, null);
+			pendingStateChanges.clear();
+		}
 	}
 
 	
 	// helpers
 	
+	/**
+	 * Applies pendingOperations in batches whose estimated parcel size doesn't exceed maxBatchSize.
+	 * Batches are split at resource boundaries, so every resource is changed atomically;
+	 * back-references are adjusted to the batch. If a batch is still too large for the binder
+	 * (TransactionTooLargeException), the remaining operations are sent in smaller batches.
+	 * If a batch fails, the operations of the batches which have already been applied are
+	 * removed from pendingOperations, so that they're not applied again by the next commit().
+	 * @return	results of all operations (same indices as pendingOperations)
+	 */
+	private ContentProviderResult[] applyBatches() throws RemoteException, OperationApplicationException {
+		final int count = pendingOperations.size();
+		
+		// estimated parcel size of operations [0, i)
+		long[] offsets = new long[count + 1];
+		for (int i = 0; i < count; i++) {
+			Parcel parcel = Parcel.obtain();
+			try {
+				pendingOperations.get(i).writeToParcel(parcel, 0);
+				offsets[i + 1] = offsets[i] + parcel.dataSize();
+			} finally {
+				parcel.recycle();
+			}
+		}
+		
+		ContentProviderResult[] results = new ContentProviderResult[count];
+		long limit = maxBatchSize;
+		int start = 0;
+		try {
+			while (start < count) {
+				// at least one resource, then as many resources as fit into the limit
+				int end = nextResourceStart(start);
+				while (end < count) {
+					int next = nextResourceStart(end);
+					if (offsets[next] - offsets[start] > limit)
+						break;
+					end = next;
+				}
+			
+				if (start > 0 || end < count)
+					Log.d(TAG, "Committing operations " + start + "-" + (end - 1) + " (" + (offsets[end] - offsets[start]) + " bytes)");
+				try {
+					ContentProviderResult[] batchResults = providerClient.applyBatch(buildBatch(start, end));
+					System.arraycopy(batchResults, 0, results, start, end - start);
+					start = end;
+				} catch (RemoteException e) {
+					// TransactionTooLargeException is available since API level 15
+					if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1 || !(e instanceof TransactionTooLargeException) ||
+						end == nextResourceStart(start))		// single resource, can't be split
+						throw e;
+					limit = (offsets[end] - offsets[start]) / 2;
+					Log.w(TAG, "Batch of " + (end - start) + " operations too large, reducing batch size to " + limit + " bytes");
+				}
+			}
+		} finally {
+			if (start > 0 && start < count)
+				dropAppliedOperations(start);
+		}
+		return results;
+	}
+	
+	private int nextResourceStart(int idx) {
+		int next = resourceStarts.nextSetBit(idx + 1);
+		return (next == -1 || next > pendingOperations.size()) ? pendingOperations.size() : next;
+	}
+	
+	/* operations [start, end) with back-references relative to start */
+	private ArrayList<ContentProviderOperation> buildBatch(int start, int end) {
+		ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>(end - start);
+		for (int i = start; i < end; i++) {
+			BackReference backReference = backReferences.get(i);
+			if (backReference != null)
+				batch.add(backReference.builder.withValueBackReference(backReference.column, backReference.index - start).build());
+			else
+				batch.add(pendingOperations.get(i));
+		}
+		return batch;
+	}
+	
+	/* removes the operations [0, applied) which have been committed by a partially failed applyBatches() */
+	private void dropAppliedOperations(int applied) {
+		Log.w(TAG, "Commit failed after " + applied + " of " + pendingOperations.size() + " operations, keeping the others");
+		pendingOperations.subList(0, applied).clear();
+		resourceStarts = resourceStarts.get(applied, Math.max(applied, resourceStarts.length()));
+		
+		Map<Integer, BackReference> remaining = new HashMap<Integer, BackReference>();
+		for (Map.Entry<Integer, BackReference> entry : backReferences.entrySet())
+			if (entry.getKey() >= applied) {
+				BackReference backReference = entry.getValue();
+				remaining.put(entry.getKey() - applied, new BackReference(backReference.builder, backReference.column, backReference.index - applied));
+			}
+		backReferences = remaining;
+	}
+	
+	private void clearPendingOperations() {
+		pendingOperations.clear();
+		resourceStarts.clear();
+		backReferences.clear();
+		unqueuedBackReferences.clear();
+	}
+	
+	private void applyStateChanges(List<SyncStateStore.Change> changes, ContentProviderResult[] results) {
+		if (changes.isEmpty())
+			return;
+		if (syncState != null)
+			syncState.apply(syncStateKey, changes, results);
+	}
+	
+	protected String remoteEntriesSelection() {
+		String where = entryColumnRemoteName() + " IS NOT NULL";
+		if (entryColumnParentID() != null)
+			where += " AND " + entryColumnParentID() + "=" + String.valueOf(getId());
+		return where;
+	}
+	
+	protected Set<Long> queryRemoteEntryIDs() throws LocalStorageException {
+		try {
+			@Cleanup Cursor cursor = providerClient.query(entriesURI(), new String[] { entryColumnID() },
+					remoteEntriesSelection(), null, null);
+			if (cursor == null)
+				throw new LocalStorageException("Couldn't query local entries");
+			Set<Long> ids = new HashSet<Long>(cursor.getCount());
+			while (cursor.moveToNext())
+				ids.add(cursor.getLong(0));
+			return ids;
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+	}
+	
+	protected SyncStateStore.Snapshot queryRemoteEntries() throws LocalStorageException {
+		try {
+			@Cleanup Cursor cursor = providerClient.query(entriesURI(),
+					new String[] { entryColumnID(), entryColumnRemoteName(), entryColumnETag() },
+					remoteEntriesSelection(), null, null);
+			if (cursor == null)
+				throw new LocalStorageException("Couldn't query local entries");
+			SyncStateStore.Snapshot entries = new SyncStateStore.Snapshot(cursor.getCount());
+			while (cursor.moveToNext())
+				entries.add(cursor.getString(1), cursor.getString(2), cursor.getLong(0), null);
+			entries.sort();
+			return entries;
+		} catch(RemoteException ex) {
+			throw new LocalStorageException(ex);
+		}
+	}
+	
 	protected Uri syncAdapterURI(Uri baseURI) {
 		return baseURI.buildUpon()
 				.appendQueryParameter(entryColumnAccountType(), account.type)
@@ -252,9 +628,11 @@ public abstract class LocalCollection<T extends Resource> {
 	
 	protected Builder newDataInsertBuilder(Uri dataUri, String refFieldName, long raw_ref_id, Integer backrefIdx) {
 		Builder builder = ContentProviderOperation.newInsert(syncAdapterURI(dataUri));
-		if (backrefIdx != -1)
+		if (backrefIdx != -1) {
+			// must be queued with queueOperation(), so that the back-reference can be adjusted when batches are split
+			unqueuedBackReferences.put(builder, new BackReference(builder, refFieldName, backrefIdx));
 			return builder.withValueBackReference(refFieldName, backrefIdx);
-		else
+		} else
 			return builder.withValue(refFieldName, raw_ref_id);
 	}
 	
@@ -265,4 +643,10 @@ public abstract class LocalCollection<T extends Resource> {
 	
 	protected abstract void addDataRows(Resource resource, long localID, int backrefIdx);
 	protected abstract void removeDataRows(Resource resource);
+	
+	/* replaces the data rows of an existing entry; may be overridden to keep unchanged rows */
+	protected void updateDataRows(Resource localResource, Resource remoteResource) throws LocalStorageException {
+		removeDataRows(localResource);
+		addDataRows(remoteResource, localResource.getLocalID(), -1);
+	}
 }
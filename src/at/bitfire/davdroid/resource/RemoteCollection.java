@@ -10,19 +10,26 @@
  ******************************************************************************/
 package at.bitfire.davdroid.resource;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
 
 import lombok.Cleanup;
 import lombok.Getter;
+import lombok.Setter;
 import net.fortuna.ical4j.model.ValidationException;
+
+import org.apache.commons.lang.StringUtils;
+
 import android.util.Log;
+import at.bitfire.davdroid.BufferPool;
+import at.bitfire.davdroid.ETagList;
+import at.bitfire.davdroid.Tracer;
 import at.bitfire.davdroid.webdav.DavException;
 import at.bitfire.davdroid.webdav.DavMultiget;
 import at.bitfire.davdroid.webdav.DavNoContentException;
@@ -35,6 +42,15 @@ public abstract class RemoteCollection<T extends Resource> {
 	private static final String TAG = "davdroid.RemoteCollection";
 	
 	@Getter WebDavResource collection;
+	
+	// members which couldn't be parsed by the last multiGet() (name -> error)
+	@Getter protected Map<String, String> invalidResources = new HashMap<String, String>();
+	
+	// raw entities of downloaded members, so that they can be parsed again without downloading (optional)
+	@Setter protected EntityCache entityCache;
+	
+	// trace of the current sync
+	protected Tracer tracer = Tracer.NONE;
 
 	abstract protected String memberContentType();
 	abstract protected DavMultiget.Type multiGetType();
@@ -43,6 +59,11 @@ public abstract class RemoteCollection<T extends Resource> {
 	public RemoteCollection(String baseURL, String user, String password, boolean preemptiveAuth) throws URISyntaxException {
 		collection = new WebDavResource(new URI(baseURL), user, password, preemptiveAuth, true);
 	}
+	
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+		collection.setTracer(tracer);
+	}
 
 	
 	/* collection operations */
@@ -57,54 +78,151 @@ public abstract class RemoteCollection<T extends Resource> {
 		return collection.getCTag();
 	}
 	
-	public Resource[] getMemberETags() throws IOException, DavException, HttpException {
-		collection.propfind(HttpPropfind.Mode.MEMBERS_ETAG);
-			
-		List<T> resources = new LinkedList<T>();
-		if (collection.getMembers() != null) {
-			for (WebDavResource member : collection.getMembers())
-				resources.add(newResourceSkeleton(member.getName(), member.getETag()));
+	/**
+	 * Fetches the CTags of the collections in a home set (for instance, all calendars in the
+	 * calendar home set) with a single Depth:1 PROPFIND on the home set instead of one request
+	 * per collection. getCTag() will then return the prefetched value without network access.
+	 * Collections which are not in the response (like nested or shared collections outside of
+	 * the home set) are queried individually as usual.
+	 */
+	public static void prefetchCTags(URI homeSet, Collection<? extends RemoteCollection<?>> remotes) {
+		if (remotes.size() < 2)		// a Depth:0 PROPFIND on the collection itself is cheaper
+			return;
+		
+		WebDavResource home = new WebDavResource(remotes.iterator().next().collection, homeSet.toString(), true);
+		try {
+			home.propfind(HttpPropfind.Mode.MEMBERS_CTAG);
+		} catch (IOException e) {
+			Log.w(TAG, "Couldn't fetch CTags of " + home.getLocation() + " members, querying them one by one", e);
+			return;
+		} catch (HttpException e) {
+			Log.w(TAG, "Couldn't fetch CTags of " + home.getLocation() + " members, querying them one by one", e);
+			return;
+		} catch (DavException e) {
+			Log.w(TAG, "Couldn't fetch CTags of " + home.getLocation() + " members, querying them one by one", e);
+			return;
+		}
+		if (home.getMembers() == null)
+			return;
+		
+		Map<String, WebDavResource> members = new HashMap<String, WebDavResource>();
+		for (WebDavResource member : home.getMembers())
+			members.put(StringUtils.removeEnd(member.getLocation().getRawPath(), "/"), member);
+		
+		for (RemoteCollection<?> remote : remotes) {
+			WebDavResource member = members.get(StringUtils.removeEnd(remote.collection.getLocation().getRawPath(), "/"));
+			if (member != null && member.getCTag() != null) {
+				Log.d(TAG, "Prefetched CTag of " + remote.collection.getLocation() + ": " + member.getCTag());
+				remote.collection.setCTag(member.getCTag());
+			}
 		}
-		return resources.toArray(new Resource[0]);
 	}
 	
-	@SuppressWarnings("unchecked")
+	public String getSyncToken() {
+		return collection.getSyncToken();
+	}
+	
+	/* creates resource skeletons for the given entries of a member listing */
+	public Resource[] getMembers(ETagList listing, int[] indexes, int count) {
+		Resource[] resources = new Resource[count];
+		for (int i = 0; i < count; i++)
+			resources[i] = newResourceSkeleton(listing.getName(indexes[i]), listing.getETag(indexes[i]));
+		return resources;
+	}
+	
+	/* returns the (name, ETag) list of all members, sorted by name */
+	public ETagList getMemberETags() throws IOException, DavException, HttpException {
+		return collection.propfindMemberETags();
+	}
+	
+	/**
+	 * Fetches the given members. Members whose content is in the entity cache (with the same ETag)
+	 * are parsed from there; the others are downloaded (with a single GET if there's only one).
+	 * Members which can't be parsed are ignored and listed in {@link #getInvalidResources()}.
+	 */
 	public Resource[] multiGet(Resource[] resources) throws IOException, DavException, HttpException {
-		try {
-			if (resources.length == 1)
-				return (T[]) new Resource[] { get(resources[0]) };
-			
-			Log.i(TAG, "Multi-getting " + resources.length + " remote resource(s)");
-			
-			LinkedList<String> names = new LinkedList<String>();
-			for (Resource resource : resources)
-				names.add(resource.getName());
-			
-			LinkedList<T> foundResources = new LinkedList<T>();
-			collection.multiGet(multiGetType(), names.toArray(new String[0]));
-			if (collection.getMembers() == null)
-				throw new DavNoContentException();
-			
-			for (WebDavResource member : collection.getMembers()) {
-				T resource = newResourceSkeleton(member.getName(), member.getETag());
-				try {
-					if (member.getContent() != null) {
-						@Cleanup InputStream is = new ByteArrayInputStream(member.getContent());
-						resource.parseEntity(is);
-						foundResources.add(resource);
-					} else
-						Log.e(TAG, "Ignoring entity without content");
-				} catch (InvalidResourceException e) {
-					Log.e(TAG, "Ignoring unparseable entity in multi-response", e);
-				}
+		invalidResources.clear();
+		LinkedList<Resource> foundResources = new LinkedList<Resource>();
+		
+		LinkedList<Resource> toDownload = new LinkedList<Resource>();
+		for (Resource resource : resources)
+			try {
+				Resource cached = getCached(resource.getName(), resource.getETag());
+				if (cached != null)
+					foundResources.add(cached);
+				else
+					toDownload.add(resource);
+			} catch (InvalidResourceException e) {
+				Log.e(TAG, "Ignoring unparseable cached entity", e);
+				invalidResources.put(resource.getName(), e.toString());
+			}
+		if (!foundResources.isEmpty())
+			Log.i(TAG, foundResources.size() + " resource(s) taken from entity cache");
+		if (toDownload.isEmpty())
+			return foundResources.toArray(new Resource[0]);
+		
+		if (toDownload.size() == 1) {
+			Resource resource = toDownload.getFirst();
+			try {
+				foundResources.add(get(resource));
+			} catch (InvalidResourceException e) {
+				Log.e(TAG, "Couldn't parse entity from GET", e);
+				invalidResources.put(resource.getName(), e.toString());
 			}
-			
 			return foundResources.toArray(new Resource[0]);
-		} catch (InvalidResourceException e) {
-			Log.e(TAG, "Couldn't parse entity from GET", e);
 		}
 		
-		return new Resource[0];
+		Log.i(TAG, "Multi-getting " + toDownload.size() + " remote resource(s)");
+		LinkedList<String> names = new LinkedList<String>();
+		for (Resource resource : toDownload)
+			names.add(resource.getName());
+		collection.multiGet(multiGetType(), names.toArray(new String[0]));
+		if (collection.getMembers() == null)
+			throw new DavNoContentException();
+		
+		@Cleanup("end") Tracer.Span span = tracer.start("parseEntities").attr("resources", collection.getMembers().size());
+		for (WebDavResource member : collection.getMembers()) {
+			T resource = newResourceSkeleton(member.getName(), member.getETag());
+			try {
+				InputStream is = member.getContentStream();
+				if (is != null) {
+					cache(member.getName(), member);
+					resource.parseEntity(is);
+					resource.setContentHash(member.getContentHash());
+					foundResources.add(resource);
+				} else
+					Log.e(TAG, "Ignoring entity without content");
+			} catch (InvalidResourceException e) {
+				Log.e(TAG, "Ignoring unparseable entity in multi-response", e);
+				invalidResources.put(member.getName(), e.toString());
+			} finally {
+				member.releaseContent();
+			}
+		}
+		
+		return foundResources.toArray(new Resource[0]);
+	}
+	
+	/**
+	 * Parses a member from the entity cache, without network access.
+	 * @return	the member, or null if its content isn't cached for the given ETag
+	 */
+	public T getCached(String name, String ETag) throws IOException, InvalidResourceException {
+		if (entityCache == null)
+			return null;
+		
+		BufferPool.Buffer content = entityCache.get(collection.getLocation().toString(), name, ETag);
+		if (content == null)
+			return null;
+		
+		try {
+			T resource = newResourceSkeleton(name, ETag);
+			resource.parseEntity(content.toInputStream());
+			resource.setContentHash(content.md5Hex());
+			return resource;
+		} finally {
+			content.release();
+		}
 	}
 	
 	
@@ -114,21 +232,50 @@ public abstract class RemoteCollection<T extends Resource> {
 		WebDavResource member = new WebDavResource(collection, resource.getName());
 		member.get();
 		
-		byte[] data = member.getContent();
-		if (data == null)
-			throw new DavNoContentException();
+		try {
+			InputStream is = member.getContentStream();
+			if (is == null)
+				throw new DavNoContentException();
+			
+			cache(resource.getName(), member);
+			resource.parseEntity(is);
+			resource.setContentHash(member.getContentHash());
+			return resource;
+		} finally {
+			member.releaseContent();
+		}
+	}
+	
+	/**
+	 * Downloads the current server version of a member. The returned resource carries the
+	 * ETag of the GET response (null if the server didn't send one).
+	 */
+	public T fetch(String name) throws IOException, HttpException, DavException, InvalidResourceException {
+		WebDavResource member = new WebDavResource(collection, name);
+		member.get();
 		
-		@Cleanup InputStream is = new ByteArrayInputStream(data);
-		resource.parseEntity(is);
-		return resource;
+		try {
+			InputStream is = member.getContentStream();
+			if (is == null)
+				throw new DavNoContentException();
+			
+			cache(name, member);
+			T resource = newResourceSkeleton(name, member.getETag());
+			resource.parseEntity(is);
+			resource.setContentHash(member.getContentHash());
+			return resource;
+		} finally {
+			member.releaseContent();
+		}
 	}
 	
 	public void add(Resource res) throws IOException, HttpException, ValidationException {
 		WebDavResource member = new WebDavResource(collection, res.getName(), res.getETag());
 		member.setContentType(memberContentType());
 		
-		@Cleanup ByteArrayOutputStream os = res.toEntity();
-		member.put(os.toByteArray(), PutMode.ADD_DONT_OVERWRITE);
+		@Cleanup("release") BufferPool.Buffer entity = BufferPool.obtain();
+		res.writeEntity(entity);
+		member.put(entity, PutMode.ADD_DONT_OVERWRITE);
 		
 		collection.invalidateCTag();
 	}
@@ -137,16 +284,30 @@ public abstract class RemoteCollection<T extends Resource> {
 		WebDavResource member = new WebDavResource(collection, res.getName(), res.getETag());
 		member.delete();
 		
+		if (entityCache != null)
+			entityCache.remove(collection.getLocation().toString(), res.getName());
 		collection.invalidateCTag();
 	}
 	
 	public void update(Resource res) throws IOException, HttpException, ValidationException {
-		WebDavResource member = new WebDavResource(collection, res.getName(), res.getETag());
+		update(res, res.getETag());
+	}
+	
+	/* updates the member only if its current ETag is the given one (any ETag if null) */
+	public void update(Resource res, String ETag) throws IOException, HttpException, ValidationException {
+		WebDavResource member = new WebDavResource(collection, res.getName(), ETag);
 		member.setContentType(memberContentType());
 		
-		@Cleanup ByteArrayOutputStream os = res.toEntity();
-		member.put(os.toByteArray(), PutMode.UPDATE_DONT_OVERWRITE);
+		@Cleanup("release") BufferPool.Buffer entity = BufferPool.obtain();
+		res.writeEntity(entity);
+		member.put(entity, PutMode.UPDATE_DONT_OVERWRITE);
 		
 		collection.invalidateCTag();
 	}
+	
+	/* stores the downloaded content of a member in the entity cache (if it has an ETag) */
+	private void cache(String name, WebDavResource member) {
+		if (entityCache != null)
+			entityCache.put(collection.getLocation().toString(), name, member.getETag(), member.getContentStream());
+	}
 }
@@ -13,17 +13,31 @@ package at.bitfire.davdroid.resource;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
 
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+
+import at.bitfire.davdroid.HashUtils;
+
 @ToString
 public abstract class Resource {
+	// properties which are set to the current time when the entity is written
+	private static final String[] VOLATILE_PROPERTIES = { "DTSTAMP:", "LAST-MODIFIED:", "REV:" };
+	
 	@Getter protected String name, ETag;
 	@Getter @Setter protected String uid;
 	@Getter protected long localID;
 	
+	// hash of the remote entity, set when downloaded
+	@Getter @Setter protected String contentHash;
+	
 	
 	public Resource(String name, String ETag) {
 		this.name = name;
@@ -40,5 +54,57 @@ public abstract class Resource {
 	public abstract void generateName();
 	
 	public abstract void parseEntity(InputStream entity) throws IOException, InvalidResourceException;
-	public abstract ByteArrayOutputStream toEntity() throws IOException;
+	public abstract void writeEntity(OutputStream os) throws IOException;
+	
+	/**
+	 * Three-way merge for conflict resolution: fields which haven't been changed locally (which are
+	 * the same as in the base version both versions have been derived from) are taken from the
+	 * other version; fields which have been changed locally are kept.
+	 */
+	public abstract void mergeFrom(Resource base, Resource other);
+	
+	public ByteArrayOutputStream toEntity() throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		writeEntity(os);
+		return os;
+	}
+	
+	/* hash of the entity without volatile properties, so that it only changes when the resource is changed */
+	public String fingerprint() throws IOException {
+		StringBuilder content = new StringBuilder();
+		for (String line : StringUtils.split(toEntity().toString("UTF-8"), "\r\n"))
+			if (!StringUtils.startsWithAny(line, VOLATILE_PROPERTIES))
+				content.append(line).append('\n');
+		return HashUtils.md5Hex(content.toString().getBytes("UTF-8"));
+	}
+	
+	
+	/* merge helpers */
+	
+	// the other value if the local one is unchanged from the base, otherwise the local one
+	protected <V> V merge(V local, V base, V other) {
+		return sameValue(local, base) ? other : local;
+	}
+	
+	protected <V> void mergeList(List<V> local, List<V> base, List<V> other) {
+		if (sameValue(local, base)) {
+			local.clear();
+			local.addAll(other);
+		}
+	}
+	
+	protected boolean sameValue(Object a, Object b) {
+		if (a instanceof String || b instanceof String)		// no difference between empty and missing text
+			return ObjectUtils.toString(a).equals(ObjectUtils.toString(b));
+		if (a instanceof List && b instanceof List) {
+			List<?> listA = (List<?>)a, listB = (List<?>)b;
+			if (listA.size() != listB.size())
+				return false;
+			for (Iterator<?> itA = listA.iterator(), itB = listB.iterator(); itA.hasNext(); )
+				if (!sameValue(itA.next(), itB.next()))
+					return false;
+			return true;
+		}
+		return ObjectUtils.equals(a, b);
+	}
 }
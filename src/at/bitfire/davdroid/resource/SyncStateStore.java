@@ -0,0 +1,565 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.Cleanup;
+import lombok.Getter;
+import lombok.ToString;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import at.bitfire.davdroid.ETagList;
+
+/**
+ * Private database which holds the synchronization state of all collections: CTag, sync-token
+ * and (remote name, ETag, local ID, content hash) of every entry. This allows change detection
+ * without querying the contacts/calendar providers for every remote resource.
+ *
+ * Changes are staged by {@link LocalCollection} together with its content provider operations
+ * and applied here only after the provider batch has been committed. A collection is marked
+ * inconsistent while a batch is in progress; if the process dies in between, the entries are
+ * rebuilt from the content provider on next use.
+ *
+ * Resources which fail to upload or to parse are quarantined with exponential backoff, so
+ * that they are not retried on every sync. They are retried at once when they have been changed
+ * (remote members: other ETag, local records: other {@link Resource#fingerprint()}).
+ */
+public class SyncStateStore extends SQLiteOpenHelper {
+	private static final String TAG = "davdroid.SyncStateStore";
+
+	private static final String DATABASE_NAME = "syncstate.db";
+	private static final int DATABASE_VERSION = 3;
+	
+	// quarantine backoff: 30 min, 1 h, 2 h, … up to 7 days; entries without failure for 30 days are removed
+	private static final long
+		QUARANTINE_MIN_BACKOFF = 30*60*1000,
+		QUARANTINE_MAX_BACKOFF = 7*24*3600*1000L,
+		QUARANTINE_EXPIRY = 30*24*3600*1000L;
+
+	private static final String
+		TABLE_COLLECTIONS = "collections",
+		TABLE_ENTRIES = "entries",
+		TABLE_CHECKPOINT_ENTRIES = "checkpoint_entries",
+		TABLE_QUARANTINE = "quarantine",
+
+		COLUMN_KEY = "key",
+		COLUMN_CTAG = "ctag",
+		COLUMN_SYNC_TOKEN = "sync_token",
+		COLUMN_CONSISTENT = "consistent",
+		COLUMN_CHECKPOINT_CTAG = "checkpoint_ctag",
+
+		COLUMN_COLLECTION = "collection",
+		COLUMN_NAME = "name",
+		COLUMN_ETAG = "etag",
+		COLUMN_LOCAL_ID = "local_id",
+		COLUMN_HASH = "hash",
+		COLUMN_APPLIED = "applied",
+		
+		COLUMN_ITEM = "item",
+		COLUMN_FAILURES = "failures",
+		COLUMN_LAST_ERROR = "last_error",
+		COLUMN_LAST_FAILURE = "last_failure",
+		COLUMN_RETRY_AFTER = "retry_after";
+
+	private static final String LOCAL_ITEM_PREFIX = "local:";
+
+	private static SyncStateStore instance;
+
+
+	/* local entries of a collection (name, ETag, local ID, content hash), sorted by name */
+	public static class Snapshot extends ETagList {
+		protected long[] localIDs;
+		protected String[] hashes;
+		
+		public Snapshot(int capacity) {
+			super(capacity);
+			localIDs = new long[names.length];
+			hashes = new String[names.length];
+		}
+		
+		public long getLocalID(int idx) {
+			return localIDs[idx];
+		}
+		
+		public String getHash(int idx) {
+			return hashes[idx];
+		}
+		
+		public void add(String name, String ETag, long localID, String hash) {
+			add(name, ETag);
+			localIDs[size - 1] = localID;
+			hashes[size - 1] = hash;
+		}
+		
+		@Override
+		protected void grow(int capacity) {
+			super.grow(capacity);
+			localIDs = ensureCapacity(localIDs);
+			hashes = ensureCapacity(hashes);
+		}
+		
+		@Override
+		protected void swap(int i, int j) {
+			super.swap(i, j);
+			
+			long localID = localIDs[i];
+			localIDs[i] = localIDs[j];
+			localIDs[j] = localID;
+			
+			String hash = hashes[i];
+			hashes[i] = hashes[j];
+			hashes[j] = hash;
+		}
+		
+		private long[] ensureCapacity(long[] array) {
+			if (array.length >= names.length)
+				return array;
+			long[] newArray = new long[names.length];
+			System.arraycopy(array, 0, newArray, 0, size);
+			return newArray;
+		}
+		
+		private String[] ensureCapacity(String[] array) {
+			if (array.length >= names.length)
+				return array;
+			String[] newArray = new String[names.length];
+			System.arraycopy(array, 0, newArray, 0, size);
+			return newArray;
+		}
+	}
+
+	/* remote listing of an interrupted sync */
+	public static class Checkpoint {
+		@Getter protected String CTag;
+		@Getter protected ETagList listing;
+		@Getter protected Set<String> applied = new HashSet<String>();
+		
+		Checkpoint(String CTag, int size) {
+			this.CTag = CTag;
+			listing = new ETagList(size);
+		}
+	}
+
+	/* quarantined resource: local ID (see localItem()) or remote name */
+	@ToString
+	public static class QuarantineEntry {
+		@Getter protected String item, ETag;
+		@Getter protected int failures;
+		@Getter protected String lastError;
+		@Getter protected long lastFailure, retryAfter;
+		
+		/* whether the resource (with the given ETag or fingerprint, if known) must not be retried yet */
+		public boolean isActive(String currentETag, long now) {
+			if (ETag != null && !ETag.equals(currentETag))		// changed in the meanwhile, try again
+				return false;
+			return now < retryAfter;
+		}
+		
+		public boolean isRemote() {
+			return !item.startsWith(LOCAL_ITEM_PREFIX);
+		}
+	}
+
+	/* a change of the sync state which is staged until the corresponding provider operations are committed */
+	public static class Change {
+		enum Type {
+			PUT,		// insert or replace entry
+			TOUCH,		// insert entry if not existing yet (uploaded resources)
+			REMOVE,		// remove entry
+			CTAG,
+			SYNC_TOKEN,
+			CHECKPOINT_APPLIED,	// mark entry of the checkpoint listing as applied
+			CHECKPOINT_CLEAR
+		}
+
+		final Type type;
+		final String name, ETag, hash;
+		final long localID;
+		final int resultIndex;			// index of the provider operation which inserts the entry (-1: use localID)
+
+		private Change(Type type, String name, String ETag, long localID, int resultIndex, String hash) {
+			this.type = type;
+			this.name = name;
+			this.ETag = ETag;
+			this.localID = localID;
+			this.resultIndex = resultIndex;
+			this.hash = hash;
+		}
+
+		public static Change put(String name, String ETag, long localID, String hash) {
+			return new Change(Type.PUT, name, ETag, localID, -1, hash);
+		}
+		public static Change insert(String name, String ETag, int resultIndex, String hash) {
+			return new Change(Type.PUT, name, ETag, -1, resultIndex, hash);
+		}
+		public static Change touch(String name, long localID) {
+			return new Change(Type.TOUCH, name, null, localID, -1, null);
+		}
+		public static Change remove(String name) {
+			return new Change(Type.REMOVE, name, null, -1, -1, null);
+		}
+		public static Change cTag(String cTag) {
+			return new Change(Type.CTAG, cTag, null, -1, -1, null);
+		}
+		public static Change syncToken(String syncToken) {
+			return new Change(Type.SYNC_TOKEN, syncToken, null, -1, -1, null);
+		}
+		public static Change checkpointApplied(String name) {
+			return new Change(Type.CHECKPOINT_APPLIED, name, null, -1, -1, null);
+		}
+		public static Change clearCheckpoint() {
+			return new Change(Type.CHECKPOINT_CLEAR, null, null, -1, -1, null);
+		}
+
+		long resolveLocalID(ContentProviderResult[] results) {
+			if (resultIndex != -1) {
+				if (results != null && resultIndex < results.length && results[resultIndex].uri != null)
+					return ContentUris.parseId(results[resultIndex].uri);
+				return -1;
+			}
+			return localID;
+		}
+	}
+
+
+	public static synchronized SyncStateStore getInstance(Context context) {
+		if (instance == null)
+			instance = new SyncStateStore(context.getApplicationContext());
+		return instance;
+	}
+
+	private SyncStateStore(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_COLLECTIONS + " (" +
+				COLUMN_KEY + " TEXT PRIMARY KEY, " +
+				COLUMN_CTAG + " TEXT, " +
+				COLUMN_SYNC_TOKEN + " TEXT, " +
+				COLUMN_CONSISTENT + " INTEGER NOT NULL DEFAULT 0)");
+		db.execSQL("CREATE TABLE " + TABLE_ENTRIES + " (" +
+				COLUMN_COLLECTION + " TEXT NOT NULL, " +
+				COLUMN_NAME + " TEXT NOT NULL, " +
+				COLUMN_ETAG + " TEXT, " +
+				COLUMN_LOCAL_ID + " INTEGER, " +
+				COLUMN_HASH + " TEXT, " +
+				"PRIMARY KEY (" + COLUMN_COLLECTION + ", " + COLUMN_NAME + "))");
+		createCheckpoints(db);
+		createQuarantine(db);
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		if (oldVersion < 2)
+			createCheckpoints(db);
+		if (oldVersion < 3)
+			createQuarantine(db);
+	}
+	
+	private void createCheckpoints(SQLiteDatabase db) {
+		db.execSQL("ALTER TABLE " + TABLE_COLLECTIONS + " ADD COLUMN " + COLUMN_CHECKPOINT_CTAG + " TEXT");
+		db.execSQL("CREATE TABLE " + TABLE_CHECKPOINT_ENTRIES + " (" +
+				COLUMN_COLLECTION + " TEXT NOT NULL, " +
+				COLUMN_NAME + " TEXT NOT NULL, " +
+				COLUMN_ETAG + " TEXT, " +
+				COLUMN_APPLIED + " INTEGER NOT NULL DEFAULT 0, " +
+				"PRIMARY KEY (" + COLUMN_COLLECTION + ", " + COLUMN_NAME + "))");
+	}
+	
+	private void createQuarantine(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_QUARANTINE + " (" +
+				COLUMN_COLLECTION + " TEXT NOT NULL, " +
+				COLUMN_ITEM + " TEXT NOT NULL, " +
+				COLUMN_ETAG + " TEXT, " +
+				COLUMN_FAILURES + " INTEGER NOT NULL, " +
+				COLUMN_LAST_ERROR + " TEXT, " +
+				COLUMN_LAST_FAILURE + " INTEGER NOT NULL, " +
+				COLUMN_RETRY_AFTER + " INTEGER NOT NULL, " +
+				"PRIMARY KEY (" + COLUMN_COLLECTION + ", " + COLUMN_ITEM + "))");
+	}
+
+
+	/* collection state */
+
+	public String getCTag(String key) {
+		return getCollectionValue(key, COLUMN_CTAG);
+	}
+
+	public String getSyncToken(String key) {
+		return getCollectionValue(key, COLUMN_SYNC_TOKEN);
+	}
+
+	public boolean isConsistent(String key) {
+		return "1".equals(getCollectionValue(key, COLUMN_CONSISTENT));
+	}
+
+	private String getCollectionValue(String key, String column) {
+		@Cleanup Cursor cursor = getReadableDatabase().query(TABLE_COLLECTIONS, new String[] { column },
+				COLUMN_KEY + "=?", new String[] { key }, null, null, null);
+		if (cursor.moveToNext())
+			return cursor.getString(0);
+		return null;
+	}
+
+	private void setCollectionValue(SQLiteDatabase db, String key, String column, Object value) {
+		ContentValues values = new ContentValues(2);
+		if (value == null)
+			values.putNull(column);
+		else
+			values.put(column, value.toString());
+		if (db.update(TABLE_COLLECTIONS, values, COLUMN_KEY + "=?", new String[] { key }) == 0) {
+			values.put(COLUMN_KEY, key);
+			db.insert(TABLE_COLLECTIONS, null, values);
+		}
+	}
+
+
+	/* entries */
+
+	public int countEntries(String key) {
+		return (int)DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_ENTRIES, COLUMN_COLLECTION + "=?", new String[] { key });
+	}
+
+	public Snapshot getEntries(String key) {
+		@Cleanup Cursor cursor = getReadableDatabase().query(TABLE_ENTRIES,
+				new String[] { COLUMN_NAME, COLUMN_ETAG, COLUMN_LOCAL_ID, COLUMN_HASH },
+				COLUMN_COLLECTION + "=?", new String[] { key }, null, null, null);
+		Snapshot entries = new Snapshot(cursor.getCount());
+		while (cursor.moveToNext())
+			entries.add(cursor.getString(0), cursor.getString(1), cursor.getLong(2), cursor.getString(3));
+		entries.sort();
+		return entries;
+	}
+
+	/* replaces all entries of a collection (after they have been read from the content provider) */
+	public void replaceEntries(String key, Snapshot entries) {
+		Log.i(TAG, "Rebuilding sync state of " + key + " (" + entries.size() + " entries)");
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_ENTRIES, COLUMN_COLLECTION + "=?", new String[] { key });
+			@Cleanup SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_ENTRIES +
+					" (" + COLUMN_COLLECTION + "," + COLUMN_NAME + "," + COLUMN_ETAG + "," + COLUMN_LOCAL_ID + "," + COLUMN_HASH + ") VALUES (?,?,?,?,?)");
+			for (int i = 0; i < entries.size(); i++)
+				bindAndExecute(insert, key, entries.getName(i), entries.getETag(i), entries.getLocalID(i), entries.getHash(i));
+			setCollectionValue(db, key, COLUMN_CONSISTENT, 1);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+
+	/* checkpoints */
+	
+	/**
+	 * Persists the remote listing of a collection, so that an interrupted sync can
+	 * be resumed without listing and comparing all members again.
+	 * @param cTag	CTag of the collection at the time of listing
+	 */
+	public void saveCheckpoint(String key, String cTag, ETagList listing) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			db.delete(TABLE_CHECKPOINT_ENTRIES, COLUMN_COLLECTION + "=?", new String[] { key });
+			@Cleanup SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_CHECKPOINT_ENTRIES +
+					" (" + COLUMN_COLLECTION + "," + COLUMN_NAME + "," + COLUMN_ETAG + ") VALUES (?,?,?)");
+			for (int i = 0; i < listing.size(); i++) {
+				insert.clearBindings();
+				insert.bindString(1, key);
+				insert.bindString(2, listing.getName(i));
+				if (listing.getETag(i) != null)
+					insert.bindString(3, listing.getETag(i));
+				insert.execute();
+			}
+			setCollectionValue(db, key, COLUMN_CHECKPOINT_CTAG, cTag);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/* returns the checkpoint of a collection, or null if there is none */
+	public Checkpoint getCheckpoint(String key) {
+		String cTag = getCollectionValue(key, COLUMN_CHECKPOINT_CTAG);
+		if (cTag == null)
+			return null;
+		
+		@Cleanup Cursor cursor = getReadableDatabase().query(TABLE_CHECKPOINT_ENTRIES,
+				new String[] { COLUMN_NAME, COLUMN_ETAG, COLUMN_APPLIED },
+				COLUMN_COLLECTION + "=?", new String[] { key }, null, null, null);
+		Checkpoint checkpoint = new Checkpoint(cTag, cursor.getCount());
+		while (cursor.moveToNext()) {
+			checkpoint.listing.add(cursor.getString(0), cursor.getString(1));
+			if (cursor.getInt(2) != 0)
+				checkpoint.applied.add(cursor.getString(0));
+		}
+		checkpoint.listing.sort();
+		return checkpoint;
+	}
+	
+	
+	/* quarantine */
+	
+	/* quarantine item of a local record (remote names are used as they are) */
+	public static String localItem(long localID) {
+		return LOCAL_ITEM_PREFIX + localID;
+	}
+	
+	/**
+	 * Records a failure of a resource. The resource is quarantined until its backoff has
+	 * expired; the backoff is doubled with every subsequent failure.
+	 * @param ETag	remote ETag of the failed resource; for local records, their {@link Resource#fingerprint()}
+	 */
+	public QuarantineEntry recordFailure(String key, String item, String ETag, String error, long now) {
+		SQLiteDatabase db = getWritableDatabase();
+		
+		QuarantineEntry entry = new QuarantineEntry();
+		entry.item = item;
+		entry.ETag = ETag;
+		entry.lastError = error;
+		entry.lastFailure = now;
+		entry.failures = 1 + (int)DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + COLUMN_FAILURES + "),0) FROM " + TABLE_QUARANTINE +
+				" WHERE " + COLUMN_COLLECTION + "=? AND " + COLUMN_ITEM + "=?", new String[] { key, item });
+		entry.retryAfter = now + (entry.failures > 20 ? QUARANTINE_MAX_BACKOFF :
+			Math.min(QUARANTINE_MIN_BACKOFF << (entry.failures - 1), QUARANTINE_MAX_BACKOFF));
+		
+		ContentValues values = new ContentValues(7);
+		values.put(COLUMN_COLLECTION, key);
+		values.put(COLUMN_ITEM, item);
+		values.put(COLUMN_ETAG, ETag);
+		values.put(COLUMN_FAILURES, entry.failures);
+		values.put(COLUMN_LAST_ERROR, error);
+		values.put(COLUMN_LAST_FAILURE, now);
+		values.put(COLUMN_RETRY_AFTER, entry.retryAfter);
+		db.insertWithOnConflict(TABLE_QUARANTINE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+		return entry;
+	}
+	
+	/* removes a resource from the quarantine after it has been processed successfully */
+	public void clearFailure(String key, String item) {
+		getWritableDatabase().delete(TABLE_QUARANTINE, COLUMN_COLLECTION + "=? AND " + COLUMN_ITEM + "=?", new String[] { key, item });
+	}
+	
+	/**
+	 * Returns all quarantined resources of a collection (item -> entry), including those whose
+	 * backoff has already expired. Entries which haven't failed for a long time are removed.
+	 */
+	public Map<String, QuarantineEntry> getQuarantine(String key, long now) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.delete(TABLE_QUARANTINE, COLUMN_COLLECTION + "=? AND " + COLUMN_LAST_FAILURE + "<?",
+				new String[] { key, String.valueOf(now - QUARANTINE_EXPIRY) });
+		
+		@Cleanup Cursor cursor = db.query(TABLE_QUARANTINE,
+				new String[] { COLUMN_ITEM, COLUMN_ETAG, COLUMN_FAILURES, COLUMN_LAST_ERROR, COLUMN_LAST_FAILURE, COLUMN_RETRY_AFTER },
+				COLUMN_COLLECTION + "=?", new String[] { key }, null, null, null);
+		Map<String, QuarantineEntry> entries = new HashMap<String, QuarantineEntry>(cursor.getCount());
+		while (cursor.moveToNext()) {
+			QuarantineEntry entry = new QuarantineEntry();
+			entry.item = cursor.getString(0);
+			entry.ETag = cursor.getString(1);
+			entry.failures = cursor.getInt(2);
+			entry.lastError = cursor.getString(3);
+			entry.lastFailure = cursor.getLong(4);
+			entry.retryAfter = cursor.getLong(5);
+			entries.put(entry.item, entry);
+		}
+		return entries;
+	}
+	
+	
+	/* staged changes */
+
+	/* must be called before the content provider operations corresponding to staged changes are committed */
+	public void beginUpdate(String key) {
+		setCollectionValue(getWritableDatabase(), key, COLUMN_CONSISTENT, 0);
+	}
+
+	/**
+	 * Applies staged changes after the corresponding provider operations have been committed successfully
+	 * and marks the collection as consistent again.
+	 * @param results	results of the provider batch (used for local IDs of inserted entries), may be null
+	 */
+	public void apply(String key, List<Change> changes, ContentProviderResult[] results) {
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			@Cleanup SQLiteStatement
+				put = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_ENTRIES +
+						" (" + COLUMN_COLLECTION + "," + COLUMN_NAME + "," + COLUMN_ETAG + "," + COLUMN_LOCAL_ID + "," + COLUMN_HASH + ") VALUES (?,?,?,?,?)"),
+				touch = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_ENTRIES +
+						" (" + COLUMN_COLLECTION + "," + COLUMN_NAME + "," + COLUMN_ETAG + "," + COLUMN_LOCAL_ID + "," + COLUMN_HASH + ") VALUES (?,?,?,?,?)"),
+				applied = db.compileStatement("UPDATE " + TABLE_CHECKPOINT_ENTRIES + " SET " + COLUMN_APPLIED + "=1 WHERE " +
+						COLUMN_COLLECTION + "=? AND " + COLUMN_NAME + "=?");
+
+			for (Change change : changes)
+				switch (change.type) {
+				case PUT:
+					bindAndExecute(put, key, change.name, change.ETag, change.resolveLocalID(results), change.hash);
+					break;
+				case TOUCH:
+					bindAndExecute(touch, key, change.name, null, change.localID, null);
+					break;
+				case REMOVE:
+					db.delete(TABLE_ENTRIES, COLUMN_COLLECTION + "=? AND " + COLUMN_NAME + "=?", new String[] { key, change.name });
+					break;
+				case CTAG:
+					setCollectionValue(db, key, COLUMN_CTAG, change.name);
+					break;
+				case SYNC_TOKEN:
+					setCollectionValue(db, key, COLUMN_SYNC_TOKEN, change.name);
+					break;
+				case CHECKPOINT_APPLIED:
+					applied.clearBindings();
+					applied.bindString(1, key);
+					applied.bindString(2, change.name);
+					applied.execute();
+					break;
+				case CHECKPOINT_CLEAR:
+					db.delete(TABLE_CHECKPOINT_ENTRIES, COLUMN_COLLECTION + "=?", new String[] { key });
+					setCollectionValue(db, key, COLUMN_CHECKPOINT_CTAG, null);
+					break;
+				}
+
+			setCollectionValue(db, key, COLUMN_CONSISTENT, 1);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private static void bindAndExecute(SQLiteStatement statement, String key, String name, String ETag, long localID, String hash) {
+		statement.clearBindings();
+		statement.bindString(1, key);
+		statement.bindString(2, name);
+		if (ETag != null)
+			statement.bindString(3, ETag);
+		statement.bindLong(4, localID);
+		if (hash != null)
+			statement.bindString(5, hash);
+		statement.execute();
+	}
+}
@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.util.Locale;
+
+import lombok.Getter;
+import at.bitfire.davdroid.HashUtils;
+
+/**
+ * Cuts the first inline (Base64) PHOTO out of a vCard before it's parsed, so that the
+ * photo is neither decoded nor copied by the vCard parser. The photo is kept as Base64
+ * text together with its hash; it's only decoded when it's actually stored.
+ *
+ * vCard 2.1 and photos given by URL are left in the vCard.
+ */
+class VCardPhotoScanner {
+	private static final String PHOTO = "PHOTO";
+
+	/** vCard without the extracted PHOTO property */
+	@Getter private String vCard;
+	/** Base64-encoded photo (unfolded), or null if there's no inline photo */
+	@Getter private String photoData;
+	/** MD5 hash (hex) of photoData */
+	@Getter private String photoHash;
+
+
+	VCardPhotoScanner(String vCard) {
+		this.vCard = vCard;
+		if (vCard.indexOf("VERSION:2.1") == -1)
+			scan();
+	}
+
+
+	private void scan() {
+		int length = vCard.length();
+		for (int start = 0; start < length; start = nextLine(start)) {
+			if (!vCard.regionMatches(true, start, PHOTO, 0, PHOTO.length()) || start + PHOTO.length() >= length)
+				continue;
+			char delimiter = vCard.charAt(start + PHOTO.length());
+			if (delimiter != ';' && delimiter != ':')
+				continue;
+
+			// first PHOTO property found
+			int end = nextLine(start),
+				colon = vCard.indexOf(':', start);
+			if (colon == -1 || colon >= end)
+				return;
+
+			String params = unfold(vCard.substring(start + PHOTO.length(), colon)).toUpperCase(Locale.US),
+				value = unfold(vCard.substring(colon + 1, end));
+			if (params.contains("ENCODING=B"))		// ENCODING=b (3.0) and ENCODING=BASE64
+				photoData = value;
+			else if (value.regionMatches(true, 0, "data:", 0, 5)) {
+				// data URI (4.0)
+				int comma = value.indexOf(',');
+				if (comma != -1 && value.substring(0, comma).toLowerCase(Locale.US).endsWith(";base64"))
+					photoData = value.substring(comma + 1);
+			}
+
+			if (photoData != null) {
+				photoHash = HashUtils.md5Hex(photoData);		// Base64 is ASCII, so UTF-8 doesn't change the hash
+				vCard = vCard.substring(0, start) + vCard.substring(end);
+			}
+			return;
+		}
+	}
+
+	/* returns the start of the next (unfolded) content line */
+	private int nextLine(int pos) {
+		int length = vCard.length();
+		while (true) {
+			int eol = vCard.indexOf('\n', pos);
+			if (eol == -1)
+				return length;
+			pos = eol + 1;
+			if (pos >= length || (vCard.charAt(pos) != ' ' && vCard.charAt(pos) != '\t'))
+				return pos;
+		}
+	}
+
+	/* removes line breaks and folding */
+	private static String unfold(String s) {
+		StringBuilder sb = new StringBuilder(s.length());
+		boolean folding = false;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\r' || c == '\n')
+				folding = true;
+			else if (folding && (c == ' ' || c == '\t'))
+				folding = false;
+			else {
+				folding = false;
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+}
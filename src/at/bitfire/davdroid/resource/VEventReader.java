@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.resource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Set;
+
+import net.fortuna.ical4j.model.Escapable;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.ParameterFactoryImpl;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.PropertyFactoryImpl;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.TimeZone;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.component.VAlarm;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.parameter.TzId;
+import net.fortuna.ical4j.model.parameter.Value;
+import net.fortuna.ical4j.model.property.DateListProperty;
+import net.fortuna.ical4j.model.property.DateProperty;
+import net.fortuna.ical4j.model.property.XProperty;
+import net.fortuna.ical4j.util.Constants;
+import net.fortuna.ical4j.util.Strings;
+
+/**
+ * Reads the first VEVENT (with its VALARMs) of an iCalendar without CalendarBuilder: lines are
+ * read from the stream, unfolded and split by hand, VTIMEZONE and other components are skipped,
+ * and only the VEVENT properties used by {@link Event} are created. Reading stops after the
+ * first VEVENT. Properties and parameters are created and
+ * initialized exactly like CalendarBuilder does, so the resulting VEvent is the same.
+ *
+ * Time zones are taken from the time zone registry instead of the VTIMEZONE definitions.
+ * Everything this reader doesn't handle (unknown TZIDs, PERIOD values, unusual syntax) causes
+ * an UnsupportedException, and the caller has to use CalendarBuilder instead.
+ */
+public class VEventReader {
+
+	public static class UnsupportedException extends Exception {
+		private static final long serialVersionUID = 7585234361427556837L;
+
+		UnsupportedException(String message) {
+			super(message);
+		}
+	}
+
+	// VEVENT properties which are evaluated by Event
+	private static final Set<String> EVENT_PROPERTIES = new HashSet<String>(Arrays.asList(
+		Property.UID, Property.DTSTART, Property.DTEND, Property.DURATION,
+		Property.RRULE, Property.RDATE, Property.EXRULE, Property.EXDATE,
+		Property.SUMMARY, Property.LOCATION, Property.DESCRIPTION,
+		Property.STATUS, Property.TRANSP, Property.CLASS,
+		Property.ORGANIZER, Property.ATTENDEE
+	));
+
+	private final Reader reader;
+	private final TimeZoneRegistry tzRegistry;
+
+	// next raw (folded) line, null at the end of the input
+	private String nextRawLine;
+	private final StringBuilder lineBuffer = new StringBuilder(80);
+
+	// current line: name, parameters (name/value pairs) and value
+	private String name, value;
+	private final ArrayList<String> parameters = new ArrayList<String>();
+
+
+	private VEventReader(Reader reader, TimeZoneRegistry tzRegistry) {
+		this.reader = (reader instanceof BufferedReader) ? reader : new BufferedReader(reader);
+		this.tzRegistry = tzRegistry;
+	}
+
+	/**
+	 * @return	the first VEVENT of the iCalendar, or null if there's none
+	 * @throws UnsupportedException	if the iCalendar can't be read without CalendarBuilder
+	 */
+	public static VEvent read(Reader reader, TimeZoneRegistry tzRegistry) throws IOException, UnsupportedException {
+		VEventReader eventReader = new VEventReader(reader, tzRegistry);
+		eventReader.nextRawLine = eventReader.readRawLine();
+		return eventReader.readEvent();
+	}
+
+
+	private VEvent readEvent() throws IOException, UnsupportedException {
+		if (!nextLine() || !"BEGIN".equals(name) || !"VCALENDAR".equals(value))
+			throw new UnsupportedException("No VCALENDAR");
+
+		VEvent event = null;
+		VAlarm alarm = null;
+		LinkedList<String> components = new LinkedList<String>();
+		components.add("VCALENDAR");
+
+		while (nextLine()) {
+			if ("BEGIN".equals(name)) {
+				if (event == null && components.size() == 1 && "VEVENT".equals(value))
+					event = new VEvent(new PropertyList());
+				else if (event != null && components.size() == 2 && "VALARM".equals(value))
+					alarm = new VAlarm(new PropertyList());
+				components.addLast(value);
+
+			} else if ("END".equals(name)) {
+				if (!value.equals(components.peekLast()))
+					throw new UnsupportedException("Unbalanced END:" + value);
+				components.removeLast();
+
+				if (event != null && components.size() == 1)
+					// first VEVENT is complete, ignore the rest
+					return event;
+				if (alarm != null && components.size() == 2) {
+					event.getAlarms().add(alarm);
+					alarm = null;
+				}
+				if (components.isEmpty())
+					return null;
+
+			} else if (alarm != null && components.size() == 3)
+				alarm.getProperties().add(createProperty());
+			else if (event != null && components.size() == 2 && EVENT_PROPERTIES.contains(name))
+				event.getProperties().add(createProperty());
+		}
+		throw new UnsupportedException("Unexpected end of iCalendar");
+	}
+
+
+	/* reads and splits the next (unfolded) content line; returns false at the end of the input */
+	private boolean nextLine() throws IOException, UnsupportedException {
+		String line = nextRawLine;
+		if (line == null)
+			return false;
+		nextRawLine = readRawLine();
+
+		// continued in the next line?
+		StringBuilder folded = null;
+		while (nextRawLine != null && !nextRawLine.isEmpty() && (nextRawLine.charAt(0) == ' ' || nextRawLine.charAt(0) == '\t')) {
+			if (folded == null)
+				folded = new StringBuilder(line);
+			folded.append(nextRawLine, 1, nextRawLine.length());
+			nextRawLine = readRawLine();
+		}
+		if (folded != null)
+			line = folded.toString();
+
+		if (line.isEmpty()) {
+			if (nextRawLine == null)
+				return false;
+			throw new UnsupportedException("Empty line");
+		}
+		splitLine(line);
+		return true;
+	}
+
+	/* reads the next line (terminated by LF or CRLF) without unfolding; returns null at the end of the input */
+	private String readRawLine() throws IOException {
+		int c = reader.read();
+		if (c == -1)
+			return null;
+		lineBuffer.setLength(0);
+		while (c != -1 && c != '\n') {
+			lineBuffer.append((char)c);
+			c = reader.read();
+		}
+		int length = lineBuffer.length();
+		if (length > 0 && lineBuffer.charAt(length - 1) == '\r')
+			lineBuffer.setLength(length - 1);
+		return lineBuffer.toString();
+	}
+
+	private void splitLine(String line) throws UnsupportedException {
+		int length = line.length(), i = 0;
+		while (i < length && isNameChar(line.charAt(i)))
+			i++;
+		if (i == 0 || i == length)
+			throw new UnsupportedException("Invalid content line");
+		String rawName = line.substring(0, i);
+		name = rawName.toUpperCase(Locale.US);
+		if (("BEGIN".equals(name) || "END".equals(name)) && !name.equals(rawName))
+			// CalendarParserImpl only accepts upper-case BEGIN/END
+			throw new UnsupportedException("Lower-case " + name);
+
+		parameters.clear();
+		while (line.charAt(i) == ';') {
+			int start = ++i;
+			while (i < length && isNameChar(line.charAt(i)))
+				i++;
+			if (i == start || i == length || line.charAt(i) != '=')
+				throw new UnsupportedException("Invalid parameter");
+			String paramName = line.substring(start, i++);
+
+			// parameter value, may consist of quoted strings; quotes are passed through like CalendarParserImpl does
+			start = i;
+			boolean quoted = false;
+			for (; i < length; i++) {
+				char c = line.charAt(i);
+				if (c == '"')
+					quoted = !quoted;
+				else if (c == '\\' || c < 0x20)
+					throw new UnsupportedException("Unusual parameter value");
+				else if (!quoted && (c == ';' || c == ':'))
+					break;
+			}
+			if (i == length || quoted)
+				throw new UnsupportedException("Invalid parameter");
+			parameters.add(paramName.toUpperCase(Locale.US));
+			parameters.add(line.substring(start, i));
+		}
+		if (line.charAt(i) != ':')
+			throw new UnsupportedException("Invalid content line");
+
+		value = line.substring(i + 1);
+	}
+
+	private static boolean isNameChar(char c) {
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-';
+	}
+
+
+	/* creates the property of the current line like CalendarBuilder does */
+	private Property createProperty() throws UnsupportedException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x20)
+				throw new UnsupportedException("Unusual property value");
+		}
+
+		try {
+			Property property = PropertyFactoryImpl.getInstance().createProperty(name);
+			for (int i = 0; i < parameters.size(); i += 2) {
+				Parameter parameter = ParameterFactoryImpl.getInstance().createParameter(parameters.get(i), parameters.get(i + 1));
+				property.getParameters().add(parameter);
+
+				if (parameter instanceof TzId && !(property instanceof XProperty)) {
+					TimeZone timeZone = tzRegistry.getTimeZone(parameter.getValue());
+					if (timeZone == null)
+						throw new UnsupportedException("Unknown time zone " + parameter.getValue());
+					if (property instanceof DateProperty)
+						((DateProperty)property).setTimeZone(timeZone);
+					else if (property instanceof DateListProperty)
+						((DateListProperty)property).setTimeZone(timeZone);
+				} else if (Value.PERIOD.equals(parameter))
+					throw new UnsupportedException("PERIOD values");
+			}
+			property.setValue(property instanceof Escapable ? Strings.unescape(value) : value);
+			return Constants.forProperty(property);
+		} catch (UnsupportedException e) {
+			throw e;
+		} catch (Exception e) {
+			// let CalendarBuilder decide whether it's valid
+			throw new UnsupportedException("Couldn't create " + name + ": " + e.getMessage());
+		}
+	}
+}
@@ -90,6 +90,8 @@ public class AccountDetailsFragment extends Fragment implements TextWatcher {
 			userData.putString(Constants.ACCOUNT_KEY_BASE_URL, serverInfo.getBaseURL());
 			userData.putString(Constants.ACCOUNT_KEY_USERNAME, serverInfo.getUserName());
 			userData.putString(Constants.ACCOUNT_KEY_AUTH_PREEMPTIVE, Boolean.toString(serverInfo.isAuthPreemptive()));
+			if (serverInfo.getCalendarHomeSet() != null)
+				userData.putString(Constants.ACCOUNT_KEY_CALENDAR_HOMESET, serverInfo.getCalendarHomeSet());
 			
 			boolean syncContacts = false;
 			for (ServerInfo.ResourceInfo addressBook : serverInfo.getAddressBooks())
@@ -66,6 +66,11 @@ public class CalendarsSyncAdapterService extends Service {
 					
 					map.put(calendar, dav);
 				}
+				
+				// check all calendars for changes with one request (home set is unknown for accounts of old versions)
+				String homeSet = accountManager.getUserData(account, Constants.ACCOUNT_KEY_CALENDAR_HOMESET);
+				if (homeSet != null)
+					RemoteCollection.prefetchCTags(new URI(accountManager.getUserData(account, Constants.ACCOUNT_KEY_BASE_URL)).resolve(homeSet), map.values());
 				return map;
 			} catch (RemoteException ex) {
 				Log.e(TAG, "Couldn't find local calendars", ex);
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import java.io.IOException;
+
+import lombok.Getter;
+import net.fortuna.ical4j.model.ValidationException;
+import android.util.Log;
+import at.bitfire.davdroid.resource.InvalidResourceException;
+import at.bitfire.davdroid.resource.LocalCollection;
+import at.bitfire.davdroid.resource.LocalStorageException;
+import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.Resource;
+import at.bitfire.davdroid.webdav.DavException;
+import at.bitfire.davdroid.webdav.HttpException;
+import at.bitfire.davdroid.webdav.NotFoundException;
+import at.bitfire.davdroid.webdav.PreconditionFailedException;
+
+/**
+ * Resolves conflicts of locally changed resources which have been changed on the server, too
+ * (PUT with If-Match failed with 412 Precondition Failed). The server version is fetched, and
+ * depending on the policy
+ * <ul>
+ * <li>SERVER_WINS: the server version replaces the local one,</li>
+ * <li>CLIENT_WINS: the local version is uploaded again with the server's current ETag,</li>
+ * <li>MERGE: three-way merge (see {@link Resource#mergeFrom(Resource, Resource)}) with the version
+ *     the local changes are based on: fields which have been changed locally are kept, the others
+ *     are taken from the server version; the result is stored locally and uploaded.</li>
+ * </ul>
+ * The base version is the entity which has been downloaded with the local resource's ETag, taken
+ * from the entity cache. If it's not available anymore, the server version wins.
+ *
+ * Runs in the sync thread; local changes are only staged and committed by the caller.
+ */
+public class ConflictResolver {
+	private static final String TAG = "davdroid.ConflictResolver";
+
+	public enum Policy { SERVER_WINS, CLIENT_WINS, MERGE }
+	public static final Policy DEFAULT_POLICY = Policy.SERVER_WINS;
+
+	final LocalCollection<? extends Resource> local;
+	final RemoteCollection<? extends Resource> remote;
+	final Policy policy;
+
+	@Getter private int detected, resolved;
+
+
+	public ConflictResolver(LocalCollection<? extends Resource> local, RemoteCollection<? extends Resource> remote, Policy policy) {
+		this.local = local;
+		this.remote = remote;
+		this.policy = policy;
+	}
+
+	public int getUnresolved() {
+		return detected - resolved;
+	}
+
+
+	/**
+	 * Resolves the conflict of a locally changed resource.
+	 * @return	true if the conflict has been resolved (the local resource is not dirty anymore);
+	 * 			false if it couldn't be resolved (the local resource stays dirty)
+	 */
+	public boolean resolve(Resource resource) throws LocalStorageException, IOException, HttpException {
+		detected++;
+
+		Resource base = null, server = null;
+		if (policy == Policy.MERGE)		// before fetch(), which replaces the cached entity
+			try {
+				base = remote.getCached(resource.getName(), resource.getETag());
+			} catch (InvalidResourceException e) {
+				Log.w(TAG, "Couldn't parse base version of " + resource.getName(), e);
+			}
+
+		try {
+			server = remote.fetch(resource.getName());
+		} catch (NotFoundException e) {
+			Log.i(TAG, resource.getName() + " has been deleted on the server in the meanwhile");
+		} catch (DavException e) {
+			Log.e(TAG, "Couldn't fetch server version of " + resource.getName(), e);
+			return false;
+		} catch (InvalidResourceException e) {
+			Log.e(TAG, "Couldn't parse server version of " + resource.getName(), e);
+			return false;
+		}
+
+		Policy resolution = policy;
+		if (resolution == Policy.MERGE && server != null && base == null) {
+			Log.w(TAG, "Base version of " + resource.getName() + " not available for merging, server version wins");
+			resolution = Policy.SERVER_WINS;
+		}
+
+		Log.i(TAG, "Resolving conflict of " + resource.getName() + " (" + resolution + ")");
+		try {
+			if (server == null) {
+				if (resolution == Policy.SERVER_WINS)
+					local.delete(resource);
+				else {
+					remote.add(resource);
+					local.clearDirty(resource);
+				}
+
+			} else switch (resolution) {
+			case SERVER_WINS:
+				local.updateByRemoteName(server);
+				local.clearDirty(resource);
+				break;
+			case CLIENT_WINS:
+				remote.update(resource, server.getETag());
+				local.clearDirty(resource);
+				break;
+			case MERGE:
+				resource.mergeFrom(base, server);
+				remote.update(resource, server.getETag());
+				local.updateByRemoteName(resource);
+				local.clearDirty(resource);
+			}
+		} catch (PreconditionFailedException e) {
+			Log.i(TAG, resource.getName() + " has been changed on the server again, trying next time");
+			return false;
+		} catch (ValidationException e) {
+			Log.e(TAG, "Couldn't create entity for uploading: " + e.toString());
+			return false;
+		}
+
+		resolved++;
+		return true;
+	}
+}
@@ -10,6 +10,7 @@
  ******************************************************************************/
 package at.bitfire.davdroid.syncadapter;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
@@ -21,13 +22,17 @@ import android.app.Service;
 import android.content.ContentProviderClient;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SyncResult;
 import android.os.IBinder;
 import android.util.Log;
 import at.bitfire.davdroid.Constants;
 import at.bitfire.davdroid.resource.CardDavAddressBook;
 import at.bitfire.davdroid.resource.LocalAddressBook;
 import at.bitfire.davdroid.resource.LocalCollection;
+import at.bitfire.davdroid.resource.LocalStorageException;
 import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.webdav.DavException;
+import at.bitfire.davdroid.webdav.HttpException;
 
 public class ContactsSyncAdapterService extends Service {
 	private static ContactsSyncAdapter syncAdapter;
@@ -57,7 +62,8 @@ public class ContactsSyncAdapterService extends Service {
 				return null;
 			
 			try {
-				LocalCollection<?> database = new LocalAddressBook(account, provider, accountManager);
+				LocalAddressBook database = new LocalAddressBook(account, provider, accountManager);
+				database.setDeferPhotos(getPhotoMode(account) != PhotoSync.Mode.INLINE);
 				
 				URI uri = new URI(accountManager.getUserData(account, Constants.ACCOUNT_KEY_BASE_URL)).resolve(addressBookPath.replaceAll(" ", "%20"));
 				RemoteCollection<?> dav = new CardDavAddressBook(
@@ -76,5 +82,41 @@ public class ContactsSyncAdapterService extends Service {
 			
 			return null;
 		}
+		
+		@Override
+		protected void synchronize(Account account, SyncManager syncManager, LocalCollection<?> local, RemoteCollection<?> remote, boolean manualSync, SyncResult syncResult) throws LocalStorageException, IOException, HttpException, DavException {
+			LocalAddressBook addressBook = (LocalAddressBook)local;
+			if (!addressBook.isDeferPhotos()) {
+				super.synchronize(account, syncManager, local, remote, manualSync, syncResult);
+				return;
+			}
+			
+			super.synchronize(account, syncManager, local, remote, manualSync, syncResult);
+			
+			PhotoSync photoSync = new PhotoSync(addressBook, remote);
+			photoSync.writeReceived();
+			if (getPhotoMode(account) == PhotoSync.Mode.DEFERRED_UNMETERED && PhotoSync.isNetworkMetered(context))
+				Log.i(TAG, "Metered network, postponing photo sync");
+			else
+				try {
+					photoSync.fetch();
+				} catch (IOException ex) {
+					// contact data is already in sync; photos are tried again next time
+					syncResult.stats.numIoExceptions++;
+					Log.w(TAG, "Couldn't fetch contact photos", ex);
+				}
+			Log.i(TAG, "Wrote " + photoSync.getWritten() + " received and " + photoSync.getFetched() + " fetched contact photo(s)");
+		}
+		
+		private PhotoSync.Mode getPhotoMode(Account account) {
+			String mode = accountManager.getUserData(account, Constants.ACCOUNT_KEY_PHOTO_SYNC);
+			if (mode != null)
+				try {
+					return PhotoSync.Mode.valueOf(mode);
+				} catch (IllegalArgumentException e) {
+					Log.w(TAG, "Invalid photo sync mode: " + mode);
+				}
+			return PhotoSync.DEFAULT_MODE;
+		}
 	}
 }
@@ -26,11 +26,18 @@ import android.content.SyncResult;
 import android.os.Bundle;
 import android.provider.Settings;
 import android.util.Log;
+import at.bitfire.davdroid.BufferPool;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.Tracer;
+import at.bitfire.davdroid.resource.EntityCache;
 import at.bitfire.davdroid.resource.LocalCollection;
 import at.bitfire.davdroid.resource.LocalStorageException;
 import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.SyncStateStore;
 import at.bitfire.davdroid.webdav.DavException;
 import at.bitfire.davdroid.webdav.HttpException;
+import at.bitfire.davdroid.webdav.ServiceUnavailableException;
+import at.bitfire.davdroid.webdav.TlsSniSocketFactory;
 
 public abstract class DavSyncAdapter extends AbstractThreadedSyncAdapter {
 	private final static String TAG = "davdroid.DavSyncAdapter";
@@ -51,10 +58,17 @@ public abstract class DavSyncAdapter extends AbstractThreadedSyncAdapter {
 
 		this.context = context;
 		accountManager = AccountManager.get(context);
+		
+		TlsSniSocketFactory.initSessionCache(context);
 	}
 	
 	protected abstract Map<LocalCollection<?>, RemoteCollection<?>> getSyncPairs(Account account, ContentProviderClient provider);
 	
+	/* synchronizes one pair of collections; may be overridden to add passes before or after the sync */
+	protected void synchronize(Account account, SyncManager syncManager, LocalCollection<?> local, RemoteCollection<?> remote, boolean manualSync, SyncResult syncResult) throws LocalStorageException, IOException, HttpException, DavException {
+		syncManager.synchronize(manualSync, syncResult);
+	}
+	
 
 	@Override
 	public void onPerformSync(Account account, Bundle extras, String authority,	ContentProviderClient provider, SyncResult syncResult) {
@@ -63,18 +77,69 @@ public abstract class DavSyncAdapter extends AbstractThreadedSyncAdapter {
 		// set class loader for iCal4j ResourceLoader
 		Thread.currentThread().setContextClassLoader(getContext().getClassLoader());
 		
+		Tracer tracer = Tracer.begin();
+		Tracer.Span span = tracer.start("onPerformSync").attr("authority", authority);
+		try {
+			performSync(account, extras, authority, provider, syncResult, tracer);
+		} finally {
+			span.end();
+			tracer.finish(context);
+		}
+	}
+	
+	private void performSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult, Tracer tracer) {
 		Map<LocalCollection<?>, RemoteCollection<?>> syncCollections = getSyncPairs(account, provider);
 		if (syncCollections == null)
 			Log.i(TAG, "Nothing to synchronize");
 		else
 			try {
-				for (Map.Entry<LocalCollection<?>, RemoteCollection<?>> entry : syncCollections.entrySet())
-					new SyncManager(entry.getKey(), entry.getValue()).synchronize(extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL), syncResult);
+				SyncStateStore syncState = SyncStateStore.getInstance(context);
+				EntityCache entityCache = EntityCache.getInstance(context);
+				SyncIntervalScheduler scheduler = new SyncIntervalScheduler(context, account, authority);
+				String maxUploads = accountManager.getUserData(account, Constants.ACCOUNT_KEY_MAX_UPLOADS),
+					conflictPolicy = accountManager.getUserData(account, Constants.ACCOUNT_KEY_CONFLICT_POLICY);
+				for (Map.Entry<LocalCollection<?>, RemoteCollection<?>> entry : syncCollections.entrySet()) {
+					entry.getKey().setSyncState(syncState, account.name + " " + entry.getValue().getCollection().getLocation());
+					entry.getValue().setEntityCache(entityCache);
+					entry.getKey().setTracer(tracer);
+					entry.getValue().setTracer(tracer);
+					SyncManager syncManager = new SyncManager(entry.getKey(), entry.getValue());
+					syncManager.setTracer(tracer);
+					if (maxUploads != null)
+						try {
+							syncManager.setMaxConcurrentUploads(Integer.parseInt(maxUploads));
+						} catch (NumberFormatException e) {
+							Log.w(TAG, "Invalid number of concurrent uploads: " + maxUploads);
+						}
+					if (conflictPolicy != null)
+						try {
+							syncManager.setConflictPolicy(ConflictResolver.Policy.valueOf(conflictPolicy));
+						} catch (IllegalArgumentException e) {
+							Log.w(TAG, "Invalid conflict policy: " + conflictPolicy);
+						}
+					synchronize(account, syncManager, entry.getKey(), entry.getValue(), extras.containsKey(ContentResolver.SYNC_EXTRAS_MANUAL), syncResult);
+					scheduler.recordSync(entry.getValue().getCollection().getLocation().toString(), syncManager.isRemoteChanged());
+					Log.i(TAG, "Compression: " + entry.getValue().getCollection().getCompression().getStatistics());
+				}
+				scheduler.reschedule();
+				
+				Log.i(TAG, "Buffer pool: " + BufferPool.getStatistics());
+				BufferPool.resetStatistics();
+				Log.i(TAG, "TLS: " + TlsSniSocketFactory.getStatistics());
+				TlsSniSocketFactory.resetStatistics();
+				Log.i(TAG, "Entity cache: " + entityCache.getStatistics());
+				entityCache.resetStatistics();
 				
 			} catch (DavException ex) {
 				syncResult.stats.numParseExceptions++;
 				Log.e(TAG, "Invalid DAV response", ex);
 				
+			} catch (ServiceUnavailableException ex) {
+				Log.w(TAG, "Server temporarily unavailable: " + ex.getMessage());
+				syncResult.stats.numIoExceptions++;
+				if (ex.getRetryAfter() > 0)		// let the SyncManager wait as long as requested by the server
+					syncResult.delayUntil = ex.getRetryAfter()/1000;
+				
 			} catch (HttpException ex) {
 				if (ex.getCode() == HttpStatus.SC_UNAUTHORIZED) {
 					Log.e(TAG, "HTTP Unauthorized " + ex.getCode(), ex);
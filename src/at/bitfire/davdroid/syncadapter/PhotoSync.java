@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.Getter;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+import at.bitfire.davdroid.ArrayUtils;
+import at.bitfire.davdroid.resource.Contact;
+import at.bitfire.davdroid.resource.LocalAddressBook;
+import at.bitfire.davdroid.resource.LocalStorageException;
+import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.Resource;
+import at.bitfire.davdroid.webdav.DavException;
+import at.bitfire.davdroid.webdav.HttpException;
+
+/**
+ * Deferred contact photo synchronization. In the deferred modes, the address book sync only
+ * writes the contact data and remembers the hash of the server photo; this pass writes the
+ * photos afterwards. Photos which have been received by the address book sync are written
+ * without network access; the others (for instance, from an interrupted sync) are fetched
+ * in small chunks and limited per sync.
+ *
+ * Locally changed contacts are skipped: they keep their local photo, which is uploaded with
+ * the rest of the contact.
+ *
+ * DEFERRED_UNMETERED only postpones fetch() on metered networks. It doesn't save photo traffic
+ * of the address book sync itself: photos are part of the vCards, so changed contacts are
+ * downloaded with their photos anyway (and those are written by writeReceived()).
+ */
+public class PhotoSync {
+	private static final String TAG = "davdroid.PhotoSync";
+
+	public enum Mode { INLINE, DEFERRED, DEFERRED_UNMETERED }
+	public static final Mode DEFAULT_MODE = Mode.INLINE;
+
+	private static final int
+		MAX_MULTIGET_PHOTOS = 10,		// vCards with photos are large, so fetch only a few at once
+		MAX_PHOTOS_PER_SYNC = 50;
+
+	final LocalAddressBook local;
+	final RemoteCollection<?> remote;
+
+	@Getter private int written, fetched;
+
+
+	public PhotoSync(LocalAddressBook local, RemoteCollection<?> remote) {
+		this.local = local;
+		this.remote = remote;
+	}
+
+	/* writes the pending photos which have been received by the address book sync */
+	public void writeReceived() throws LocalStorageException {
+		for (Contact contact : local.findPendingPhotos(Integer.MAX_VALUE)) {
+			Contact received = local.takeReceivedPhoto(contact.getName());
+			if (received != null) {
+				local.updatePhoto(contact.getLocalID(), received);
+				written++;
+			}
+		}
+		local.commit();
+	}
+
+	/* fetches the other pending photos, at most MAX_PHOTOS_PER_SYNC per call */
+	public void fetch() throws LocalStorageException, IOException, HttpException, DavException {
+		Contact[] pending = local.findPendingPhotos(MAX_PHOTOS_PER_SYNC);
+		if (pending.length == 0)
+			return;
+		if (pending.length == MAX_PHOTOS_PER_SYNC)
+			Log.i(TAG, "More than " + MAX_PHOTOS_PER_SYNC + " pending photos, fetching the others next time");
+		Log.i(TAG, "Fetching " + pending.length + " pending contact photo(s)");
+
+		for (Contact[] contacts : ArrayUtils.partition(pending, MAX_MULTIGET_PHOTOS)) {
+			Map<String, Long> localIDs = new HashMap<String, Long>();
+			for (Contact contact : contacts)
+				localIDs.put(contact.getName(), contact.getLocalID());
+
+			for (Resource res : remote.multiGet(contacts)) {
+				Long localID = localIDs.get(res.getName());
+				if (localID != null) {
+					local.updatePhoto(localID, (Contact)res);
+					fetched++;
+				}
+			}
+			local.commit();
+		}
+	}
+
+
+	/* whether the active network may cost money (photo sync in DEFERRED_UNMETERED mode is postponed then) */
+	public static boolean isNetworkMetered(Context context) {
+		ConnectivityManager connectivity = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			return connectivity.isActiveNetworkMetered();
+
+		NetworkInfo network = connectivity.getActiveNetworkInfo();
+		return network == null ||
+			(network.getType() != ConnectivityManager.TYPE_WIFI && network.getType() != ConnectivityManager.TYPE_ETHERNET);
+	}
+}
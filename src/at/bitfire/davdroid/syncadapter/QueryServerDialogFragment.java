@@ -181,6 +181,7 @@ public class QueryServerDialogFragment extends DialogFragment implements LoaderC
 				if (serverInfo.isCalDAV()) {
 					WebDavResource homeSetCalendars = new WebDavResource(principal, pathCalendars, true);
 					homeSetCalendars.propfind(Mode.MEMBERS_COLLECTIONS);
+					serverInfo.setCalendarHomeSet(homeSetCalendars.getLocation().getRawPath());
 					
 					List<ServerInfo.ResourceInfo> calendars = new LinkedList<ServerInfo.ResourceInfo>();
 					if (homeSetCalendars.getMembers() != null)
@@ -29,6 +29,7 @@ public class ServerInfo implements Serializable {
 	private String errorMessage;
 	
 	private boolean calDAV, cardDAV;
+	private String calendarHomeSet;
 	private List<ResourceInfo>
 		addressBooks = new LinkedList<ResourceInfo>(),
 		calendars  = new LinkedList<ResourceInfo>();
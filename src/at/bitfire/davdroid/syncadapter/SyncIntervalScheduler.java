@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.syncadapter;
+
+import java.util.List;
+
+import android.accounts.Account;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.PeriodicSync;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * Adapts the periodic sync interval of an account/authority to how often its collections
+ * actually change. For every collection, the time of the last remote change and a moving
+ * average of the intervals between changes are remembered. Collections are polled about
+ * twice per expected change; when no change has been seen for longer than expected,
+ * the interval is stretched, and when changes resume, it is tightened quickly.
+ */
+public class SyncIntervalScheduler {
+	private static final String TAG = "davdroid.SyncIntervalScheduler";
+
+	private static final String PREFS_NAME = "sync_intervals";
+
+	protected static final long
+		MIN_INTERVAL = 15*60*1000,			// ms
+		MAX_INTERVAL = 24*60*60*1000,		// ms
+		SYSTEM_DEFAULT_PERIOD = 24*60*60;	// s, registered by Android for every syncable authority
+	protected static final float
+		SMOOTHING = 0.3f,					// weight of the most recent interval between two changes
+		MIN_ADJUSTMENT = 0.1f;				// don't reschedule for less than 10% difference
+
+	protected SharedPreferences prefs;
+	protected Account account;
+	protected String authority;
+
+	// results of the current sync run
+	protected long expectedChangeInterval = Long.MAX_VALUE;
+	protected boolean knownRate, changesSeen;
+
+
+	public SyncIntervalScheduler(Context context, Account account, String authority) {
+		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		this.account = account;
+		this.authority = authority;
+	}
+
+	/**
+	 * Records the result of a collection synchronization.
+	 * @param collection	identifies the collection (usually its URL)
+	 * @param changed		whether remote changes have been found
+	 */
+	public void recordSync(String collection, boolean changed) {
+		recordSync(collection, changed, System.currentTimeMillis());
+	}
+
+	protected void recordSync(String collection, boolean changed, long now) {
+		String	keyLastChange = key(collection, "last_change"),
+				keyMeanInterval = key(collection, "mean_interval");
+		long	lastChange = prefs.getLong(keyLastChange, 0),
+				meanInterval = prefs.getLong(keyMeanInterval, 0);
+
+		if (changed) {
+			meanInterval = nextMeanInterval(meanInterval, lastChange, now);
+			lastChange = now;
+			prefs.edit()
+				.putLong(keyLastChange, lastChange)
+				.putLong(keyMeanInterval, meanInterval)
+				.commit();
+			changesSeen = true;
+		}
+
+		if (meanInterval > 0) {
+			long expected = expectedInterval(meanInterval, lastChange, now);
+			Log.d(TAG, "Expecting changes in " + collection + " about every " + expected/1000 + " s");
+			expectedChangeInterval = Math.min(expectedChangeInterval, expected);
+			knownRate = true;
+		}
+	}
+
+	/**
+	 * Calculates the new periodic sync interval from the collections recorded in this run
+	 * and registers it, if it differs significantly from the current one. The interval is
+	 * not touched if the periodic sync has been set or removed by the user.
+	 */
+	public void reschedule() {
+		String keyInterval = key(null, "interval");
+		long current = prefs.getLong(keyInterval, 0);
+
+		List<PeriodicSync> syncs = ContentResolver.getPeriodicSyncs(account, authority);
+		long[] periods = new long[syncs.size()];
+		for (int i = 0; i < periods.length; i++)
+			periods[i] = syncs.get(i).period;
+		if (!isAdaptable(current, periods)) {
+			Log.i(TAG, "Sync interval of " + account.name + "/" + authority + " has been set by the user, not adapting it");
+			return;
+		}
+
+		long interval = calculateInterval(knownRate, expectedChangeInterval, changesSeen, current);
+		if (interval > 0 && (current == 0 || Math.abs(interval - current) > current*MIN_ADJUSTMENT)) {
+			Log.i(TAG, "Setting sync interval of " + account.name + "/" + authority + " to " + interval/1000 + " s");
+			ContentResolver.addPeriodicSync(account, authority, new Bundle(), interval/1000);
+			prefs.edit().putLong(keyInterval, interval).commit();
+		}
+	}
+
+
+	/* moving average of the intervals between changes, after a change at the given time */
+	public static long nextMeanInterval(long meanInterval, long lastChange, long now) {
+		if (lastChange == 0)
+			return meanInterval;
+		// don't let a single long pause dominate the average
+		long sample = Math.min(now - lastChange, 2*MAX_INTERVAL);
+		return (meanInterval == 0) ? sample : (long)(SMOOTHING*sample + (1 - SMOOTHING)*meanInterval);
+	}
+
+	public static long expectedInterval(long meanInterval, long lastChange, long now) {
+		// no change for longer than expected -> rate has probably dropped
+		return Math.max(meanInterval, now - lastChange);
+	}
+
+	/**
+	 * Calculates the sync interval (ms) from the results of a sync run.
+	 * @param current	interval that has been set last time (ms), 0 if none
+	 * @return			new interval, or -1 if there's not enough data yet
+	 */
+	public static long calculateInterval(boolean knownRate, long expectedChangeInterval, boolean changesSeen, long current) {
+		long interval;
+		if (knownRate)
+			interval = expectedChangeInterval/2;
+		else if (current > 0)
+			interval = current;
+		else
+			return -1;		// not enough data yet, keep system defaults
+		if (changesSeen && current > 0)
+			interval = Math.min(interval, current/2);
+		return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+	}
+
+	/**
+	 * Whether the periodic sync may be adapted: only if there is none yet or only the system
+	 * default (and we haven't set one before, otherwise the user has removed or changed it)
+	 * or if it's the one set by us.
+	 * @param ownInterval	interval that has been set by us (ms), 0 if none
+	 * @param periods		periods of the registered periodic syncs (s)
+	 */
+	public static boolean isAdaptable(long ownInterval, long[] periods) {
+		if (ownInterval == 0)
+			return periods.length == 0 || (periods.length == 1 && periods[0] == SYSTEM_DEFAULT_PERIOD);
+		if (periods.length == 0)
+			return false;
+		for (long period : periods)
+			if (period != ownInterval/1000)
+				return false;
+		return true;
+	}
+
+
+	private String key(String collection, String name) {
+		StringBuilder sb = new StringBuilder(account.name).append('|').append(authority);
+		if (collection != null)
+			sb.append('|').append(collection);
+		return sb.append('|').append(name).toString();
+	}
+}
@@ -8,45 +8,119 @@
 package at.bitfire.davdroid.syncadapter;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import lombok.Cleanup;
+import lombok.Getter;
+import lombok.Setter;
 import net.fortuna.ical4j.model.ValidationException;
+
+import org.apache.http.HttpStatus;
+
 import android.content.SyncResult;
 import android.util.Log;
 import at.bitfire.davdroid.ArrayUtils;
+import at.bitfire.davdroid.ETagList;
+import at.bitfire.davdroid.Tracer;
 import at.bitfire.davdroid.resource.LocalCollection;
 import at.bitfire.davdroid.resource.LocalStorageException;
 import at.bitfire.davdroid.resource.RecordNotFoundException;
 import at.bitfire.davdroid.resource.RemoteCollection;
 import at.bitfire.davdroid.resource.Resource;
+import at.bitfire.davdroid.resource.SyncStateStore;
 import at.bitfire.davdroid.webdav.DavException;
+import at.bitfire.davdroid.webdav.DavHttpClient;
 import at.bitfire.davdroid.webdav.HttpException;
 import at.bitfire.davdroid.webdav.NotFoundException;
 import at.bitfire.davdroid.webdav.PreconditionFailedException;
+import at.bitfire.davdroid.webdav.RetryPolicy;
 
 public class SyncManager {
 	private static final String TAG = "davdroid.SyncManager";
 	
 	private static final int MAX_MULTIGET_RESOURCES = 35;
+	private static final int MAX_PUSH_BATCH = 50;
+	
+	// initial import into an empty collection: bigger multi-gets, many inserts per commit
+	private static final int MAX_IMPORT_MULTIGET_RESOURCES = 100;
+	private static final int MAX_IMPORT_BATCH = 100;
+	
+	public static final int DEFAULT_CONCURRENT_UPLOADS = DavHttpClient.MAX_CONNECTIONS_PER_ROUTE;
 	
 	protected LocalCollection<? extends Resource> local;
 	protected RemoteCollection<? extends Resource> remote;
 	
+	// whether the last synchronize() has found changes on the server
+	@Getter private boolean remoteChanged;
+	
+	// max. number of simultaneous PUT/DELETE requests
+	@Getter private int maxConcurrentUploads = DEFAULT_CONCURRENT_UPLOADS;
+	// upload threads of the current synchronize(), shared by all push operations
+	private ExecutorService uploadExecutor;
+	
+	// how to resolve conflicts of locally changed resources which have been changed on the server, too
+	@Getter @Setter private ConflictResolver.Policy conflictPolicy = ConflictResolver.DEFAULT_POLICY;
+	private ConflictResolver conflictResolver;
+	
+	// trace of the current sync
+	@Setter private Tracer tracer = Tracer.NONE;
+	
+	// resources which have failed to upload/parse, and number of those skipped in the current sync
+	private Map<String, SyncStateStore.QuarantineEntry> quarantine;
+	private int skipped;
+	
 	
 	public SyncManager(LocalCollection<? extends Resource> local, RemoteCollection<? extends Resource> remote) {
 		this.local = local;
 		this.remote = remote;
 	}
 
+	public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+		this.maxConcurrentUploads = Math.max(1, Math.min(maxConcurrentUploads, DavHttpClient.MAX_CONNECTIONS_PER_ROUTE));
+	}
+	
 	
 	public void synchronize(boolean manualSync, SyncResult syncResult) throws LocalStorageException, IOException, HttpException, DavException {
+		@Cleanup("end") Tracer.Span span = tracer.start("synchronize").attr("collection", remote.getCollection().getLocation());
+		
+		quarantine = local.getQuarantine();
+		skipped = 0;
+		if (!quarantine.isEmpty()) {
+			Log.i(TAG, quarantine.size() + " resource(s) in quarantine");
+			for (SyncStateStore.QuarantineEntry entry : quarantine.values())
+				Log.d(TAG, entry.toString());
+		}
+		
 		// PHASE 1: push local changes to server
-		int	deletedRemotely = pushDeleted(),
-			addedRemotely = pushNew(),
+		conflictResolver = new ConflictResolver(local, remote, conflictPolicy);
+		int deletedRemotely, addedRemotely, updatedRemotely;
+		uploadExecutor = Executors.newFixedThreadPool(maxConcurrentUploads, new UploadThreadFactory());
+		try {
+			deletedRemotely = pushDeleted();
+			addedRemotely = pushNew();
 			updatedRemotely = pushDirty();
+		} finally {
+			uploadExecutor.shutdownNow();
+			uploadExecutor = null;
+		}
 		
 		syncResult.stats.numEntries = deletedRemotely + addedRemotely + updatedRemotely;
+		if (conflictResolver.getDetected() > 0) {
+			Log.i(TAG, "Resolved " + conflictResolver.getResolved() + " of " + conflictResolver.getDetected() + " conflict(s) (" + conflictPolicy + ")");
+			syncResult.stats.numConflictDetectedExceptions += conflictResolver.getUnresolved();
+		}
 		
 		// PHASE 2A: check if there's a reason to do a sync with remote (= forced sync or remote CTag changed)
 		boolean fetchCollection = syncResult.stats.numEntries > 0;
@@ -54,139 +128,452 @@ public class SyncManager {
 			Log.i(TAG, "Synchronization forced");
 			fetchCollection = true;
 		}
+		if (!fetchCollection && local.getSnapshot().size() == 0) {
+			// for instance, the data of the content provider has been cleared; the CTag alone wouldn't notice
+			Log.i(TAG, "No local resources, fetching remote resource list");
+			fetchCollection = true;
+		}
 		if (!fetchCollection) {
 			String	currentCTag = remote.getCTag(),
 					lastCTag = local.getCTag();
 			Log.d(TAG, "Last local CTag = " + lastCTag + "; current remote CTag = " + currentCTag);
 			if (currentCTag == null || !currentCTag.equals(lastCTag))
-				fetchCollection = true;
+				fetchCollection = remoteChanged = true;
 		}
+		if (!fetchCollection)
+			for (SyncStateStore.QuarantineEntry entry : quarantine.values())
+				if (entry.isRemote() && !entry.isActive(entry.getETag(), System.currentTimeMillis())) {
+					Log.i(TAG, "Quarantine of " + entry.getItem() + " has expired, trying again");
+					fetchCollection = true;
+					break;
+				}
 		
 		if (!fetchCollection) {
 			Log.i(TAG, "No local changes and CTags match, no need to sync");
+			syncResult.stats.numSkippedEntries += skipped;
 			return;
 		}
 		
 		// PHASE 2B: detect details of remote changes
-		Log.i(TAG, "Fetching remote resource list");
-		Set<Resource>	remotelyAdded = new HashSet<Resource>(),
-						remotelyUpdated = new HashSet<Resource>();
-		
-		Resource[] remoteResources = remote.getMemberETags();
-		for (Resource remoteResource : remoteResources) {
+		ETagList remoteList = null;
+		Set<String> alreadyApplied = new HashSet<String>();
+		if (syncResult.stats.numEntries == 0) {
+			// nothing has been pushed, so the remote listing of an interrupted sync is still valid if the CTag hasn't changed
+			SyncStateStore.Checkpoint checkpoint = local.getCheckpoint();
+			if (checkpoint != null && checkpoint.getCTag().equals(remote.getCTag())) {
+				Log.i(TAG, "Resuming interrupted sync, " + checkpoint.getApplied().size() + " of " + checkpoint.getListing().size() + " resource(s) already applied");
+				remoteList = checkpoint.getListing();
+				alreadyApplied = checkpoint.getApplied();
+			}
+		}
+		if (remoteList == null) {
+			Log.i(TAG, "Fetching remote resource list");
+			Tracer.Span listSpan = tracer.start("listMembers");
 			try {
-				Resource localResource = local.findByRemoteName(remoteResource.getName(), false);
-				if (localResource.getETag() == null || !localResource.getETag().equals(remoteResource.getETag()))
-					remotelyUpdated.add(remoteResource);
-			} catch(RecordNotFoundException e) {
-				remotelyAdded.add(remoteResource);
+				remoteList = remote.getMemberETags();
+			} finally {
+				listSpan.end();
 			}
+			listSpan.attr("members", remoteList.size());
+			local.saveCheckpoint(remote.getCTag(), remoteList);
 		}
 		
-		// PHASE 3: pull remote changes from server
-		syncResult.stats.numInserts = pullNew(remotelyAdded.toArray(new Resource[0]));
-		syncResult.stats.numUpdates = pullChanged(remotelyUpdated.toArray(new Resource[0]));
-		syncResult.stats.numEntries += syncResult.stats.numInserts + syncResult.stats.numUpdates;
+		// quarantined resources which have been removed from the server don't have to be retried
+		for (SyncStateStore.QuarantineEntry entry : new LinkedList<SyncStateStore.QuarantineEntry>(quarantine.values()))
+			if (entry.isRemote() && remoteList.indexOf(entry.getItem()) == -1)
+				release(entry.getItem());
 		
-		Log.i(TAG, "Removing non-dirty resources that are not present remotely anymore");
-		local.deleteAllExceptRemoteNames(remoteResources);
-		local.commit();
+		SyncStateStore.Snapshot localList = local.getSnapshot();
+		if (localList.size() == 0 && remoteList.size() > 0) {
+			// PHASE 3 (initial import): all remote resources are new, nothing to compare or remove
+			syncResult.stats.numInserts = importAll(remoteList, alreadyApplied);
+			syncResult.stats.numEntries += syncResult.stats.numInserts;
+		} else {
+			// both lists are sorted by name, so they can be compared in one pass
+			int	added[] = new int[remoteList.size()], nAdded = 0,
+				updated[] = new int[remoteList.size()], nUpdated = 0,
+				removed[] = new int[localList.size()], nRemoved = 0;
+			for (int r = 0, l = 0; r < remoteList.size() || l < localList.size(); ) {
+				int cmp;
+				if (r == remoteList.size())
+					cmp = 1;
+				else if (l == localList.size())
+					cmp = -1;
+				else
+					cmp = remoteList.getName(r).compareTo(localList.getName(l));
+				
+				if (cmp < 0) {				// only remote
+					if (!alreadyApplied.contains(remoteList.getName(r)) && !isQuarantined(remoteList.getName(r), remoteList.getETag(r)))
+						added[nAdded++] = r;
+					r++;
+				} else if (cmp > 0)			// only local
+					removed[nRemoved++] = l++;
+				else {						// both
+					String localETag = localList.getETag(l);
+					if ((localETag == null || !localETag.equals(remoteList.getETag(r))) && !alreadyApplied.contains(remoteList.getName(r)) &&
+						!isQuarantined(remoteList.getName(r), remoteList.getETag(r)))
+						updated[nUpdated++] = r;
+					r++;
+					l++;
+				}
+			}
+			
+			// PHASE 3: pull remote changes from server
+			syncResult.stats.numInserts = pullNew(remote.getMembers(remoteList, added, nAdded));
+			syncResult.stats.numUpdates = pullChanged(remote.getMembers(remoteList, updated, nUpdated));
+			syncResult.stats.numEntries += syncResult.stats.numInserts + syncResult.stats.numUpdates;
+			
+			Log.i(TAG, "Removing " + nRemoved + " resource(s) that are not present remotely anymore");
+			Tracer.Span removeSpan = tracer.start("removeLocal").attr("resources", nRemoved);
+			try {
+				for (int i = 0; i < nRemoved; i++) {
+					int idx = removed[i];
+					local.delete(local.newResource(localList.getLocalID(idx), localList.getName(idx), localList.getETag(idx)));
+				}
+				local.commit();
+			} finally {
+				removeSpan.end();
+			}
+			syncResult.stats.numDeletes = nRemoved;
+		}
+		
+		if (syncResult.stats.numInserts + syncResult.stats.numUpdates + syncResult.stats.numDeletes > 0)
+			remoteChanged = true;
+		syncResult.stats.numSkippedEntries += skipped;
 
 		// update collection CTag
 		Log.i(TAG, "Sync complete, fetching new CTag");
 		local.setCTag(remote.getCTag());
+		local.setSyncToken(remote.getSyncToken());
+		local.clearCheckpoint();
 		local.commit();
 	}
 	
 	
 	private int pushDeleted() throws LocalStorageException, IOException, HttpException {
-		int count = 0;
 		long[] deletedIDs = local.findDeleted();
-		
-		try {
-			Log.i(TAG, "Remotely removing " + deletedIDs.length + " deleted resource(s) (if not changed)");
-			for (long id : deletedIDs)
-				try {
-					Resource res = local.findById(id, false);
-					if (res.getName() != null)	// is this resource even present remotely?
-						try {
-							remote.delete(res);
-						} catch(NotFoundException e) {
-							Log.i(TAG, "Locally-deleted resource has already been removed from server");
-						} catch(PreconditionFailedException e) {
-							Log.i(TAG, "Locally-deleted resource has been changed on the server in the meanwhile");
-						}
-					
-					// always delete locally so that the record with the DELETED flag doesn't cause another deletion attempt
-					local.delete(res);
-					
-					count++;
-				} catch (RecordNotFoundException e) {
-					Log.wtf(TAG, "Couldn't read locally-deleted record", e);
-				}
-		} finally {
-			local.commit();
-		}
-		return count;
+		Log.i(TAG, "Remotely removing " + deletedIDs.length + " deleted resource(s) (if not changed)");
+		return push(PushOperation.DELETE, deletedIDs);
 	}
 	
 	private int pushNew() throws LocalStorageException, IOException, HttpException {
-		int count = 0;
 		long[] newIDs = local.findNew();
 		Log.i(TAG, "Uploading " + newIDs.length + " new resource(s) (if not existing)");
+		return push(PushOperation.ADD, newIDs);
+	}
+	
+	private int pushDirty() throws LocalStorageException, IOException, HttpException {
+		long[] dirtyIDs = local.findUpdated();
+		Log.i(TAG, "Uploading " + dirtyIDs.length + " modified resource(s) (if not changed)");
+		return push(PushOperation.UPDATE, dirtyIDs);
+	}
+	
+	/**
+	 * Sends the local changes to the server with up to maxConcurrentUploads requests in flight.
+	 * Local records are only read and changed by the sync thread; worker threads just do the
+	 * remote writes. Local changes (clearDirty/delete) are staged after the corresponding remote
+	 * operation has succeeded, and committed in batches.
+	 */
+	private int push(PushOperation operation, long[] ids) throws LocalStorageException, IOException, HttpException {
+		if (ids.length == 0)
+			return 0;
+		@Cleanup("end") Tracer.Span span = tracer.start("push").attr("operation", operation).attr("resources", ids.length);
+		
+		int count = 0, staged = 0, inFlight = 0;
+		CompletionService<Upload> uploads = new ExecutorCompletionService<Upload>(uploadExecutor);
 		try {
-			for (long id : newIDs)
+			for (int next = 0; next < ids.length || inFlight > 0; ) {
+				if (next < ids.length && inFlight < maxConcurrentUploads) {
+					// submit next resource
+					long id = ids[next++];
+					try {
+						Resource res = local.findById(id, operation != PushOperation.DELETE);
+						if (operation != PushOperation.DELETE && isQuarantined(res))
+							continue;
+						if (operation == PushOperation.DELETE && res.getName() == null) {
+							// not present remotely, only delete locally
+							local.delete(res);
+							count++;
+							staged++;
+						} else {
+							uploads.submit(new Upload(operation, res, span));
+							inFlight++;
+						}
+					} catch (RecordNotFoundException e) {
+						Log.wtf(TAG, "Couldn't read local record " + id, e);
+					}
+					continue;
+				}
+				
+				// wait for next finished upload
+				Upload upload;
 				try {
-					Resource res = local.findById(id, true);
-					remote.add(res);
-					local.clearDirty(res);
+					upload = uploads.take().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while uploading");
+				} catch (ExecutionException e) {
+					throw new RuntimeException(e.getCause());		// Upload.call() doesn't throw
+				}
+				inFlight--;
+				
+				if (upload.handleResult()) {
 					count++;
-				} catch(PreconditionFailedException e) {
-					Log.i(TAG, "Didn't overwrite existing resource with other content");
-				} catch (ValidationException e) {
-					Log.e(TAG, "Couldn't create entity for adding: " + e.toString());
-				} catch (RecordNotFoundException e) {
-					Log.wtf(TAG, "Couldn't read new record", e);
+					staged++;
+				}
+				
+				if (staged >= MAX_PUSH_BATCH) {
+					local.commit();
+					staged = 0;
 				}
+			}
 		} finally {
+			// after an error, the results of the other uploads are still staged so that they aren't sent again
+			finishUploads(uploads, inFlight);
 			local.commit();
 		}
 		return count;
 	}
 	
-	private int pushDirty() throws LocalStorageException, IOException, HttpException {
-		int count = 0;
-		long[] dirtyIDs = local.findUpdated();
-		Log.i(TAG, "Uploading " + dirtyIDs.length + " modified resource(s) (if not changed)");
-		try {
-			for (long id : dirtyIDs) {
-				try {
-					Resource res = local.findById(id, true);
-					remote.update(res);
-					local.clearDirty(res);
-					count++;
-				} catch(PreconditionFailedException e) {
+	/* waits for the remaining uploads of a failed push and stages the local changes of the successful ones */
+	private void finishUploads(CompletionService<Upload> uploads, int inFlight) {
+		for (; inFlight > 0; inFlight--)
+			try {
+				uploads.take().get().handleResult();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				Log.w(TAG, "Couldn't upload resource", e);
+			}
+	}
+	
+	
+	private enum PushOperation { ADD, UPDATE, DELETE }
+	
+	private class Upload implements Callable<Upload> {
+		final PushOperation operation;
+		final Resource resource;
+		final Tracer.Span pushSpan;
+		Exception exception;
+		
+		Upload(PushOperation operation, Resource resource, Tracer.Span pushSpan) {
+			this.operation = operation;
+			this.resource = resource;
+			this.pushSpan = pushSpan;
+		}
+		
+		/* runs in a worker thread: remote operation only */
+		@Override
+		public Upload call() {
+			@Cleanup("end") Tracer.Span span = pushSpan.child("upload").attr("resource", resource.getName());
+			try {
+				switch (operation) {
+				case ADD:
+					remote.add(resource);
+					break;
+				case UPDATE:
+					remote.update(resource);
+					break;
+				case DELETE:
+					remote.delete(resource);
+				}
+			} catch(Exception e) {
+				exception = e;
+			}
+			return this;
+		}
+		
+		/* runs in the sync thread: stages the local changes; returns true if the resource has been processed */
+		boolean handleResult() throws LocalStorageException, IOException, HttpException {
+			switch (operation) {
+			case DELETE:
+				if (exception instanceof NotFoundException)
+					Log.i(TAG, "Locally-deleted resource has already been removed from server");
+				else if (exception instanceof PreconditionFailedException)
+					Log.i(TAG, "Locally-deleted resource has been changed on the server in the meanwhile");
+				else
+					rethrow();
+				
+				// always delete locally so that the record with the DELETED flag doesn't cause another deletion attempt
+				local.delete(resource);
+				return true;
+				
+			default:
+				if (exception instanceof PreconditionFailedException) {
+					if (operation == PushOperation.ADD) {
+						Log.i(TAG, "Didn't overwrite existing resource with other content");
+						return false;
+					}
 					Log.i(TAG, "Locally changed resource has been changed on the server in the meanwhile");
-				} catch (ValidationException e) {
-					Log.e(TAG, "Couldn't create entity for updating: " + e.toString());
-				} catch (RecordNotFoundException e) {
-					Log.e(TAG, "Couldn't read dirty record", e);
+					return conflictResolver.resolve(resource);
+				} else if (isRecordError(exception)) {
+					Log.e(TAG, "Couldn't upload resource " + resource.getName() + ": " + exception.toString());
+					quarantine(SyncStateStore.localItem(resource.getLocalID()), fingerprint(resource), exception.toString());
+					return false;
 				}
+				rethrow();
+				
+				local.clearDirty(resource);
+				release(SyncStateStore.localItem(resource.getLocalID()));
+				return true;
 			}
-		} finally {
-			local.commit();
 		}
+		
+		/* whether an upload error concerns only this record, so that the other records can still be uploaded */
+		private boolean isRecordError(Exception exception) {
+			if (exception instanceof ValidationException || exception instanceof RuntimeException)
+				return true;		// couldn't create the entity
+			if (exception instanceof HttpException) {
+				HttpException httpException = (HttpException)exception;
+				switch (httpException.getCode()) {
+				case HttpStatus.SC_UNAUTHORIZED:
+				case HttpStatus.SC_NOT_FOUND:		// collection has gone away
+				case HttpStatus.SC_PROXY_AUTHENTICATION_REQUIRED:
+				case HttpStatus.SC_REQUEST_TIMEOUT:
+					return false;
+				}
+				// server rejects the content (400, 403, 415 …); 412 is handled by the caller, 429 is retried by WebDavResource
+				return httpException.isClientError() && !RetryPolicy.isTransient(httpException.getCode());
+			}
+			return false;
+		}
+		
+		private void rethrow() throws IOException, HttpException {
+			if (exception == null)
+				return;
+			if (exception instanceof IOException)
+				throw (IOException)exception;
+			if (exception instanceof HttpException)
+				throw (HttpException)exception;
+			if (exception instanceof RuntimeException)
+				throw (RuntimeException)exception;
+			throw new RuntimeException(exception);
+		}
+	}
+	
+	/* worker threads need the sync thread's class loader for the iCal4j ResourceLoader */
+	private static class UploadThreadFactory implements ThreadFactory {
+		final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "davdroid upload");
+			thread.setContextClassLoader(classLoader);
+			return thread;
+		}
+	}
+	
+	/**
+	 * Imports all members of the remote listing into the (empty) local collection without
+	 * any local lookups. The listing is multi-got in big chunks and inserted in big batches.
+	 * Applied resources are recorded in the checkpoint, so an interrupted import resumes
+	 * where it stopped; the CTag is only set after the import has completed.
+	 */
+	private int importAll(ETagList remoteList, Set<String> alreadyApplied) throws LocalStorageException, IOException, HttpException, DavException {
+		Log.i(TAG, "Local collection is empty, importing " + remoteList.size() + " remote resource(s)");
+		@Cleanup("end") Tracer.Span span = tracer.start("importAll").attr("resources", remoteList.size());
+		
+		int count = 0, staged = 0;
+		int chunk[] = new int[MAX_IMPORT_MULTIGET_RESOURCES], nChunk = 0;
+		for (int r = 0; r < remoteList.size(); r++) {
+			if (!alreadyApplied.contains(remoteList.getName(r)) && !isQuarantined(remoteList.getName(r), remoteList.getETag(r)))
+				chunk[nChunk++] = r;
+			if (nChunk == 0 || (nChunk < chunk.length && r < remoteList.size() - 1))
+				continue;
+			
+			for (Resource res : multiGet(remote.getMembers(remoteList, chunk, nChunk))) {
+				local.add(res);
+				local.checkpointApplied(res.getName());
+				count++;
+				if (++staged >= MAX_IMPORT_BATCH) {
+					local.commit();
+					staged = 0;
+				}
+			}
+			nChunk = 0;
+		}
+		local.commit();
 		return count;
 	}
 	
+	/* multi-gets resources; those which can't be parsed are quarantined */
+	private Resource[] multiGet(Resource[] resources) throws IOException, HttpException, DavException {
+		Resource[] found = remote.multiGet(resources);
+		if (!remote.getInvalidResources().isEmpty())
+			for (Resource res : resources) {
+				String error = remote.getInvalidResources().get(res.getName());
+				if (error != null)
+					quarantine(res.getName(), res.getETag(), error);
+			}
+		for (Resource res : found)
+			release(res.getName());
+		return found;
+	}
+	
+	
+	/* quarantine */
+	
+	private boolean isQuarantined(String item, String ETag) {
+		SyncStateStore.QuarantineEntry entry = quarantine.get(item);
+		if (entry != null && entry.isActive(ETag, System.currentTimeMillis())) {
+			Log.d(TAG, "Skipping quarantined " + item + " until " + new Date(entry.getRetryAfter()));
+			skipped++;
+			return true;
+		}
+		return false;
+	}
+	
+	/* local records are released from the quarantine as soon as they're changed locally */
+	private boolean isQuarantined(Resource record) {
+		String item = SyncStateStore.localItem(record.getLocalID());
+		SyncStateStore.QuarantineEntry entry = quarantine.get(item);
+		if (entry == null)
+			return false;
+		
+		String fingerprint = fingerprint(record);
+		if (entry.getETag() != null && !entry.getETag().equals(fingerprint)) {
+			Log.i(TAG, item + " has been changed locally");
+			release(item);
+			return false;
+		}
+		return isQuarantined(item, fingerprint);
+	}
+	
+	private static String fingerprint(Resource record) {
+		try {
+			return record.fingerprint();
+		} catch (Exception e) {		// IOException or RuntimeException of the entity serialization
+			Log.w(TAG, "Couldn't create entity of local record " + record.getLocalID(), e);
+			return null;
+		}
+	}
+	
+	private void quarantine(String item, String ETag, String error) {
+		SyncStateStore.QuarantineEntry entry = local.quarantine(item, ETag, error);
+		if (entry != null) {
+			Log.w(TAG, "Quarantined " + item + " after " + entry.getFailures() + " failure(s): " + error);
+			quarantine.put(item, entry);
+		}
+	}
+	
+	private void release(String item) {
+		if (quarantine.remove(item) != null) {
+			Log.i(TAG, "Releasing " + item + " from quarantine");
+			local.releaseFromQuarantine(item);
+		}
+	}
+	
 	private int pullNew(Resource[] resourcesToAdd) throws LocalStorageException, IOException, HttpException, DavException {
 		int count = 0;
 		Log.i(TAG, "Fetching " + resourcesToAdd.length + " new remote resource(s)");
+		@Cleanup("end") Tracer.Span span = tracer.start("pullNew").attr("resources", resourcesToAdd.length);
 		
 		for (Resource[] resources : ArrayUtils.partition(resourcesToAdd, MAX_MULTIGET_RESOURCES))
-			for (Resource res : remote.multiGet(resources)) {
+			for (Resource res : multiGet(resources)) {
 				Log.d(TAG, "Adding " + res.getName());
 				local.add(res);
+				local.checkpointApplied(res.getName());
 				local.commit();
 				count++;
 			}
@@ -196,11 +583,20 @@ public class SyncManager {
 	private int pullChanged(Resource[] resourcesToUpdate) throws LocalStorageException, IOException, HttpException, DavException {
 		int count = 0;
 		Log.i(TAG, "Fetching " + resourcesToUpdate.length + " updated remote resource(s)");
+		@Cleanup("end") Tracer.Span span = tracer.start("pullChanged").attr("resources", resourcesToUpdate.length);
 		
 		for (Resource[] resources : ArrayUtils.partition(resourcesToUpdate, MAX_MULTIGET_RESOURCES))
-			for (Resource res : remote.multiGet(resources)) {
-				Log.i(TAG, "Updating " + res.getName());
-				local.updateByRemoteName(res);
+			for (Resource res : multiGet(resources)) {
+				SyncStateStore.Snapshot localList = local.getSnapshot();
+				int idx = localList.indexOf(res.getName());
+				if (idx != -1 && res.getContentHash() != null && res.getContentHash().equals(localList.getHash(idx))) {
+					Log.i(TAG, "Content of " + res.getName() + " hasn't changed, only updating ETag");
+					local.updateETag(res, localList.getLocalID(idx));
+				} else {
+					Log.i(TAG, "Updating " + res.getName());
+					local.updateByRemoteName(res);
+				}
+				local.checkpointApplied(res.getName());
 				local.commit();
 				count++;
 			}
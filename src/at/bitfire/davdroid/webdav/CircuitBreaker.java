@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Per-host circuit breaker: after a number of consecutive temporary failures (or when the
+ * server sends Retry-After), requests to this host fail immediately until the break is over
+ * (open). Then a single probe request is let through (half-open) while other requests still
+ * fail; if the probe succeeds, the circuit is closed again, otherwise the break is doubled.
+ * A probe which neither succeeds nor fails (for instance, a request which isn't retried and thus
+ * doesn't count) must release its slot with {@link #releaseProbe()}.
+ */
+public class CircuitBreaker {
+	private static final String TAG = "davdroid.CircuitBreaker";
+
+	protected static final int FAILURE_THRESHOLD = 3;
+	protected static final long
+		BASE_BREAK = 60*1000,			// ms
+		MAX_BREAK = 60*60*1000,			// ms
+		PROBE_TIMEOUT = 2*60*1000;		// ms, another probe is let through if the last one didn't report back
+
+	private static final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+
+	final String host;
+	int consecutiveFailures;
+	long openUntil;
+	long probeStarted;		// time when the probe request of the half-open circuit has been let through, 0 if none
+	Thread probeThread;		// thread which sends the probe request
+
+
+	public static CircuitBreaker forHost(URI location) {
+		String host = location.getHost() + ":" + location.getPort();
+		synchronized(breakers) {
+			CircuitBreaker breaker = breakers.get(host);
+			if (breaker == null) {
+				breaker = new CircuitBreaker(host);
+				breakers.put(host, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	CircuitBreaker(String host) {
+		this.host = host;
+	}
+
+
+	public void checkClosed() throws ServiceUnavailableException {
+		checkClosed(System.currentTimeMillis());
+	}
+
+	public synchronized void checkClosed(long now) throws ServiceUnavailableException {
+		if (openUntil == 0)
+			return;
+
+		if (openUntil > now) {
+			Log.i(TAG, "Circuit for " + host + " is open, not sending request");
+			throw new ServiceUnavailableException(0, "Too many failures, not contacting " + host + " for now", openUntil);
+		}
+
+		// break is over: half-open, let exactly one probe request through
+		if (probeStarted != 0 && now - probeStarted < PROBE_TIMEOUT) {
+			Log.i(TAG, "Waiting for probe request to " + host + ", not sending request");
+			throw new ServiceUnavailableException(0, "Waiting for probe request to " + host, probeStarted + PROBE_TIMEOUT);
+		}
+		Log.i(TAG, "Circuit for " + host + " is half-open, sending probe request");
+		probeStarted = now;
+		probeThread = Thread.currentThread();
+	}
+
+	/* lets another request probe the host if the probe of the current thread hasn't reported back */
+	public synchronized void releaseProbe() {
+		if (probeStarted != 0 && probeThread == Thread.currentThread()) {
+			Log.d(TAG, "Probe request to " + host + " didn't report back, releasing it");
+			probeStarted = 0;
+			probeThread = null;
+		}
+	}
+
+	public synchronized void onSuccess() {
+		if (consecutiveFailures > 0)
+			Log.d(TAG, "Request to " + host + " succeeded, closing circuit");
+		consecutiveFailures = 0;
+		openUntil = 0;
+		probeStarted = 0;
+		probeThread = null;
+	}
+
+	public void onFailure(long retryAfter) {
+		onFailure(retryAfter, System.currentTimeMillis());
+	}
+
+	/**
+	 * Records a temporary failure (I/O error, 5xx, 429) of a request which may be retried.
+	 * @param retryAfter	time (ms since epoch) given by the server, 0 if none
+	 */
+	public synchronized void onFailure(long retryAfter, long now) {
+		consecutiveFailures++;
+		probeStarted = 0;
+		probeThread = null;
+
+		long breakUntil = 0;
+		if (retryAfter > 0)
+			breakUntil = retryAfter;
+		if (consecutiveFailures >= FAILURE_THRESHOLD) {
+			int exp = Math.min(consecutiveFailures - FAILURE_THRESHOLD, 10);
+			breakUntil = Math.max(breakUntil, now + Math.min(BASE_BREAK << exp, MAX_BREAK));
+		}
+
+		if (breakUntil > openUntil) {
+			openUntil = breakUntil;
+			Log.w(TAG, consecutiveFailures + " consecutive failure(s) for " + host + ", opening circuit for " +
+				(openUntil - now)/1000 + " s");
+		}
+	}
+}
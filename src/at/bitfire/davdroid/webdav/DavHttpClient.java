@@ -10,10 +10,18 @@
  ******************************************************************************/
 package at.bitfire.davdroid.webdav;
 
+import lombok.Getter;
+
 import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreProtocolPNames;
 import org.apache.http.params.HttpConnectionParams;
@@ -25,12 +33,18 @@ import at.bitfire.davdroid.Constants;
 
 
 public class DavHttpClient extends DefaultHttpClient {
-	private DavHttpClient(HttpParams params) {
-		super(params);
+	// max. number of concurrent requests to the same host (pooled, kept-alive connections)
+	public static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+	
+	// request body compression support of the hosts, and statistics
+	@Getter private final HttpCompression compression = new HttpCompression();
+	
+	private DavHttpClient(ClientConnectionManager connectionManager, HttpParams params) {
+		super(connectionManager, params);
 	}
 	
 	
-	public static DefaultHttpClient getDefault() {
+	public static DavHttpClient getDefault() {
 		HttpParams params = new BasicHttpParams();
 		params.setParameter(CoreProtocolPNames.USER_AGENT, "DAVdroid/" + Constants.APP_VERSION);
 		
@@ -43,14 +57,22 @@ public class DavHttpClient extends DefaultHttpClient {
 		// don't allow redirections
 		HttpClientParams.setRedirecting(params, false);
 		
-		DavHttpClient httpClient = new DavHttpClient(params);
+		// connections may be used by multiple threads (concurrent uploads)
+		ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+		ConnManagerParams.setMaxTotalConnections(params, 2 * MAX_CONNECTIONS_PER_ROUTE);
 		
 		// use our own, SNI-capable LayeredSocketFactory for https://
-	    SchemeRegistry schemeRegistry = httpClient.getConnectionManager().getSchemeRegistry();
-	    schemeRegistry.register(new Scheme("https", new TlsSniSocketFactory(), 443));
+		SchemeRegistry schemeRegistry = new SchemeRegistry();
+		schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("https", new TlsSniSocketFactory(), 443));
+		
+		DavHttpClient httpClient = new DavHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+		
+		// requests are retried by WebDavResource (see RetryPolicy), don't retry them again
+		httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
 		
 		// allow gzip compression
-		GzipDecompressingEntity.enable(httpClient);
+		GzipDecompressingEntity.enable(httpClient, httpClient.getCompression());
 		return httpClient;
 	}
 	
@@ -1,22 +0,0 @@
-/*******************************************************************************
- * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
- * All rights reserved. This program and the accompanying materials
- * are made available under the terms of the GNU Public License v3.0
- * which accompanies this distribution, and is available at
- * http://www.gnu.org/licenses/gpl.html
- * 
- * Contributors:
- *     Richard Hirner (bitfire web engineering) - initial API and implementation
- ******************************************************************************/
-package at.bitfire.davdroid.webdav;
-
-import org.simpleframework.xml.Element;
-import org.simpleframework.xml.Namespace;
-import org.simpleframework.xml.Root;
-
-@Namespace(reference="DAV:")
-@Root(name="propfind")
-public class DavPropfind {
-	@Element(required=false)
-	protected DavProp prop;
-}
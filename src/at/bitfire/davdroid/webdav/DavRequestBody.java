@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Builds the XML bodies of PROPFIND and REPORT requests without reflection-based serialization.
+ * PROPFIND bodies only depend on the mode, so they're prepared once. Multi-get bodies
+ * are written directly into the request stream.
+ */
+public class DavRequestBody {
+	public static final String CONTENT_TYPE = "text/xml; charset=utf-8";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String
+		XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n",
+		NS_DAV = " xmlns:D=\"DAV:\"",
+		NS_CALDAV = " xmlns:C=\"urn:ietf:params:xml:ns:caldav\"",
+		NS_CARDDAV = " xmlns:CD=\"urn:ietf:params:xml:ns:carddav\"",
+		NS_CALENDARSERVER = " xmlns:CS=\"http://calendarserver.org/ns/\"",
+		NS_APPLE = " xmlns:A=\"http://apple.com/ns/ical/\"";
+
+	private static final byte[]
+		HREF_START = bytes("<D:href>"),
+		HREF_END = bytes("</D:href>"),
+		ESCAPED_AMP = bytes("&amp;"),
+		ESCAPED_LT = bytes("&lt;"),
+		ESCAPED_GT = bytes("&gt;");
+
+	private static final EnumMap<HttpPropfind.Mode, byte[]> propfindBodies = new EnumMap<HttpPropfind.Mode, byte[]>(HttpPropfind.Mode.class);
+	static {
+		for (HttpPropfind.Mode mode : HttpPropfind.Mode.values())
+			propfindBodies.put(mode, bytes(XML_DECLARATION +
+				"<D:propfind" + NS_DAV + NS_CALDAV + NS_CARDDAV + NS_CALENDARSERVER + NS_APPLE + "><D:prop>" +
+				propfindProperties(mode) +
+				"</D:prop></D:propfind>"));
+	}
+
+	private static final EnumMap<DavMultiget.Type, byte[]>
+		multigetStart = new EnumMap<DavMultiget.Type, byte[]>(DavMultiget.Type.class),
+		multigetEnd = new EnumMap<DavMultiget.Type, byte[]>(DavMultiget.Type.class);
+	static {
+		multigetStart.put(DavMultiget.Type.ADDRESS_BOOK, bytes(XML_DECLARATION +
+			"<CD:addressbook-multiget" + NS_DAV + NS_CARDDAV + "><D:prop><D:getetag/><CD:address-data/></D:prop>"));
+		multigetEnd.put(DavMultiget.Type.ADDRESS_BOOK, bytes("</CD:addressbook-multiget>"));
+
+		multigetStart.put(DavMultiget.Type.CALENDAR, bytes(XML_DECLARATION +
+			"<C:calendar-multiget" + NS_DAV + NS_CALDAV + "><D:prop><D:getetag/><C:calendar-data/></D:prop>"));
+		multigetEnd.put(DavMultiget.Type.CALENDAR, bytes("</C:calendar-multiget>"));
+	}
+
+
+	/* returns the (shared, don't modify) UTF-8 body of a PROPFIND request */
+	public static byte[] propfind(HttpPropfind.Mode mode) {
+		return propfindBodies.get(mode);
+	}
+
+	/* returns a repeatable entity which writes the multi-get REPORT body for the given (raw) hrefs */
+	public static AbstractHttpEntity multiget(DavMultiget.Type type, String[] hrefs) {
+		return new MultigetEntity(type, hrefs);
+	}
+
+
+	private static String propfindProperties(HttpPropfind.Mode mode) {
+		switch (mode) {
+		case CURRENT_USER_PRINCIPAL:
+			return "<D:current-user-principal/>";
+		case HOME_SETS:
+			return "<CD:addressbook-home-set/><C:calendar-home-set/>";
+		case MEMBERS_COLLECTIONS:
+			return "<D:resourcetype/><D:displayname/><D:current-user-privilege-set/>" +
+				"<CD:addressbook-description/>" +
+				"<C:calendar-description/><A:calendar-color/><C:calendar-timezone/><C:supported-calendar-component-set/>";
+		case COLLECTION_CTAG:
+		case MEMBERS_CTAG:
+			return "<CS:getctag/><D:sync-token/>";
+		case MEMBERS_ETAG:
+			return "<CS:getctag/><D:sync-token/><D:getetag/>";
+		}
+		throw new IllegalArgumentException("Unknown PROPFIND mode");
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(UTF_8);
+	}
+
+	/**
+	 * Writes text content as UTF-8 and escapes XML special characters.
+	 * @param os	output stream; if null, the bytes are only counted
+	 * @return		number of bytes
+	 */
+	static long writeText(String text, OutputStream os) throws IOException {
+		long length = 0;
+		for (int i = 0; i < text.length(); ) {
+			int c = text.codePointAt(i);
+			i += Character.charCount(c);
+
+			byte[] escaped = null;
+			switch (c) {
+			case '&':
+				escaped = ESCAPED_AMP;
+				break;
+			case '<':
+				escaped = ESCAPED_LT;
+				break;
+			case '>':
+				escaped = ESCAPED_GT;
+			}
+			if (escaped != null) {
+				if (os != null)
+					os.write(escaped);
+				length += escaped.length;
+
+			} else if (c < 0x80) {
+				if (os != null)
+					os.write(c);
+				length++;
+			} else if (c < 0x800) {
+				if (os != null) {
+					os.write(0xC0 | (c >> 6));
+					os.write(0x80 | (c & 0x3F));
+				}
+				length += 2;
+			} else if (c < 0x10000) {
+				if (os != null) {
+					os.write(0xE0 | (c >> 12));
+					os.write(0x80 | ((c >> 6) & 0x3F));
+					os.write(0x80 | (c & 0x3F));
+				}
+				length += 3;
+			} else {
+				if (os != null) {
+					os.write(0xF0 | (c >> 18));
+					os.write(0x80 | ((c >> 12) & 0x3F));
+					os.write(0x80 | ((c >> 6) & 0x3F));
+					os.write(0x80 | (c & 0x3F));
+				}
+				length += 4;
+			}
+		}
+		return length;
+	}
+
+
+	static class MultigetEntity extends AbstractHttpEntity {
+		final byte[] start, end;
+		final String[] hrefs;
+		final long length;
+
+		MultigetEntity(DavMultiget.Type type, String[] hrefs) {
+			start = multigetStart.get(type);
+			end = multigetEnd.get(type);
+			this.hrefs = hrefs;
+			setContentType(CONTENT_TYPE);
+
+			try {
+				long length = start.length + end.length;
+				for (String href : hrefs)
+					length += HREF_START.length + writeText(href, null) + HREF_END.length;
+				this.length = length;
+			} catch(IOException e) {
+				throw new IllegalStateException("Couldn't count multi-get body length", e);		// can't happen without stream
+			}
+		}
+
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		@Override
+		public boolean isStreaming() {
+			return false;
+		}
+
+		@Override
+		public long getContentLength() {
+			return length;
+		}
+
+		@Override
+		public InputStream getContent() throws IOException {
+			ByteArrayOutputStream os = new ByteArrayOutputStream((int)length);
+			writeTo(os);
+			return new ByteArrayInputStream(os.toByteArray());
+		}
+
+		@Override
+		public void writeTo(OutputStream os) throws IOException {
+			os.write(start);
+			for (String href : hrefs) {
+				os.write(HREF_START);
+				writeText(href, os);
+				os.write(HREF_END);
+			}
+			os.write(end);
+			os.flush();
+		}
+	}
+}
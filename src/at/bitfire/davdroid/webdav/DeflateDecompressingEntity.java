@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+class DeflateDecompressingEntity extends HttpEntityWrapper {
+    final HttpCompression statistics;
+
+    public DeflateDecompressingEntity(final HttpEntity entity, final HttpCompression statistics) {
+        super(entity);
+        this.statistics = statistics;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException, IllegalStateException {
+        PushbackInputStream wrappedin = new PushbackInputStream(statistics.countReceived(wrappedEntity.getContent()), 2);
+
+        // "deflate" should be zlib-wrapped (RFC 1950), but some servers send raw deflate data (RFC 1951)
+        byte[] header = new byte[2];
+        int n = 0;
+        while (n < header.length) {
+            int read = wrappedin.read(header, n, header.length - n);
+            if (read == -1)
+                break;
+            n += read;
+        }
+        if (n > 0)
+            wrappedin.unread(header, 0, n);
+        boolean zlib = n == 2 && (header[0] & 0x0F) == 8 && (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+
+        final Inflater inflater = new Inflater(!zlib);
+        return statistics.countDecoded(new InflaterInputStream(wrappedin, inflater) {
+            @Override
+            public void close() throws IOException {
+                // InflaterInputStream only ends its own default Inflater
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        });
+    }
+
+    @Override
+    public long getContentLength() {
+        // length of inflated content is not known
+        return -1;
+    }
+}
@@ -27,8 +27,11 @@ import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.protocol.HttpContext;
 
 class GzipDecompressingEntity extends HttpEntityWrapper {
-    public GzipDecompressingEntity(final HttpEntity entity) {
+    final HttpCompression statistics;
+
+    public GzipDecompressingEntity(final HttpEntity entity, final HttpCompression statistics) {
         super(entity);
+        this.statistics = statistics;
     }
 
     @Override
@@ -38,7 +41,7 @@ class GzipDecompressingEntity extends HttpEntityWrapper {
         // the wrapped entity's getContent() decides about repeatability
         InputStream wrappedin = wrappedEntity.getContent();
 
-        return new GZIPInputStream(wrappedin);
+        return statistics.countDecoded(new GZIPInputStream(statistics.countReceived(wrappedin)));
     }
 
     @Override
@@ -48,12 +51,12 @@ class GzipDecompressingEntity extends HttpEntityWrapper {
     }
     
     
-    public static void enable(DefaultHttpClient client) {
+    public static void enable(DefaultHttpClient client, final HttpCompression statistics) {
 		client.addRequestInterceptor(new HttpRequestInterceptor() {
 			@Override
 			public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
 	            if (!request.containsHeader("Accept-Encoding"))
-	                request.addHeader("Accept-Encoding", "gzip");
+	                request.addHeader("Accept-Encoding", "gzip, deflate");
 		    }
 		});
 	    client.addResponseInterceptor(new HttpResponseInterceptor() {
@@ -66,7 +69,10 @@ class GzipDecompressingEntity extends HttpEntityWrapper {
 	                    HeaderElement[] codecs = ceheader.getElements();
 	                    for (int i = 0; i < codecs.length; i++) {
 	                        if (codecs[i].getName().equalsIgnoreCase("gzip")) {
-	                            response.setEntity(new GzipDecompressingEntity(response.getEntity()));
+	                            response.setEntity(new GzipDecompressingEntity(response.getEntity(), statistics));
+	                            return;
+	                        } else if (codecs[i].getName().equalsIgnoreCase("deflate")) {
+	                            response.setEntity(new DeflateDecompressingEntity(response.getEntity(), statistics));
 	                            return;
 	                        }
 	                    }
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * Request body compression (Content-Encoding: gzip) and compression statistics of an HTTP client.
+ * Servers aren't required to accept compressed request bodies. Hosts which have advertised gzip
+ * in the Accept-Encoding header of a response (RFC 7694) get compressed bodies; as few DAV servers
+ * do that, hosts which haven't told anything yet are probed with a compressed REPORT (which doesn't
+ * store anything, so a server which doesn't decode the body can't corrupt data). PUT bodies are
+ * only compressed when the host is known to accept compression. If the server answers a compressed
+ * request with 415 Unsupported Media Type (or a probe with 400 Bad Request), the request is repeated
+ * without compression and later requests to this host won't be compressed anymore.
+ *
+ * What's known about the hosts is shared by all clients (every collection and sync has its own
+ * client); the statistics are per client.
+ */
+public class HttpCompression {
+	// smaller bodies aren't worth the effort
+	static final int MIN_COMPRESS_SIZE = 1024;
+
+	// host -> whether it accepts compressed request bodies (no entry: unknown yet)
+	private static final Map<String, Boolean> hosts = new HashMap<String, Boolean>();
+
+	// statistics: request bodies (before/after compression), response bodies (on the wire/decoded)
+	private final AtomicLong
+		requestBytesPlain = new AtomicLong(),
+		requestBytesSent = new AtomicLong(),
+		responseBytesReceived = new AtomicLong(),
+		responseBytesDecoded = new AtomicLong();
+
+
+	public boolean shouldCompress(URI location, String method, HttpEntity entity) {
+		if (entity == null || entity.getContentEncoding() != null || !entity.isRepeatable())
+			return false;
+		if (!"PUT".equals(method) && !"REPORT".equals(method))
+			return false;
+		if (entity.getContentLength() >= 0 && entity.getContentLength() < MIN_COMPRESS_SIZE)
+			return false;
+		synchronized(hosts) {
+			Boolean accepted = hosts.get(hostKey(location));
+			return (accepted != null) ? accepted : "REPORT".equals(method);
+		}
+	}
+
+	/* whether a compressed request to this host is a probe (host not known to accept or reject compression) */
+	public boolean isProbe(URI location) {
+		synchronized(hosts) {
+			return !hosts.containsKey(hostKey(location));
+		}
+	}
+
+	/* evaluates the Accept-Encoding header of a response; hosts which have rejected compression stay excluded */
+	public void checkAdvertised(URI location, HttpResponse response) {
+		Header[] headers = response.getHeaders("Accept-Encoding");
+		if (headers.length == 0)
+			return;
+
+		boolean gzip = false;
+		for (Header header : headers)
+			for (HeaderElement element : header.getElements())
+				if ("gzip".equalsIgnoreCase(element.getName())) {
+					NameValuePair quality = element.getParameterByName("q");
+					gzip = quality == null || !isZero(quality.getValue());
+				}
+
+		synchronized(hosts) {
+			String key = hostKey(location);
+			if (!Boolean.FALSE.equals(hosts.get(key)))
+				hosts.put(key, gzip);
+		}
+	}
+
+	/* a compressed request has been processed successfully */
+	public void setAccepted(URI location) {
+		synchronized(hosts) {
+			String key = hostKey(location);
+			if (!hosts.containsKey(key))
+				hosts.put(key, true);
+		}
+	}
+
+	public void setRejected(URI location) {
+		synchronized(hosts) {
+			hosts.put(hostKey(location), false);
+		}
+	}
+
+	private static String hostKey(URI location) {
+		return location.getHost() + ":" + location.getPort();
+	}
+
+	private static boolean isZero(String quality) {
+		try {
+			return Float.parseFloat(quality) == 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+
+	/* returns a gzip-compressed copy of the entity */
+	public HttpEntity compress(HttpEntity entity) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(entity.getContentLength() > 0 ? (int)entity.getContentLength()/2 : 1024);
+		CountingOutputStream counter = new CountingOutputStream(new GZIPOutputStream(compressed));
+		entity.writeTo(counter);
+		counter.close();
+
+		requestBytesPlain.addAndGet(counter.count);
+		requestBytesSent.addAndGet(compressed.size());
+
+		ByteArrayEntity compressedEntity = new ByteArrayEntity(compressed.toByteArray());
+		compressedEntity.setContentType(entity.getContentType());
+		compressedEntity.setContentEncoding("gzip");
+		return compressedEntity;
+	}
+
+
+	/* statistics */
+
+	public void countUncompressedRequest(HttpEntity entity) {
+		if (entity != null && entity.getContentLength() > 0) {
+			requestBytesPlain.addAndGet(entity.getContentLength());
+			requestBytesSent.addAndGet(entity.getContentLength());
+		}
+	}
+
+	public String getStatistics() {
+		return "request bodies " + ratio(requestBytesPlain.get(), requestBytesSent.get()) +
+			", encoded response bodies " + ratio(responseBytesDecoded.get(), responseBytesReceived.get());
+	}
+
+	private static String ratio(long plain, long transferred) {
+		String s = plain + " -> " + transferred + " bytes";
+		if (plain > 0)
+			s += String.format(" (%.0f %%)", 100.0 * transferred / plain);
+		return s;
+	}
+
+	/* wraps the raw and the decoded stream of an encoded response for the statistics */
+	InputStream countReceived(InputStream raw) {
+		return new CountingInputStream(raw, responseBytesReceived);
+	}
+	InputStream countDecoded(InputStream decoded) {
+		return new CountingInputStream(decoded, responseBytesDecoded);
+	}
+
+
+	private static class CountingInputStream extends FilterInputStream {
+		final AtomicLong counter;
+
+		CountingInputStream(InputStream in, AtomicLong counter) {
+			super(in);
+			this.counter = counter;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1)
+				counter.incrementAndGet();
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int n = super.read(buffer, offset, count);
+			if (n > 0)
+				counter.addAndGet(n);
+			return n;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			out.write(buffer, offset, length);
+			count += length;
+		}
+	}
+}
@@ -11,30 +11,23 @@
 package at.bitfire.davdroid.webdav;
 
 
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
-import org.apache.http.entity.StringEntity;
 
 import android.util.Log;
 
 public class HttpReport extends HttpEntityEnclosingRequestBase {
 	private static final String TAG = "DavHttpReport";
 
-	HttpReport(URI uri, String entity) {
+	HttpReport(URI uri, HttpEntity entity) {
 		setURI(uri);
 		
-		setHeader("Content-Type", "text/xml; charset=UTF-8");
 		setHeader("Depth", "0");
+		setEntity(entity);
 		
-		try {
-			setEntity(new StringEntity(entity, "UTF-8"));
-			
-			Log.d(TAG, "Prepared REPORT request for " + uri + ": " + entity);
-		} catch (UnsupportedEncodingException e) {
-			Log.e(TAG, e.getMessage());
-		}
+		Log.d(TAG, "Prepared REPORT request for " + uri + " (" + entity.getContentLength() + " bytes)");
 	}
 
 	@Override
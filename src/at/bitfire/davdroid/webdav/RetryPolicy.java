@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2014 Richard Hirner (bitfire web engineering).
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     Richard Hirner (bitfire web engineering) - initial API and implementation
+ ******************************************************************************/
+package at.bitfire.davdroid.webdav;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import android.util.Log;
+
+public class RetryPolicy {
+	private static final String TAG = "davdroid.RetryPolicy";
+
+	public static final int SC_TOO_MANY_REQUESTS = 429;
+
+	protected static final int MAX_ATTEMPTS = 3;
+	protected static final long
+		BASE_DELAY = 1000,			// ms, doubled after every attempt
+		MAX_DELAY = 30*1000;		// ms, don't block the sync thread longer than that per attempt
+
+	private static final Random random = new Random();
+
+
+	/**
+	 * Determines whether a request may be sent again when its outcome is unknown or it has failed temporarily.
+	 * GET, HEAD, OPTIONS, PROPFIND and REPORT don't change server state. DELETE and PUT are only repeated when
+	 * they're bound to a certain ETag by If-Match, so that they can't overwrite or remove anything else than
+	 * the first attempt would have. Especially, a PUT with "If-None-Match: *" would fail with 412 if the first
+	 * attempt has been processed, and an unconditional PUT could overwrite changes from other clients.
+	 */
+	public static boolean isRetryable(HttpRequest request) {
+		if (request instanceof HttpEntityEnclosingRequest) {
+			HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
+			if (entity != null && !entity.isRepeatable())
+				return false;
+		}
+
+		String method = request.getRequestLine().getMethod();
+		if ("GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) ||
+			"PROPFIND".equals(method) || "REPORT".equals(method))
+			return true;
+		else if ("DELETE".equals(method) || "PUT".equals(method)) {
+			Header ifMatch = request.getFirstHeader("If-Match");
+			return ifMatch != null && !"*".equals(ifMatch.getValue());
+		}
+		return false;
+	}
+
+	/* status codes that indicate that the server may be able to process the request later */
+	public static boolean isTransient(int statusCode) {
+		switch (statusCode) {
+		case HttpStatus.SC_BAD_GATEWAY:
+		case HttpStatus.SC_SERVICE_UNAVAILABLE:
+		case HttpStatus.SC_GATEWAY_TIMEOUT:
+		case SC_TOO_MANY_REQUESTS:
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Calculates how long to wait before the next attempt.
+	 * @param attempt		number of the attempt that has just failed (starting with 1)
+	 * @param retryAfter	time (ms since epoch) given by the server in Retry-After, 0 if none
+	 * @return				delay in ms, or -1 if the request shouldn't be retried (anymore)
+	 */
+	public static long getDelay(int attempt, long retryAfter) {
+		if (attempt >= MAX_ATTEMPTS)
+			return -1;
+
+		if (retryAfter > 0) {
+			long delay = retryAfter - System.currentTimeMillis();
+			if (delay > MAX_DELAY) {
+				Log.i(TAG, "Server asks to wait " + delay/1000 + " s, giving up for now");
+				return -1;
+			}
+			return Math.max(delay, 0);
+		}
+
+		// exponential backoff with "equal jitter" (between half and full delay) so that clients don't retry in lock-step
+		long maxDelay = Math.min(BASE_DELAY << (attempt - 1), MAX_DELAY);
+		synchronized(random) {
+			return maxDelay/2 + (long)(random.nextDouble() * maxDelay/2);
+		}
+	}
+
+
+	/* returns the time (ms since epoch) given by the Retry-After header, 0 if none/invalid */
+	public static long getRetryAfter(HttpResponse response) {
+		Header header = response.getFirstHeader("Retry-After");
+		if (header == null)
+			return 0;
+		return parseRetryAfter(header.getValue(), System.currentTimeMillis());
+	}
+
+	public static long parseRetryAfter(String value, long now) {
+		if (value == null)
+			return 0;
+		value = value.trim();
+
+		// Retry-After: 120
+		try {
+			long seconds = Long.parseLong(value);
+			return (seconds >= 0) ? now + seconds*1000 : 0;
+		} catch(NumberFormatException e) {
+		}
+
+		// Retry-After: Fri, 31 Dec 1999 23:59:59 GMT
+		try {
+			Date date = DateUtils.parseDate(value);
+			return date.getTime();
+		} catch (DateParseException e) {
+			Log.w(TAG, "Ignoring invalid Retry-After value: " + value);
+		}
+		return 0;
+	}
+}
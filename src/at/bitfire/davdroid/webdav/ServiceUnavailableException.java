@@ -10,15 +10,17 @@
  ******************************************************************************/
 package at.bitfire.davdroid.webdav;
 
-import org.simpleframework.xml.Namespace;
-import org.simpleframework.xml.NamespaceList;
-import org.simpleframework.xml.Root;
+import lombok.Getter;
 
-@Root(name="calendar-multiget")
-@NamespaceList({
-	@Namespace(reference="DAV:"),
-	@Namespace(prefix="C",reference="urn:ietf:params:xml:ns:caldav")
-})
-@Namespace(prefix="C",reference="urn:ietf:params:xml:ns:caldav")
-public class DavCalendarMultiget extends DavMultiget {
+/* used for 503 Service Unavailable, 429 Too Many Requests and open circuit breakers */
+public class ServiceUnavailableException extends HttpException {
+	private static final long serialVersionUID = -5283736484306398124L;
+
+	// earliest time (in ms since epoch) when the server should be contacted again, 0 if unknown
+	@Getter private long retryAfter;
+
+	public ServiceUnavailableException(int code, String reason, long retryAfter) {
+		super(code, reason);
+		this.retryAfter = retryAfter;
+	}
 }
@@ -14,18 +14,26 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.http.conn.scheme.LayeredSocketFactory;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.params.HttpParams;
 
 import android.annotation.TargetApi;
+import android.content.Context;
 import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
 import android.os.Build;
 import android.util.Log;
 
@@ -35,6 +43,98 @@ public class TlsSniSocketFactory implements LayeredSocketFactory {
 	
 	final static HostnameVerifier hostnameVerifier = SSLSocketFactory.STRICT_HOSTNAME_VERIFIER;
 	
+	// resolved addresses are cached for this time
+	final static long DNS_TTL = 5*60*1000;
+	
+	// one factory for all connections so that TLS sessions can be resumed
+	private static SSLCertificateSocketFactory sslSocketFactory;
+	
+	private static final Map<String, CachedAddress> dnsCache = new HashMap<String, CachedAddress>();
+	private static class CachedAddress {
+		final InetAddress address;
+		final long expires;
+		
+		CachedAddress(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+	}
+	
+	private static final AtomicInteger fullHandshakes = new AtomicInteger(), resumedHandshakes = new AtomicInteger();
+	
+	// IDs of the sessions established by this process, to recognize resumed sessions
+	private static final int MAX_SEEN_SESSIONS = 100;
+	private static final Set<String> seenSessions = new HashSet<String>();
+	
+	
+	/**
+	 * Uses a persistent session cache (in the app's cache directory), so that TLS sessions
+	 * can be resumed across syncs and process restarts. Without, sessions are only
+	 * cached in memory.
+	 */
+	public static synchronized void initSessionCache(Context context) {
+		if (sslSocketFactory == null)
+			sslSocketFactory = (SSLCertificateSocketFactory)SSLCertificateSocketFactory.getDefault(0, new SSLSessionCache(context));
+	}
+	
+	private static synchronized SSLCertificateSocketFactory getSSLSocketFactory() {
+		if (sslSocketFactory == null)
+			sslSocketFactory = (SSLCertificateSocketFactory)SSLCertificateSocketFactory.getDefault(0);
+		return sslSocketFactory;
+	}
+	
+	/* returns the address of the host, which keeps the host name for the session cache */
+	static InetAddress resolve(String host) throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		synchronized(dnsCache) {
+			CachedAddress cached = dnsCache.get(host);
+			if (cached != null && cached.expires > now)
+				return cached.address;
+		}
+		
+		InetAddress address = InetAddress.getByName(host);
+		synchronized(dnsCache) {
+			dnsCache.put(host, new CachedAddress(address, now + DNS_TTL));
+		}
+		return address;
+	}
+	
+	static void evict(String host) {
+		synchronized(dnsCache) {
+			dnsCache.remove(host);
+		}
+	}
+	
+	/**
+	 * Whether a session has been resumed (instead of a full handshake): either its ID has been
+	 * seen before or it has been created by an earlier handshake (from the persistent cache).
+	 * OpenSSL sessions only have a creation time in whole seconds, so it's compared with the
+	 * start of the handshake rounded down to the second, minus one second.
+	 */
+	static boolean isResumed(SSLSession session, long handshakeStart) {
+		byte[] id = session.getId();
+		if (id != null && id.length > 0) {		// no ID with session tickets
+			String hexID = new String(Hex.encodeHex(id));
+			synchronized(seenSessions) {
+				if (seenSessions.contains(hexID))
+					return true;
+				if (seenSessions.size() >= MAX_SEEN_SESSIONS)
+					seenSessions.clear();
+				seenSessions.add(hexID);
+			}
+		}
+		return session.getCreationTime() < (handshakeStart/1000 - 1)*1000;
+	}
+	
+	public static String getStatistics() {
+		return fullHandshakes.get() + " full, " + resumedHandshakes.get() + " resumed TLS handshake(s)";
+	}
+	
+	public static void resetStatistics() {
+		fullHandshakes.set(0);
+		resumedHandshakes.set(0);
+	}
+	
 	
 	// Plain TCP/IP (layer below TLS)
 
@@ -66,8 +166,15 @@ public class TlsSniSocketFactory implements LayeredSocketFactory {
 		}
 		
 		// create and connect SSL socket, but don't do hostname/certificate verification yet
-		SSLCertificateSocketFactory sslSocketFactory = (SSLCertificateSocketFactory) SSLCertificateSocketFactory.getDefault(0);
-		SSLSocket ssl = (SSLSocket)sslSocketFactory.createSocket(InetAddress.getByName(host), port);
+		SSLCertificateSocketFactory sslSocketFactory = getSSLSocketFactory();
+		SSLSocket ssl;
+		try {
+			ssl = (SSLSocket)sslSocketFactory.createSocket(resolve(host), port);
+		} catch(IOException e) {
+			// address may be outdated
+			evict(host);
+			throw e;
+		}
 		
 		// set up SNI before the handshake
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
@@ -77,12 +184,16 @@ public class TlsSniSocketFactory implements LayeredSocketFactory {
 			Log.i(TAG, "No SNI support below Android 4.2!");
 		
 		// verify hostname and certificate
+		long handshakeStart = System.currentTimeMillis();
 		SSLSession session = ssl.getSession();
 		if (!hostnameVerifier.verify(host, session))
 			throw new SSLPeerUnverifiedException("Cannot verify hostname: " + host);
 		
+		boolean resumed = isResumed(session, handshakeStart);
+		(resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+		
 		Log.i(TAG, "Established " + session.getProtocol() + " connection with " + session.getPeerHost() +
-				" using " + session.getCipherSuite());
+				" using " + session.getCipherSuite() + (resumed ? " (resumed session)" : ""));
 
 		return ssl;
 	}
@@ -12,7 +12,7 @@ package at.bitfire.davdroid.webdav;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Arrays;
@@ -24,12 +24,14 @@ import java.util.Set;
 
 import lombok.Cleanup;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.ToString;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
@@ -39,15 +41,17 @@ import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpOptions;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicLineParser;
 import org.apache.http.protocol.HTTP;
-import org.simpleframework.xml.Serializer;
-import org.simpleframework.xml.core.Persister;
 
 import android.util.Log;
+import at.bitfire.davdroid.BufferPool;
+import at.bitfire.davdroid.ETagList;
 import at.bitfire.davdroid.LoggingInputStream;
+import at.bitfire.davdroid.ParserPool;
+import at.bitfire.davdroid.Tracer;
 import at.bitfire.davdroid.URIUtils;
 import at.bitfire.davdroid.resource.Event;
 import at.bitfire.davdroid.webdav.DavProp.DavPropComp;
@@ -64,7 +68,7 @@ public class WebDavResource {
 		TIMEZONE, SUPPORTED_COMPONENTS,
 		ADDRESSBOOK_HOMESET, CALENDAR_HOMESET,
 		IS_ADDRESSBOOK, IS_CALENDAR,
-		CTAG, ETAG,
+		CTAG, SYNC_TOKEN, ETAG,
 		CONTENT_TYPE
 	}
 	public enum PutMode {
@@ -86,10 +90,13 @@ public class WebDavResource {
 	// list of members (only for collections)
 	@Getter protected List<WebDavResource> members;
 
-	// content (available after GET)
-	@Getter protected byte[] content;
+	// content (available after GET/multi-get, pooled: call releaseContent() when done)
+	protected BufferPool.Buffer content;
 
-	protected DefaultHttpClient client;
+	protected DavHttpClient client;
+	
+	// trace of the current sync (shared with members)
+	@Getter @Setter protected Tracer tracer = Tracer.NONE;
 	
 	
 	public WebDavResource(URI baseURL, boolean trailingSlash) throws URISyntaxException {
@@ -118,6 +125,7 @@ public class WebDavResource {
 	protected WebDavResource(WebDavResource parent, URI uri) {
 		location = uri;
 		client = parent.client;
+		tracer = parent.tracer;
 	}
 	
 	public WebDavResource(WebDavResource parent, String member) {
@@ -138,7 +146,7 @@ public class WebDavResource {
 
 	public void options() throws IOException, HttpException {
 		HttpOptions options = new HttpOptions(location);
-		HttpResponse response = client.execute(options);
+		HttpResponse response = execute(options);
 		checkResponse(response);
 		
 		if (response.getEntity() != null)
@@ -161,6 +169,11 @@ public class WebDavResource {
 		return methods.contains(method);
 	}
 	
+	/* request body compression of this resource's HTTP client (shared with its members) */
+	public HttpCompression getCompression() {
+		return client.getCompression();
+	}
+	
 	
 	/* file hierarchy methods */
 	
@@ -204,11 +217,52 @@ public class WebDavResource {
 		return properties.get(Property.CALENDAR_HOMESET);
 	}
 
-	public String getCTag() {
-		return properties.get(Property.CTAG);
-	}
-	public void invalidateCTag() {
+	/* returns the CTag or, if the server doesn't support CTags, the sync-token (RFC 6578) of a collection */
+	public synchronized String getCTag() {
+		String cTag = properties.get(Property.CTAG);
+		return (cTag != null) ? cTag : properties.get(Property.SYNC_TOKEN);
+	}
+	public synchronized void setCTag(String cTag) {
+		if (cTag != null)
+			properties.put(Property.CTAG, cTag);
+		else
+			properties.remove(Property.CTAG);
+	}
+	public synchronized void invalidateCTag() {
 		properties.remove(Property.CTAG);
+		properties.remove(Property.SYNC_TOKEN);
+	}
+	
+	public synchronized String getSyncToken() {
+		return properties.get(Property.SYNC_TOKEN);
+	}
+	
+	/* returns a copy of the content (or null if there's no content) */
+	public byte[] getContent() {
+		return (content != null) ? content.toByteArray() : null;
+	}
+	
+	/* returns a stream over the content (or null if there's no content); valid until releaseContent() */
+	public InputStream getContentStream() {
+		return (content != null) ? content.toInputStream() : null;
+	}
+	
+	public String getContentHash() {
+		return (content != null) ? content.md5Hex() : null;
+	}
+	
+	protected void setContent(String data) {
+		releaseContent();
+		content = BufferPool.obtain();
+		content.writeUTF8(data);
+	}
+	
+	/* returns the content buffer to the pool */
+	public void releaseContent() {
+		if (content != null) {
+			content.release();
+			content = null;
+		}
 	}
 	
 	public String getETag() {
@@ -235,8 +289,59 @@ public class WebDavResource {
 	/* collection operations */
 	
 	public void propfind(HttpPropfind.Mode mode) throws IOException, DavException, HttpException {
+		processMultiStatus(propfindMultiStatus(mode));
+	}
+	
+	/**
+	 * Lists the names and ETags of all members in a compact form (without creating a
+	 * WebDavResource for every member). CTag and sync-token of the collection itself
+	 * are available by getCTag()/getSyncToken() afterwards.
+	 * @return	(name, ETag) list of the members, sorted by name
+	 */
+	public ETagList propfindMemberETags() throws IOException, DavException, HttpException {
+		DavMultistatus multistatus = propfindMultiStatus(HttpPropfind.Mode.MEMBERS_ETAG);
+		if (multistatus.response == null)	// empty response
+			throw new DavNoContentException();
+		
+		ETagList list = new ETagList(multistatus.response.size());
+		for (DavResponse singleResponse : multistatus.response) {
+			URI href;
+			try {
+				href = location.resolve(URIUtils.sanitize(singleResponse.getHref().href));
+			} catch(IllegalArgumentException ex) {
+				Log.w(TAG, "Ignoring illegal member URI in multi-status response", ex);
+				continue;
+			}
+			boolean self = location.equals(href);
+			
+			String eTag = null;
+			for (DavPropstat singlePropstat : singleResponse.getPropstat()) {
+				StatusLine status = BasicLineParser.parseStatusLine(singlePropstat.status, new BasicLineParser());
+				if (status.getStatusCode()/100 != 1 && status.getStatusCode()/100 != 2)
+					continue;
+				
+				DavProp prop = singlePropstat.prop;
+				if (self) {
+					if (prop.getctag != null)
+						properties.put(Property.CTAG, prop.getctag.getCTag());
+					if (prop.syncToken != null)
+						properties.put(Property.SYNC_TOKEN, prop.syncToken.getToken());
+				} else if (prop.getetag != null)
+					eTag = prop.getetag.getETag();
+			}
+			
+			if (!self) {
+				String[] names = StringUtils.split(href.getRawPath(), "/");
+				list.add(names[names.length - 1], eTag);
+			}
+		}
+		list.sort();
+		return list;
+	}
+	
+	protected DavMultistatus propfindMultiStatus(HttpPropfind.Mode mode) throws IOException, DavException, HttpException {
 		HttpPropfind propfind = new HttpPropfind(location, mode);
-		HttpResponse response = client.execute(propfind);
+		HttpResponse response = execute(propfind);
 		checkResponse(response);
 
 		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_MULTI_STATUS)
@@ -251,33 +356,21 @@ public class WebDavResource {
 			throw new DavNoContentException();
 		@Cleanup LoggingInputStream content = new LoggingInputStream(TAG, rawContent);
 		
-		DavMultistatus multistatus;
+		@Cleanup("end") Tracer.Span span = tracer.start("parseMultiStatus");
 		try {
-			Serializer serializer = new Persister();
-			multistatus = serializer.read(DavMultistatus.class, content, false);
+			return ParserPool.getSerializer().read(DavMultistatus.class, content, false);
 		} catch (Exception ex) {
 			throw new DavException("Couldn't parse Multi-Status response on PROPFIND", ex);
 		}
-		processMultiStatus(multistatus);
 	}
 
 	public void multiGet(DavMultiget.Type type, String[] names) throws IOException, DavException, HttpException {
-		List<String> hrefs = new LinkedList<String>();
-		for (String name : names)
-			hrefs.add(location.resolve(name).getRawPath());
-		DavMultiget multiget = DavMultiget.newRequest(type, hrefs.toArray(new String[0]));
+		String[] hrefs = new String[names.length];
+		for (int i = 0; i < names.length; i++)
+			hrefs[i] = location.resolve(names[i]).getRawPath();
 		
-		Serializer serializer = new Persister();
-		StringWriter writer = new StringWriter();
-		try {
-			serializer.write(multiget, writer);
-		} catch (Exception ex) {
-			Log.e(TAG, "Couldn't create XML multi-get request", ex);
-			throw new DavException("Couldn't create multi-get request");
-		}
-
-		HttpReport report = new HttpReport(location, writer.toString());
-		HttpResponse response = client.execute(report);
+		HttpReport report = new HttpReport(location, DavRequestBody.multiget(type, hrefs));
+		HttpResponse response = execute(report);
 		checkResponse(response);
 		
 		if (response.getStatusLine().getStatusCode() != HttpStatus.SC_MULTI_STATUS)
@@ -293,8 +386,9 @@ public class WebDavResource {
 		@Cleanup LoggingInputStream content = new LoggingInputStream(TAG, rawContent);
 		
 		DavMultistatus multiStatus;
+		@Cleanup("end") Tracer.Span span = tracer.start("parseMultiStatus").attr("hrefs", hrefs.length);
 		try {
-			multiStatus = serializer.read(DavMultistatus.class, content, false);
+			multiStatus = ParserPool.getSerializer().read(DavMultistatus.class, content, false);
 		} catch (Exception ex) {
 			throw new DavException("Couldn't parse Multi-Status response on REPORT multi-get", ex);
 		}
@@ -306,9 +400,14 @@ public class WebDavResource {
 	
 	public void get() throws IOException, HttpException, DavException {
 		HttpGet get = new HttpGet(location);
-		HttpResponse response = client.execute(get);
+		HttpResponse response = execute(get);
 		checkResponse(response);
 		
+		// current ETag of the fetched entity (if sent by the server)
+		Header eTag = response.getFirstHeader("ETag");
+		if (eTag != null)
+			properties.put(Property.ETAG, eTag.getValue());
+		
 		HttpEntity entity = response.getEntity();
 		if (entity == null)
 			throw new DavNoContentException();
@@ -318,15 +417,32 @@ public class WebDavResource {
 			throw new DavNoContentException();
 		@Cleanup LoggingInputStream content = new LoggingInputStream(TAG, rawContent);
 		
-		this.content = IOUtils.toByteArray(content);
+		releaseContent();
+		BufferPool.Buffer buffer = BufferPool.obtain();
+		try {
+			buffer.readFrom(content);
+		} catch(IOException e) {
+			buffer.release();
+			throw e;
+		}
+		this.content = buffer;
 	}
 	
 	public void put(byte[] data, PutMode mode) throws IOException, HttpException {
 		Log.d(TAG, "Sending PUT request:");
 		Log.d(TAG, IOUtils.toString(data, HTTP.UTF_8));
-		
+		put(new ByteArrayEntity(data), mode);
+	}
+	
+	/* sends the content of a (pooled) buffer; the buffer is not released */
+	public void put(BufferPool.Buffer data, PutMode mode) throws IOException, HttpException {
+		Log.d(TAG, "Sending PUT request (" + data.size() + " bytes)");
+		put(data.toEntity(), mode);
+	}
+	
+	protected void put(HttpEntity data, PutMode mode) throws IOException, HttpException {
 		HttpPut put = new HttpPut(location);
-		put.setEntity(new ByteArrayEntity(data));
+		put.setEntity(data);
 
 		switch (mode) {
 		case ADD_DONT_OVERWRITE:
@@ -340,7 +456,7 @@ public class WebDavResource {
 		if (getContentType() != null)
 			put.addHeader("Content-Type", getContentType());
 
-		HttpResponse response = client.execute(put);
+		HttpResponse response = execute(put);
 		@Cleanup("consumeContent") HttpEntity entity = response.getEntity();
 		checkResponse(response);
 	}
@@ -351,7 +467,7 @@ public class WebDavResource {
 		if (getETag() != null)
 			delete.addHeader("If-Match", getETag());
 		
-		HttpResponse response = client.execute(delete);
+		HttpResponse response = execute(delete);
 		@Cleanup("consumeContent") HttpEntity entity = response.getEntity();
 		checkResponse(response);
 	}
@@ -359,7 +475,125 @@ public class WebDavResource {
 
 	/* helpers */
 	
+	/**
+	 * Executes a request. Temporary failures (I/O errors, 502, 503, 504, 429) of idempotent requests
+	 * are retried with exponential backoff, and hosts which keep failing are not contacted
+	 * for a while (see {@link CircuitBreaker}).
+	 */
+	protected HttpResponse execute(HttpUriRequest request) throws IOException, HttpException {
+		Tracer.Span span = tracer.start(request.getMethod()).attr("href", location.getRawPath());
+		try {
+			HttpResponse response = executeWithRetry(request, span);
+			span.attr("status", response.getStatusLine().getStatusCode());
+			if (response.getEntity() != null)
+				span.attr("responseBytes", response.getEntity().getContentLength());
+			return response;
+		} finally {
+			span.end();
+		}
+	}
+	
+	private HttpResponse executeWithRetry(HttpUriRequest request, Tracer.Span span) throws IOException, HttpException {
+		CircuitBreaker breaker = CircuitBreaker.forHost(location);
+		
+		// compress request body if the server has advertised that it accepts it
+		HttpCompression compression = client.getCompression();
+		HttpEntityEnclosingRequest enclosingRequest = null;
+		HttpEntity plainEntity = null;
+		boolean compressionProbe = false;
+		if (request instanceof HttpEntityEnclosingRequest) {
+			enclosingRequest = (HttpEntityEnclosingRequest)request;
+			if (compression.shouldCompress(location, request.getMethod(), enclosingRequest.getEntity())) {
+				compressionProbe = compression.isProbe(location);
+				plainEntity = enclosingRequest.getEntity();
+				enclosingRequest.setEntity(compression.compress(plainEntity));
+			} else
+				compression.countUncompressedRequest(enclosingRequest.getEntity());
+		}
+		if (enclosingRequest != null && enclosingRequest.getEntity() != null)
+			span.attr("requestBytes", enclosingRequest.getEntity().getContentLength());
+		boolean retryable = RetryPolicy.isRetryable(request);
+		
+		try {
+			boolean checkBreaker = true;
+			for (int attempt = 1; ; attempt++) {
+				if (checkBreaker)
+					breaker.checkClosed();
+				checkBreaker = true;
+				if (attempt > 1)
+					span.attr("attempt", attempt);
+				
+				HttpResponse response;
+				try {
+					response = client.execute(request);
+				} catch(IOException ex) {
+					if (retryable)		// only requests which may be repeated count as failures
+						breaker.onFailure(0);
+					long delay = retryable ? RetryPolicy.getDelay(attempt, 0) : -1;
+					if (delay < 0)
+						throw ex;
+					Log.w(TAG, "I/O error on " + request.getMethod() + ", retrying in " + delay + " ms", ex);
+					sleep(delay);
+					continue;
+				}
+				
+				int code = response.getStatusLine().getStatusCode();
+				compression.checkAdvertised(location, response);
+				if (plainEntity != null && (code == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE || (compressionProbe && code == HttpStatus.SC_BAD_REQUEST))) {
+					// request was not processed, send it again without compression
+					Log.i(TAG, "Server doesn't accept compressed " + request.getMethod() + " body, sending it uncompressed");
+					if (response.getEntity() != null)
+						response.getEntity().consumeContent();
+					compression.setRejected(location);
+					enclosingRequest.setEntity(plainEntity);
+					compression.countUncompressedRequest(plainEntity);
+					plainEntity = null;
+					attempt--;
+					checkBreaker = false;		// same request (possibly the probe), not another one
+					continue;
+				}
+				
+				if (!RetryPolicy.isTransient(code)) {
+					if (plainEntity != null && code/100 == 2)
+						compression.setAccepted(location);
+					breaker.onSuccess();
+					return response;
+				}
+				
+				long retryAfter = RetryPolicy.getRetryAfter(response);
+				if (retryable)
+					breaker.onFailure(retryAfter);
+				long delay = retryable ? RetryPolicy.getDelay(attempt, retryAfter) : -1;
+				if (delay < 0)
+					return response;		// will be handled by checkResponse()
+				
+				Log.w(TAG, "Received " + code + " on " + request.getMethod() + ", retrying in " + delay + " ms");
+				if (response.getEntity() != null)
+					response.getEntity().consumeContent();
+				sleep(delay);
+			}
+		} finally {
+			// a probe request which hasn't been counted as success or failure (not retryable)
+			breaker.releaseProbe();
+		}
+	}
+	
+	private static void sleep(long delay) throws InterruptedIOException {
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for retry");
+		}
+	}
+	
 	protected static void checkResponse(HttpResponse response) throws HttpException {
+		int code = response.getStatusLine().getStatusCode();
+		if (code == HttpStatus.SC_SERVICE_UNAVAILABLE || code == RetryPolicy.SC_TOO_MANY_REQUESTS) {
+			Log.d(TAG, "Received " + response.getStatusLine());
+			throw new ServiceUnavailableException(code, code + " " + response.getStatusLine().getReasonPhrase(),
+				RetryPolicy.getRetryAfter(response));
+		}
 		checkResponse(response.getStatusLine());
 	}
 	
@@ -478,14 +712,17 @@ public class WebDavResource {
 				
 				if (prop.getctag != null)
 					properties.put(Property.CTAG, prop.getctag.getCTag());
+				
+				if (prop.syncToken != null)
+					properties.put(Property.SYNC_TOKEN, prop.syncToken.getToken());
 
 				if (prop.getetag != null)
 					properties.put(Property.ETAG, prop.getetag.getETag());
 				
 				if (prop.calendarData != null && prop.calendarData.ical != null)
-					referenced.content = prop.calendarData.ical.getBytes();
+					referenced.setContent(prop.calendarData.ical);
 				else if (prop.addressData != null && prop.addressData.vcard != null)
-					referenced.content = prop.addressData.vcard.getBytes();
+					referenced.setContent(prop.addressData.vcard);
 			}
 		}
 		
@@ -0,0 +1,148 @@
+package at.bitfire.davdroid.resource.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Random;
+
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.BufferPool;
+import at.bitfire.davdroid.ETagList;
+import at.bitfire.davdroid.resource.CalDavCalendar;
+import at.bitfire.davdroid.resource.EntityCache;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.Resource;
+import at.bitfire.davdroid.syncadapter.test.DavTestServer;
+import at.bitfire.davdroid.test.Fixtures;
+
+public class EntityCacheTest extends InstrumentationTestCase {
+	static final String COLLECTION = "https://example.com/dav/test/";
+
+	File directory;
+	EntityCache cache;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = new File(getInstrumentation().getTargetContext().getCacheDir(), "entities-test");
+		cache = new EntityCache(directory, 4096);
+		cache.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		cache.clear();
+		directory.delete();
+	}
+
+
+	public void testGetPut() throws Exception {
+		assertNull(cache.get(COLLECTION, "a.vcf", "\"1\""));
+		cache.put(COLLECTION, "a.vcf", "\"1\"", stream("BEGIN:VCARD"));
+		assertEquals("BEGIN:VCARD", get("a.vcf", "\"1\""));		// possibly not written yet
+		cache.flush();
+		assertEquals("BEGIN:VCARD", get("a.vcf", "\"1\""));
+
+		// only valid for the same ETag
+		assertNull(cache.get(COLLECTION, "a.vcf", "\"2\""));
+		assertNull(cache.get(COLLECTION, "a.vcf", null));
+		assertNull(cache.get("https://example.com/dav/other/", "a.vcf", "\"1\""));
+
+		// other ETag replaces entry
+		cache.put(COLLECTION, "a.vcf", "\"2\"", stream("BEGIN:VCARD\nEND:VCARD"));
+		assertNull(cache.get(COLLECTION, "a.vcf", "\"1\""));
+		assertEquals("BEGIN:VCARD\nEND:VCARD", get("a.vcf", "\"2\""));
+
+		cache.remove(COLLECTION, "a.vcf");
+		assertNull(cache.get(COLLECTION, "a.vcf", "\"2\""));
+		assertEquals(0, cache.getSize());
+	}
+
+	public void testEviction() throws Exception {
+		// incompressible content, ~1 kB per entry
+		Random random = new Random(1);
+		byte[] data = new byte[1000];
+		for (int i = 1; i <= 3; i++) {
+			random.nextBytes(data);
+			cache.put(COLLECTION, i + ".ics", "\"1\"", new ByteArrayInputStream(data));
+		}
+		cache.flush();
+		// access 1.ics so that 2.ics is the least recently used entry
+		assertNotNull(get("1.ics", "\"1\""));
+
+		for (int i = 4; i <= 5; i++) {
+			random.nextBytes(data);
+			cache.put(COLLECTION, i + ".ics", "\"1\"", new ByteArrayInputStream(data));
+		}
+		cache.flush();
+		assertTrue(cache.getSize() <= cache.getMaxSize());
+		assertNull(get("2.ics", "\"1\""));
+		assertNotNull(get("1.ics", "\"1\""));
+		assertNotNull(get("5.ics", "\"1\""));
+
+		// index is rebuilt from the cache directory
+		EntityCache reopened = new EntityCache(directory, 4096);
+		assertEquals(cache.getSize(), reopened.getSize());
+		assertNotNull(reopened.get(COLLECTION, "5.ics", "\"1\""));
+	}
+
+	public void testMultiGet() throws Exception {
+		DavTestServer server = new DavTestServer();
+		try {
+			DavTestServer.Collection collection = server.addCollection("/dav/calendar/", true);
+			for (int i = 1; i <= 3; i++)
+				collection.put(Fixtures.eventName(i), Fixtures.iCalendar(i, 0, 0));
+			CalDavCalendar remote = new CalDavCalendar(server.getBaseURL() + "/dav/calendar/", "", "", false);
+			remote.setEntityCache(cache);
+
+			// misses: downloaded and cached
+			assertEquals(3, remote.multiGet(members(remote)).length);
+			cache.flush();
+
+			// hits: no download
+			Resource[] members = members(remote);
+			server.resetCounters();
+			Resource[] cached = remote.multiGet(members);
+			assertEquals(0, server.requests.get());
+			assertEquals(3, cached.length);
+			for (Resource resource : cached)
+				assertTrue(((Event)resource).getSummary().endsWith("(revision 0)"));
+
+			// changed member (new ETag) is downloaded again
+			collection.put(Fixtures.eventName(2), Fixtures.iCalendar(2, 1, 0));
+			members = members(remote);
+			server.resetCounters();
+			Resource[] fetched = remote.multiGet(members);
+			assertEquals(1, server.requests.get());
+			assertEquals(3, fetched.length);
+			for (Resource resource : fetched)
+				if (Fixtures.eventName(2).equals(resource.getName()))
+					assertEquals("Event 2 (revision 1)", ((Event)resource).getSummary());
+		} finally {
+			server.close();
+		}
+	}
+
+
+	String get(String name, String ETag) throws Exception {
+		BufferPool.Buffer content = cache.get(COLLECTION, name, ETag);
+		if (content == null)
+			return null;
+		try {
+			return content.toString("UTF-8");
+		} finally {
+			content.release();
+		}
+	}
+
+	static Resource[] members(CalDavCalendar remote) throws Exception {
+		ETagList listing = remote.getMemberETags();
+		int[] indexes = new int[listing.size()];
+		for (int i = 0; i < indexes.length; i++)
+			indexes[i] = i;
+		return remote.getMembers(listing, indexes, indexes.length);
+	}
+
+	static ByteArrayInputStream stream(String s) throws Exception {
+		return new ByteArrayInputStream(s.getBytes("UTF-8"));
+	}
+}
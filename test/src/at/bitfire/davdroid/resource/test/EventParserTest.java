@@ -0,0 +1,122 @@
+package at.bitfire.davdroid.resource.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.Assert;
+import lombok.Cleanup;
+import net.fortuna.ical4j.model.DefaultTimeZoneRegistryFactory;
+import net.fortuna.ical4j.model.TimeZoneRegistry;
+import net.fortuna.ical4j.model.property.DateProperty;
+
+import org.apache.commons.io.IOUtils;
+
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.InvalidResourceException;
+import at.bitfire.davdroid.resource.VEventReader;
+
+/**
+ * Differential test: every iCalendar in the test assets must result in the same Event,
+ * regardless of whether it's parsed by the fast VEventReader or by iCal4j. All other
+ * iCalendars than the listed ones must be handled by VEventReader without falling back to iCal4j.
+ */
+public class EventParserTest extends InstrumentationTestCase {
+	static final Set<String> FALLBACK = new HashSet<String>(Arrays.asList(
+		"corpus-delegated.ics",			// invalid URI, iCal4j decides
+		"corpus-lowercase-begin.ics",
+		"corpus-outlook-tz.ics",		// Windows time zone names
+		"corpus-rdate-period.ics",
+		"vienna-evolution.ics"			// custom TZID
+	));
+	static final TimeZoneRegistry tzRegistry = new DefaultTimeZoneRegistryFactory().createRegistry();
+
+	AssetManager assetMgr;
+
+	public void setUp() {
+		assetMgr = getInstrumentation().getContext().getResources().getAssets();
+	}
+
+
+	public void testCorpus() throws IOException {
+		int count = 0;
+		for (String fname : assetMgr.list(""))
+			if (fname.endsWith(".ics")) {
+				@Cleanup InputStream in = assetMgr.open(fname, AssetManager.ACCESS_STREAMING);
+				byte[] data = IOUtils.toByteArray(in);
+				assertSameResult(fname, data);
+				assertEquals(fname + ": parsed by VEventReader", !FALLBACK.contains(fname), isFastParseable(data));
+				count++;
+			}
+		assertTrue(count >= 10);
+	}
+
+
+	static boolean isFastParseable(byte[] data) throws IOException {
+		try {
+			assertNotNull(VEventReader.read(new InputStreamReader(new ByteArrayInputStream(data), "UTF-8"), tzRegistry));
+			return true;
+		} catch (VEventReader.UnsupportedException e) {
+			return false;
+		}
+	}
+
+	public static void assertSameResult(String fname, byte[] data) throws IOException {
+		Event reference = new Event(fname, null), fast = new Event(fname, null);
+		InvalidResourceException referenceException = null, fastException = null;
+		try {
+			reference.parseEntity(new ByteArrayInputStream(data), false);
+		} catch (InvalidResourceException e) {
+			referenceException = e;
+		}
+		try {
+			fast.parseEntity(new ByteArrayInputStream(data), true);
+		} catch (InvalidResourceException e) {
+			fastException = e;
+		}
+
+		Assert.assertEquals(fname + ": invalid", referenceException != null, fastException != null);
+		if (referenceException == null)
+			assertSameEvent(fname, reference, fast);
+	}
+
+	public static void assertSameEvent(String fname, Event expected, Event actual) {
+		Assert.assertEquals(fname + ": UID", expected.getUid(), actual.getUid());
+
+		assertSameDate(fname + ": DTSTART", expected.getDtStart(), actual.getDtStart());
+		assertSameDate(fname + ": DTEND", expected.getDtEnd(), actual.getDtEnd());
+		Assert.assertEquals(fname + ": all-day", expected.isAllDay(), actual.isAllDay());
+		Assert.assertEquals(fname + ": DURATION", String.valueOf(expected.getDuration()), String.valueOf(actual.getDuration()));
+
+		Assert.assertEquals(fname + ": RRULE", String.valueOf(expected.getRrule()), String.valueOf(actual.getRrule()));
+		Assert.assertEquals(fname + ": RDATE", String.valueOf(expected.getRdate()), String.valueOf(actual.getRdate()));
+		Assert.assertEquals(fname + ": EXRULE", String.valueOf(expected.getExrule()), String.valueOf(actual.getExrule()));
+		Assert.assertEquals(fname + ": EXDATE", String.valueOf(expected.getExdate()), String.valueOf(actual.getExdate()));
+
+		Assert.assertEquals(fname + ": SUMMARY", expected.getSummary(), actual.getSummary());
+		Assert.assertEquals(fname + ": LOCATION", expected.getLocation(), actual.getLocation());
+		Assert.assertEquals(fname + ": DESCRIPTION", expected.getDescription(), actual.getDescription());
+
+		// LocalCalendar compares STATUS by identity
+		Assert.assertSame(fname + ": STATUS", expected.getStatus(), actual.getStatus());
+		Assert.assertEquals(fname + ": TRANSP", expected.isOpaque(), actual.isOpaque());
+		Assert.assertEquals(fname + ": CLASS", expected.getForPublic(), actual.getForPublic());
+
+		Assert.assertEquals(fname + ": ORGANIZER", String.valueOf(expected.getOrganizer()), String.valueOf(actual.getOrganizer()));
+		Assert.assertEquals(fname + ": ATTENDEEs", expected.getAttendees().toString(), actual.getAttendees().toString());
+		Assert.assertEquals(fname + ": VALARMs", expected.getAlarms().toString(), actual.getAlarms().toString());
+	}
+
+	private static void assertSameDate(String message, DateProperty expected, DateProperty actual) {
+		Assert.assertEquals(message, expected.toString(), actual.toString());
+		Assert.assertEquals(message, expected.getDate().getTime(), actual.getDate().getTime());
+		Assert.assertEquals(message, expected.isUtc(), actual.isUtc());
+		Assert.assertEquals(message, String.valueOf(expected.getTimeZone()), String.valueOf(actual.getTimeZone()));
+	}
+}
@@ -73,6 +73,34 @@ public class EventTest extends InstrumentationTestCase {
 		assertEquals(Time.TIMEZONE_UTC, eAllDay0Sec.getDtEndTzID());
 	}
 	
+	public void testMerge() throws IOException, InvalidResourceException {
+		Event base = parseCalendar("vienna-evolution.ics"),
+			  local = parseCalendar("vienna-evolution.ics"),
+			  server = parseCalendar("vienna-evolution.ics");
+		local.setSummary("Local summary");
+		server.setSummary("Server summary");
+		server.setLocation("Server location");
+		server.setDescription("Server description");
+		local.mergeFrom(base, server);
+		
+		// changed locally: kept (also when changed on the server, too)
+		assertEquals("Local summary", local.getSummary());
+		// unchanged locally: taken from server
+		assertEquals("Server location", local.getLocation());
+		assertEquals("Server description", local.getDescription());
+		assertEquals(1381330800000L, local.getDtStartInMillis());
+	}
+	
+	public void testFingerprint() throws Exception {
+		Event event = parseCalendar("vienna-evolution.ics");
+		String fingerprint = event.fingerprint();
+		Thread.sleep(1000);		// DTSTAMP/LAST-MODIFIED change
+		assertEquals(fingerprint, event.fingerprint());
+		
+		event.setLocation("Changed location");
+		assertFalse(fingerprint.equals(event.fingerprint()));
+	}
+	
 	
 	protected Event parseCalendar(String fname) throws IOException, InvalidResourceException {
 		@Cleanup InputStream in = assetMgr.open(fname, AssetManager.ACCESS_STREAMING);
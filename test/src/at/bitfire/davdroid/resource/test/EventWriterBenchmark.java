@@ -0,0 +1,45 @@
+package at.bitfire.davdroid.resource.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.test.BenchmarkTestCase;
+
+/**
+ * Benchmarks Event.writeEntity() against the former implementation (Calendar + CalendarOutputter,
+ * see {@link EventWriterTest}) for every iCalendar in the test assets.
+ */
+public class EventWriterBenchmark extends BenchmarkTestCase {
+	static final int ITERATIONS = 200;
+
+	public void testWriteEntity() throws IOException {
+		List<Event> events = EventWriterTest.parseCorpus(getInstrumentation().getContext().getResources().getAssets());
+		for (int run = 0; run < 2; run++) {		// first run = warm-up
+			benchmark("CalendarOutputter", events, true);
+			benchmark("writeEntity", events, false);
+		}
+	}
+
+	void benchmark(String name, List<Event> events, boolean reference) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(16384);
+
+		startAllocCounting();
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			for (Event event : events) {
+				os.reset();
+				if (reference)
+					EventWriterTest.writeWithCalendarOutputter(event, os);
+				else
+					event.writeEntity(os);
+			}
+		long time = System.nanoTime() - start;
+		String allocations = stopAllocCounting();
+
+		int count = ITERATIONS * events.size();
+		report(String.format("%s: %d events in %.1f ms (%.1f µs/event), %s",
+			name, count, time / 1e6, time / 1e3 / count, allocations));
+	}
+}
@@ -0,0 +1,160 @@
+package at.bitfire.davdroid.resource.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.Assert;
+import lombok.Cleanup;
+import net.fortuna.ical4j.data.CalendarOutputter;
+import net.fortuna.ical4j.model.PropertyList;
+import net.fortuna.ical4j.model.ValidationException;
+import net.fortuna.ical4j.model.component.VAlarm;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.Attendee;
+import net.fortuna.ical4j.model.property.Clazz;
+import net.fortuna.ical4j.model.property.Description;
+import net.fortuna.ical4j.model.property.LastModified;
+import net.fortuna.ical4j.model.property.Location;
+import net.fortuna.ical4j.model.property.ProdId;
+import net.fortuna.ical4j.model.property.Summary;
+import net.fortuna.ical4j.model.property.Transp;
+import net.fortuna.ical4j.model.property.Uid;
+import net.fortuna.ical4j.model.property.Version;
+
+import org.apache.commons.io.IOUtils;
+
+import android.content.res.AssetManager;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.InvalidResourceException;
+
+/**
+ * Compares Event.writeEntity() with the former implementation (Calendar + CalendarOutputter)
+ * for every iCalendar in the test assets (see {@link EventWriterBenchmark} for a comparison of the speed).
+ */
+public class EventWriterTest extends InstrumentationTestCase {
+	AssetManager assetMgr;
+
+	public void setUp() {
+		assetMgr = getInstrumentation().getContext().getResources().getAssets();
+	}
+
+
+	public void testCorpus() throws IOException {
+		for (Event event : parseCorpus(assetMgr))
+			assertSameOutput(event);
+	}
+
+
+	public static void assertSameOutput(Event event) throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream(), actual = new ByteArrayOutputStream();
+		writeWithCalendarOutputter(event, expected);
+		event.writeEntity(actual);
+		Assert.assertEquals(event.getName(), withFixedTimestamps(expected.toString("UTF-8")), withFixedTimestamps(actual.toString("UTF-8")));
+	}
+
+	/* former implementation of Event.writeEntity() */
+	static void writeWithCalendarOutputter(Event e, OutputStream os) throws IOException {
+		net.fortuna.ical4j.model.Calendar ical = new net.fortuna.ical4j.model.Calendar();
+		ical.getProperties().add(Version.VERSION_2_0);
+		ical.getProperties().add(new ProdId("-//bitfire web engineering//DAVdroid " + Constants.APP_VERSION + "//EN"));
+
+		VEvent event = new VEvent();
+		PropertyList props = event.getProperties();
+
+		if (e.getUid() != null)
+			props.add(new Uid(e.getUid()));
+
+		props.add(e.getDtStart());
+		if (e.getDtEnd() != null)
+			props.add(e.getDtEnd());
+		if (e.getDuration() != null)
+			props.add(e.getDuration());
+
+		if (e.getRrule() != null)
+			props.add(e.getRrule());
+		if (e.getRdate() != null)
+			props.add(e.getRdate());
+		if (e.getExrule() != null)
+			props.add(e.getExrule());
+		if (e.getExdate() != null)
+			props.add(e.getExdate());
+
+		if (e.getSummary() != null && !e.getSummary().isEmpty())
+			props.add(new Summary(e.getSummary()));
+		if (e.getLocation() != null && !e.getLocation().isEmpty())
+			props.add(new Location(e.getLocation()));
+		if (e.getDescription() != null && !e.getDescription().isEmpty())
+			props.add(new Description(e.getDescription()));
+
+		if (e.getStatus() != null)
+			props.add(e.getStatus());
+		if (!e.isOpaque())
+			props.add(Transp.TRANSPARENT);
+
+		if (e.getOrganizer() != null)
+			props.add(e.getOrganizer());
+		for (Attendee attendee : e.getAttendees())
+			props.add(attendee);
+
+		if (e.getForPublic() != null)
+			props.add(e.getForPublic() ? Clazz.PUBLIC : Clazz.PRIVATE);
+
+		for (VAlarm alarm : e.getAlarms())
+			event.getAlarms().add(alarm);
+
+		props.add(new LastModified());
+		ical.getComponents().add(event);
+
+		net.fortuna.ical4j.model.TimeZone
+			tzStart = (e.getDtStart() == null ? null : e.getDtStart().getTimeZone()),
+			tzEnd = (e.getDtEnd() == null ? null : e.getDtEnd().getTimeZone());
+		if (tzStart != null)
+			ical.getComponents().add(tzStart.getVTimeZone());
+		if (tzEnd != null && tzEnd != tzStart)
+			ical.getComponents().add(tzEnd.getVTimeZone());
+
+		try {
+			new CalendarOutputter(false).output(ical, os);
+		} catch (ValidationException ex) {
+			fail("Generated invalid iCalendar");
+		}
+	}
+
+
+	/* helpers */
+
+	static List<Event> parseCorpus(AssetManager assetMgr) throws IOException {
+		List<Event> events = new LinkedList<Event>();
+		for (String fname : assetMgr.list(""))
+			if (fname.endsWith(".ics")) {
+				@Cleanup InputStream in = assetMgr.open(fname, AssetManager.ACCESS_STREAMING);
+				Event event = parseEvent(fname, IOUtils.toByteArray(in));
+				if (event != null)
+					events.add(event);
+			}
+		assertFalse(events.isEmpty());
+		return events;
+	}
+
+	static Event parseEvent(String fname, byte[] data) throws IOException {
+		Event event = new Event(fname, null);
+		try {
+			event.parseEntity(new ByteArrayInputStream(data));
+			return event;
+		} catch (InvalidResourceException e) {
+			return null;
+		}
+	}
+
+	// DTSTAMP and LAST-MODIFIED are set to the current time when writing (values replaced, order still compared)
+	static String withFixedTimestamps(String ical) {
+		return ical.replaceAll("(DTSTAMP|LAST-MODIFIED):[0-9T]+Z\r\n", "$1:20000101T000000Z\r\n");
+	}
+}
@@ -0,0 +1,348 @@
+package at.bitfire.davdroid.resource.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.TransactionTooLargeException;
+import android.provider.BaseColumns;
+import android.provider.CalendarContract;
+import android.test.mock.MockContentResolver;
+
+/**
+ * In-memory stand-in for the Calendar/Contacts providers, so that the local storage paths of
+ * LocalCollection/LocalCalendar/LocalAddressBook can be measured without the real providers.
+ *
+ * Tables are named by the first path segment of the URI ("events", "raw_contacts", "data" ...),
+ * ".../[table]/[id]" addresses a single row. Selections may consist of "column=value",
+ * "column=?", "column IS [NOT] NULL" terms joined by AND; sort orders are ignored (rows are
+ * returned in insertion order). Without caller_is_syncadapter=true, updates and deletes of
+ * entries set DIRTY (and DELETED) like the real providers do. applyBatch() is the framework
+ * implementation, so back-references are resolved like on a device.
+ *
+ * Every call through the ContentProviderClient (including a whole applyBatch()) costs the
+ * configured latency to model binder IPC.
+ */
+public class InMemoryProvider extends ContentProvider {
+	private static final String
+		COLUMN_DIRTY = "dirty",
+		COLUMN_DELETED = "deleted";
+
+	// tables whose rows get DIRTY/DELETED flags when they're changed by someone else than the sync adapter
+	private static final String[] ENTRY_TABLES = { "events", "raw_contacts" };
+
+	private static final Pattern
+		TERM_COMPARE = Pattern.compile("(\\w+)\\s*(=|!=|<>)\\s*(.+)"),
+		TERM_NULL = Pattern.compile("(?i)(\\w+)\\s+IS\\s+(NOT\\s+)?NULL");
+
+	static class Table {
+		final TreeMap<Long, ContentValues> rows = new TreeMap<Long, ContentValues>();
+		final Set<String> columns = new LinkedHashSet<String>();
+		long nextID = 1;
+	}
+	final Map<String, Table> tables = new HashMap<String, Table>();
+	final Map<String, List<String[]>> selections = new HashMap<String, List<String[]>>();
+
+	protected int latencyMicros;
+	protected int calls, operations;
+	private boolean inBatch;
+
+	// simulated failures of applyBatch() (0: none)
+	protected int rejectBatchesAbove, failBatch;
+
+
+	/**
+	 * Creates a provider for the given authorities and returns a client for the first one.
+	 */
+	public static ContentProviderClient acquireClient(Context context, InMemoryProvider provider, String... authorities) {
+		provider.attachInfo(context, null);
+		MockContentResolver resolver = new MockContentResolver();
+		for (String authority : authorities)
+			resolver.addProvider(authority, provider);
+		return resolver.acquireContentProviderClient(authorities[0]);
+	}
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+
+	/* configuration and statistics */
+
+	public synchronized void setLatency(int micros) {
+		latencyMicros = micros;
+	}
+
+	public synchronized int getCalls() {
+		return calls;
+	}
+
+	public synchronized int getOperations() {
+		return operations;
+	}
+
+	/* the next applyBatch() with more than maxOperations operations fails with TransactionTooLargeException, like a binder call */
+	public synchronized void rejectBatchOnce(int maxOperations) {
+		rejectBatchesAbove = maxOperations;
+	}
+
+	/* the n-th next applyBatch() fails with OperationApplicationException */
+	public synchronized void failBatch(int n) {
+		failBatch = n;
+	}
+
+	public synchronized void resetCounters() {
+		calls = 0;
+		operations = 0;
+	}
+
+	public synchronized int count(Uri uri) {
+		Table table = tables.get(tableName(uri));
+		return (table != null) ? table.rows.size() : 0;
+	}
+
+	protected void call() {
+		operations++;
+		if (inBatch)
+			return;
+		calls++;
+		if (latencyMicros > 0)
+			try {
+				Thread.sleep(latencyMicros / 1000, (latencyMicros % 1000) * 1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+	}
+
+
+	/* ContentProvider */
+
+	@Override
+	public String getType(Uri uri) {
+		return null;
+	}
+
+	@Override
+	public synchronized Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		call();
+		Table table = getTable(uri);
+		if (projection == null)
+			projection = table.columns.toArray(new String[0]);
+
+		MatrixCursor cursor = new MatrixCursor(projection);
+		for (ContentValues row : select(table, uri, selection, selectionArgs)) {
+			Object[] values = new Object[projection.length];
+			for (int i = 0; i < projection.length; i++)
+				values[i] = row.get(projection[i]);
+			cursor.addRow(values);
+		}
+		return cursor;
+	}
+
+	@Override
+	public synchronized Uri insert(Uri uri, ContentValues values) {
+		call();
+		Table table = getTable(uri);
+		long id = table.nextID++;
+
+		ContentValues row = new ContentValues();
+		if (isEntryTable(uri)) {
+			// column defaults of the real providers
+			row.put(COLUMN_DIRTY, isSyncAdapter(uri) ? 0 : 1);
+			row.put(COLUMN_DELETED, 0);
+		}
+		for (Map.Entry<String, Object> value : values.valueSet())
+			put(row, value.getKey(), value.getValue());
+		row.put(BaseColumns._ID, id);
+
+		table.rows.put(id, row);
+		table.columns.addAll(row.keySet());
+		return ContentUris.withAppendedId(uri.buildUpon().clearQuery().build(), id);
+	}
+
+	@Override
+	public synchronized int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		call();
+		Table table = getTable(uri);
+		boolean markDirty = isEntryTable(uri) && !isSyncAdapter(uri);
+
+		List<ContentValues> rows = select(table, uri, selection, selectionArgs);
+		for (ContentValues row : rows) {
+			for (Map.Entry<String, Object> value : values.valueSet())
+				put(row, value.getKey(), value.getValue());
+			if (markDirty)
+				row.put(COLUMN_DIRTY, 1);
+		}
+		table.columns.addAll(values.keySet());
+		return rows.size();
+	}
+
+	@Override
+	public synchronized int delete(Uri uri, String selection, String[] selectionArgs) {
+		call();
+		Table table = getTable(uri);
+		boolean markDeleted = isEntryTable(uri) && !isSyncAdapter(uri);
+
+		List<ContentValues> rows = select(table, uri, selection, selectionArgs);
+		for (ContentValues row : rows)
+			if (markDeleted) {
+				row.put(COLUMN_DIRTY, 1);
+				row.put(COLUMN_DELETED, 1);
+			} else
+				table.rows.remove(row.getAsLong(BaseColumns._ID));
+		return rows.size();
+	}
+
+	@Override
+	public synchronized ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+		call();
+		if (rejectBatchesAbove > 0 && operations.size() > rejectBatchesAbove) {
+			rejectBatchesAbove = 0;
+			InMemoryProvider.<RuntimeException>sneakyThrow(new TransactionTooLargeException());
+		}
+		if (failBatch > 0 && --failBatch == 0)
+			throw new OperationApplicationException("Simulated failure");
+		inBatch = true;
+		try {
+			return super.applyBatch(operations);
+		} finally {
+			inBatch = false;
+		}
+	}
+
+
+	/* helpers */
+
+	// ContentProvider.applyBatch() can't throw RemoteExceptions, but the binder can
+	@SuppressWarnings("unchecked")
+	private static <E extends Exception> void sneakyThrow(Exception e) throws E {
+		throw (E)e;
+	}
+
+	private static String tableName(Uri uri) {
+		return uri.getAuthority() + "/" + uri.getPathSegments().get(0);
+	}
+
+	private Table getTable(Uri uri) {
+		String name = tableName(uri);
+		Table table = tables.get(name);
+		if (table == null) {
+			table = new Table();
+			table.columns.add(BaseColumns._ID);
+			tables.put(name, table);
+		}
+		return table;
+	}
+
+	private static boolean isEntryTable(Uri uri) {
+		String table = uri.getPathSegments().get(0);
+		for (String entryTable : ENTRY_TABLES)
+			if (entryTable.equals(table))
+				return true;
+		return false;
+	}
+
+	private static boolean isSyncAdapter(Uri uri) {
+		// same parameter name for CalendarContract and ContactsContract
+		return Boolean.parseBoolean(uri.getQueryParameter(CalendarContract.CALLER_IS_SYNCADAPTER));
+	}
+
+	// stores values like SQLite would do (booleans as integers)
+	private static void put(ContentValues row, String key, Object value) {
+		if (value instanceof Boolean)
+			row.put(key, (Boolean)value ? 1 : 0);
+		else if (value instanceof byte[])
+			row.put(key, (byte[])value);
+		else if (value == null)
+			row.putNull(key);
+		else
+			row.put(key, value.toString());
+	}
+
+	private List<ContentValues> select(Table table, Uri uri, String selection, String[] selectionArgs) {
+		List<ContentValues> result = new LinkedList<ContentValues>();
+
+		List<String> segments = uri.getPathSegments();
+		if (segments.size() >= 2) {
+			// single row
+			ContentValues row = table.rows.get(Long.parseLong(segments.get(1)));
+			if (row != null && matches(row, parseSelection(selection), selectionArgs))
+				result.add(row);
+			return result;
+		}
+
+		List<String[]> terms = parseSelection(selection);
+		for (ContentValues row : table.rows.values())
+			if (matches(row, terms, selectionArgs))
+				result.add(row);
+		return result;
+	}
+
+	/* parses a selection into terms { column, operator, value } (cached, because the same selections are used over and over) */
+	private List<String[]> parseSelection(String selection) {
+		if (selection == null)
+			return null;
+		List<String[]> terms = selections.get(selection);
+		if (terms != null)
+			return terms;
+
+		terms = new LinkedList<String[]>();
+		for (String term : selection.trim().split("(?i)\\s+AND\\s+")) {
+			Matcher matcher;
+			if ((matcher = TERM_NULL.matcher(term)).matches())
+				terms.add(new String[] { matcher.group(1), matcher.group(2) == null ? "IS NULL" : "IS NOT NULL", null });
+			else if ((matcher = TERM_COMPARE.matcher(term)).matches()) {
+				String value = matcher.group(3).trim();
+				if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'"))
+					value = value.substring(1, value.length() - 1).replace("''", "'");
+				terms.add(new String[] { matcher.group(1), "=".equals(matcher.group(2)) ? "=" : "!=", value });
+			} else
+				throw new IllegalArgumentException("Unsupported selection: " + selection);
+		}
+		selections.put(selection, terms);
+		return terms;
+	}
+
+	private static boolean matches(ContentValues row, List<String[]> terms, String[] selectionArgs) {
+		if (terms == null)
+			return true;
+
+		int arg = 0;
+		for (String[] term : terms) {
+			Object value = row.get(term[0]);
+			String op = term[1];
+			if ("IS NULL".equals(op)) {
+				if (value != null)
+					return false;
+			} else if ("IS NOT NULL".equals(op)) {
+				if (value == null)
+					return false;
+			} else {
+				String expected = "?".equals(term[2]) ? selectionArgs[arg++] : term[2];
+				boolean equal = value != null && value.toString().equals(expected);
+				if (equal != "=".equals(op))
+					return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,130 @@
+package at.bitfire.davdroid.resource.test;
+
+import lombok.Cleanup;
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Events;
+import android.provider.CalendarContract.Reminders;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.resource.LocalCalendar;
+import at.bitfire.davdroid.resource.LocalStorageException;
+import at.bitfire.davdroid.resource.SyncStateStore;
+import at.bitfire.davdroid.test.Fixtures;
+
+public class LocalCollectionBatchTest extends InstrumentationTestCase {
+	static final int EVENTS = 20;
+	static final String SYNC_STATE_KEY = "test batch";
+
+	Account account = new Account("davdroid-test", Constants.ACCOUNT_TYPE);
+	InMemoryProvider provider;
+	ContentProviderClient client;
+	LocalCalendar calendar;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		provider = new InMemoryProvider();
+		client = InMemoryProvider.acquireClient(getInstrumentation().getContext(), provider, CalendarContract.AUTHORITY);
+		calendar = new LocalCalendar(account, client, 1, "test", null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.release();
+	}
+
+
+	public void testSingleBatch() throws Exception {
+		for (int i = 1; i <= EVENTS; i++)
+			calendar.add(Fixtures.event(i, 0, i));
+		provider.resetCounters();
+		calendar.commit();
+		assertEquals(1, provider.getCalls());
+		assertReminders();
+	}
+
+	public void testSplitBatches() throws Exception {
+		calendar.setMaxBatchSize(2048);
+		for (int i = 1; i <= EVENTS; i++)
+			calendar.add(Fixtures.event(i, 0, i));
+		provider.resetCounters();
+		calendar.commit();
+		assertTrue(provider.getCalls() > 1);
+		assertReminders();
+	}
+
+	public void testTooLargeBatch() throws Exception {
+		for (int i = 1; i <= EVENTS; i++)
+			calendar.add(Fixtures.event(i, 0, i));
+		provider.rejectBatchOnce(EVENTS);		// one event = two operations
+		provider.resetCounters();
+		calendar.commit();
+		assertTrue(provider.getCalls() > 2);
+		assertReminders();
+	}
+
+	public void testFailedBatch() throws Exception {
+		calendar.setMaxBatchSize(2048);
+		for (int i = 1; i <= EVENTS; i++)
+			calendar.add(Fixtures.event(i, 0, i));
+		provider.failBatch(2);
+		try {
+			calendar.commit();
+			fail();
+		} catch (LocalStorageException e) {
+		}
+		assertTrue(provider.count(Events.CONTENT_URI) > 0);
+
+		// the first batch must not be applied again
+		calendar.commit();
+		assertReminders();
+	}
+
+
+	public void testReconcileSyncState() throws Exception {
+		SyncStateStore store = SyncStateStore.getInstance(getInstrumentation().getTargetContext());
+		store.replaceEntries(SYNC_STATE_KEY, new SyncStateStore.Snapshot(0));
+		calendar.setSyncState(store, SYNC_STATE_KEY);
+		for (int i = 1; i <= 3; i++)
+			calendar.add(Fixtures.event(i, 0, i));
+		calendar.commit();
+		assertEquals(3, store.countEntries(SYNC_STATE_KEY));
+
+		// change the provider behind the store's back, keeping the number of entries
+		Uri eventsURI = Events.CONTENT_URI.buildUpon().appendQueryParameter(CalendarContract.CALLER_IS_SYNCADAPTER, "true").build();
+		client.delete(ContentUris.withAppendedId(eventsURI, 1), null, null);
+		ContentValues values = new ContentValues();
+		values.put(Events.CALENDAR_ID, 1);
+		values.put(Events._SYNC_ID, "other.ics");
+		values.put(Events.SYNC_DATA1, "\"other\"");
+		long otherID = ContentUris.parseId(client.insert(eventsURI, values));
+
+		calendar = new LocalCalendar(account, client, 1, "test", null);
+		calendar.setSyncState(store, SYNC_STATE_KEY);
+		SyncStateStore.Snapshot snapshot = calendar.getSnapshot();
+		assertEquals(3, snapshot.size());
+		assertEquals(-1, snapshot.indexOf(Fixtures.eventName(1)));
+		int idx = snapshot.indexOf("other.ics");
+		assertEquals(otherID, snapshot.getLocalID(idx));
+		assertEquals("\"other\"", snapshot.getETag(idx));
+		assertEquals(3, store.countEntries(SYNC_STATE_KEY));
+	}
+
+
+	/* every reminder must belong to the event it has been inserted with (back-references adjusted to the batch);
+	   event i is inserted as i-th event (ID i) and has a reminder i minutes before */
+	void assertReminders() throws Exception {
+		assertEquals(EVENTS, provider.count(Events.CONTENT_URI));
+		assertEquals(EVENTS, provider.count(Reminders.CONTENT_URI));
+
+		@Cleanup Cursor cursor = client.query(Reminders.CONTENT_URI, new String[] { Reminders.EVENT_ID, Reminders.MINUTES }, null, null, null);
+		while (cursor.moveToNext())
+			assertEquals(cursor.getLong(0), cursor.getLong(1));
+	}
+}
@@ -0,0 +1,258 @@
+package at.bitfire.davdroid.resource.test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentProviderClient;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Events;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.resource.Contact;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.LocalAddressBook;
+import at.bitfire.davdroid.resource.LocalCalendar;
+import at.bitfire.davdroid.resource.LocalCollection;
+import at.bitfire.davdroid.resource.Resource;
+import at.bitfire.davdroid.test.BenchmarkTestCase;
+import at.bitfire.davdroid.test.Fixtures;
+
+/**
+ * Benchmarks the local storage paths (findNew, findUpdated, populate, add, updateByRemoteName,
+ * commit) of LocalCalendar and LocalAddressBook against {@link InMemoryProvider}, once without
+ * and once with simulated binder latency.
+ */
+public class LocalStorageBenchmark extends BenchmarkTestCase {
+	static final int
+		SIZE = 1000,
+		POPULATE_COUNT = 200,
+		COMMIT_BATCH = 100;			// same as SyncManager
+	static final int[] LATENCIES = { 0, 200 };	// µs per provider call
+
+	Context context;
+	Account account = new Account("davdroid-benchmark", Constants.ACCOUNT_TYPE);
+
+
+	@Override
+	protected void setUp() throws Exception {
+		context = getInstrumentation().getContext();
+	}
+
+
+	public void testCalendar() throws Exception {
+		for (int latency : LATENCIES)
+			runBenchmarks(new CalendarTarget(), latency);
+	}
+
+	public void testAddressBook() throws Exception {
+		for (int latency : LATENCIES)
+			runBenchmarks(new AddressBookTarget(), latency);
+	}
+
+
+	void runBenchmarks(Target target, int latency) throws Exception {
+		InMemoryProvider provider = new InMemoryProvider();
+		ContentProviderClient client = InMemoryProvider.acquireClient(context, provider, target.getAuthority());
+		provider.setLatency(latency);
+		try {
+			String prefix = target.getName() + " (" + latency + " µs/call) ";
+			LocalCollection<?> local = target.createLocal(client);
+
+			// add + commit
+			List<Resource> resources = new LinkedList<Resource>();
+			for (int i = 0; i < SIZE; i++)
+				resources.add(target.generate(i, 0));
+			long addTime = 0, commitTime = 0;
+			provider.resetCounters();
+			int n = 0;
+			for (Resource resource : resources) {
+				long start = System.nanoTime();
+				local.add(resource);
+				addTime += System.nanoTime() - start;
+				if (++n % COMMIT_BATCH == 0 || n == SIZE) {
+					start = System.nanoTime();
+					local.commit();
+					commitTime += System.nanoTime() - start;
+				}
+			}
+			report(prefix + "add (" + SIZE + ")", addTime, -1);
+			report(prefix + "commit after add", commitTime, provider.getCalls());
+			assertEquals(SIZE, provider.count(target.entriesURI()));
+
+			// findNew: local additions without remote name
+			int fresh = SIZE / 10;
+			for (int i = 0; i < fresh; i++)
+				client.insert(target.entriesURI(), target.newLocalEntry(i));
+			provider.resetCounters();
+			long start = System.nanoTime();
+			long[] newIDs = local.findNew();
+			report(prefix + "findNew (" + fresh + ")", System.nanoTime() - start, provider.getCalls());
+			assertEquals(fresh, newIDs.length);
+
+			// findUpdated: local modifications (and the new entries, which are still dirty)
+			int modified = SIZE / 10;
+			for (int i = 1; i <= modified; i++)
+				client.update(Uri.withAppendedPath(target.entriesURI(), String.valueOf(i)), target.localModification(i), null, null);
+			provider.resetCounters();
+			start = System.nanoTime();
+			long[] dirtyIDs = local.findUpdated();
+			report(prefix + "findUpdated (" + (fresh + modified) + ")", System.nanoTime() - start, provider.getCalls());
+			assertEquals(fresh + modified, dirtyIDs.length);
+
+			// populate
+			provider.resetCounters();
+			start = System.nanoTime();
+			for (int i = 1; i <= POPULATE_COUNT; i++)
+				target.verify(local.findById(i, true));
+			report(prefix + "populate (" + POPULATE_COUNT + ")", System.nanoTime() - start, provider.getCalls());
+
+			// updateByRemoteName + commit
+			int updated = SIZE / 10;
+			local.getSnapshot();
+			provider.resetCounters();
+			start = System.nanoTime();
+			for (int i = 0; i < updated; i++) {
+				local.updateByRemoteName(target.generate(i, 1));
+				if ((i + 1) % COMMIT_BATCH == 0)
+					local.commit();
+			}
+			local.commit();
+			report(prefix + "updateByRemoteName + commit (" + updated + ")", System.nanoTime() - start, provider.getCalls());
+		} finally {
+			client.release();
+		}
+	}
+
+	void report(String benchmark, long nanos, int calls) {
+		String result = String.format("%s: %.1f ms", benchmark, nanos / 1e6);
+		if (calls >= 0)
+			result += ", " + calls + " provider call(s)";
+		report(result);
+	}
+
+
+	/* collection types */
+
+	abstract class Target {
+		abstract String getName();
+		abstract String getAuthority();
+		abstract Uri entriesURI();
+
+		abstract LocalCollection<?> createLocal(ContentProviderClient client) throws Exception;
+		abstract Resource generate(int i, int revision) throws Exception;
+		abstract ContentValues newLocalEntry(int i);
+		abstract ContentValues localModification(int i);
+		abstract void verify(Resource resource);
+	}
+
+	class CalendarTarget extends Target {
+		static final int CALENDAR_ID = 1;
+
+		@Override
+		String getName() {
+			return "calendar";
+		}
+
+		@Override
+		String getAuthority() {
+			return CalendarContract.AUTHORITY;
+		}
+
+		@Override
+		Uri entriesURI() {
+			return Events.CONTENT_URI;
+		}
+
+		@Override
+		LocalCollection<?> createLocal(ContentProviderClient client) throws Exception {
+			return new LocalCalendar(account, client, CALENDAR_ID, "benchmark", null);
+		}
+
+		@Override
+		Resource generate(int i, int revision) throws Exception {
+			return Fixtures.event(i, revision, 15);
+		}
+
+		@Override
+		ContentValues newLocalEntry(int i) {
+			ContentValues values = new ContentValues();
+			values.put(Events.CALENDAR_ID, CALENDAR_ID);
+			values.put(Events.TITLE, "New local event " + i);
+			values.put(Events.DTSTART, 1388570400000L);
+			values.put(Events.DTEND, 1388574000000L);
+			values.put(Events.EVENT_TIMEZONE, "UTC");
+			return values;
+		}
+
+		@Override
+		ContentValues localModification(int i) {
+			ContentValues values = new ContentValues();
+			values.put(Events.TITLE, "Modified event " + i);
+			return values;
+		}
+
+		@Override
+		void verify(Resource resource) {
+			Event event = (Event)resource;
+			assertNotNull(event.getUid());
+			assertEquals(1, event.getAlarms().size());
+		}
+	}
+
+	class AddressBookTarget extends Target {
+		@Override
+		String getName() {
+			return "address book";
+		}
+
+		@Override
+		String getAuthority() {
+			return ContactsContract.AUTHORITY;
+		}
+
+		@Override
+		Uri entriesURI() {
+			return RawContacts.CONTENT_URI;
+		}
+
+		@Override
+		LocalCollection<?> createLocal(ContentProviderClient client) throws Exception {
+			return new LocalAddressBook(account, client, AccountManager.get(context));
+		}
+
+		@Override
+		Resource generate(int i, int revision) throws Exception {
+			return Fixtures.contact(i, revision);
+		}
+
+		@Override
+		ContentValues newLocalEntry(int i) {
+			ContentValues values = new ContentValues();
+			values.put(RawContacts.ACCOUNT_NAME, account.name);
+			values.put(RawContacts.ACCOUNT_TYPE, account.type);
+			return values;
+		}
+
+		@Override
+		ContentValues localModification(int i) {
+			ContentValues values = new ContentValues();
+			values.put(RawContacts.STARRED, 1);
+			return values;
+		}
+
+		@Override
+		void verify(Resource resource) {
+			Contact contact = (Contact)resource;
+			assertNotNull(contact.getUid());
+			// data rows have been inserted with back-references
+			assertEquals(1, contact.getEmails().size());
+			assertEquals(1, contact.getPhoneNumbers().size());
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package at.bitfire.davdroid.resource.test;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.content.ContentProviderResult;
+import android.net.Uri;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.resource.SyncStateStore;
+
+public class SyncStateStoreTest extends InstrumentationTestCase {
+
+	private static final String KEY = "test https://example.com/dav/test/";
+
+	SyncStateStore store;
+
+
+	protected void setUp() throws Exception {
+		store = SyncStateStore.getInstance(getInstrumentation().getTargetContext());
+		store.replaceEntries(KEY, new SyncStateStore.Snapshot(0));
+	}
+
+
+	public void testStagedChanges() {
+		List<SyncStateStore.Change> changes = new LinkedList<SyncStateStore.Change>();
+		changes.add(SyncStateStore.Change.insert("new.vcf", "\"1\"", 0, "hash1"));
+		changes.add(SyncStateStore.Change.put("existing.vcf", "\"2\"", 12, null));
+		changes.add(SyncStateStore.Change.cTag("ctag1"));
+
+		store.beginUpdate(KEY);
+		assertFalse(store.isConsistent(KEY));
+
+		// provider batch result of the insert operation
+		store.apply(KEY, changes, new ContentProviderResult[] { new ContentProviderResult(Uri.parse("content://test/entries/11")) });
+		assertTrue(store.isConsistent(KEY));
+		assertEquals("ctag1", store.getCTag(KEY));
+
+		SyncStateStore.Snapshot entries = store.getEntries(KEY);
+		assertEquals(2, entries.size());
+		// sorted by name
+		assertEquals("existing.vcf", entries.getName(0));
+		assertEquals(12, entries.getLocalID(0));
+		assertEquals("new.vcf", entries.getName(1));
+		assertEquals(11, entries.getLocalID(1));
+		assertEquals("\"1\"", entries.getETag(1));
+		assertEquals("hash1", entries.getHash(1));
+
+		// uploaded resource: don't overwrite existing ETag
+		changes.clear();
+		changes.add(SyncStateStore.Change.touch("existing.vcf", 12));
+		changes.add(SyncStateStore.Change.remove("new.vcf"));
+		store.apply(KEY, changes, null);
+		entries = store.getEntries(KEY);
+		assertEquals(1, store.countEntries(KEY));
+		assertEquals("\"2\"", entries.getETag(entries.indexOf("existing.vcf")));
+	}
+
+	public void testQuarantine() {
+		final long now = System.currentTimeMillis();
+		String local = SyncStateStore.localItem(12);
+		store.clearFailure(KEY, local);
+		store.clearFailure(KEY, "invalid.ics");
+
+		SyncStateStore.QuarantineEntry entry = store.recordFailure(KEY, local, null, "ValidationException", now);
+		assertEquals(1, entry.getFailures());
+		long backoff = entry.getRetryAfter() - now;
+		assertTrue(backoff > 0);
+		assertFalse(entry.isRemote());
+
+		// backoff is doubled with every failure
+		entry = store.recordFailure(KEY, local, null, "ValidationException", now);
+		assertEquals(2, entry.getFailures());
+		assertEquals(2*backoff, entry.getRetryAfter() - now);
+		assertTrue(entry.isActive(null, now));
+		assertFalse(entry.isActive(null, entry.getRetryAfter()));
+
+		// remote resource: not active anymore when its ETag has changed
+		entry = store.recordFailure(KEY, "invalid.ics", "\"1\"", "InvalidResourceException", now);
+		assertTrue(entry.isRemote());
+		assertTrue(entry.isActive("\"1\"", now));
+		assertFalse(entry.isActive("\"2\"", now));
+
+		Map<String, SyncStateStore.QuarantineEntry> quarantine = store.getQuarantine(KEY, now);
+		assertEquals(2, quarantine.size());
+		assertEquals("InvalidResourceException", quarantine.get("invalid.ics").getLastError());
+		assertEquals(2, quarantine.get(local).getFailures());
+
+		store.clearFailure(KEY, local);
+		assertEquals(1, store.getQuarantine(KEY, now).size());
+
+		// entries without recent failures expire
+		assertTrue(store.getQuarantine(KEY, now + 365*24*3600*1000L).isEmpty());
+	}
+
+}
@@ -0,0 +1,125 @@
+package at.bitfire.davdroid.syncadapter.test;
+
+import java.io.File;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.provider.CalendarContract;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.resource.CalDavCalendar;
+import at.bitfire.davdroid.resource.EntityCache;
+import at.bitfire.davdroid.resource.Event;
+import at.bitfire.davdroid.resource.LocalCalendar;
+import at.bitfire.davdroid.resource.test.InMemoryProvider;
+import at.bitfire.davdroid.syncadapter.ConflictResolver;
+import at.bitfire.davdroid.syncadapter.ConflictResolver.Policy;
+import at.bitfire.davdroid.test.Fixtures;
+import at.bitfire.davdroid.webdav.PreconditionFailedException;
+
+/**
+ * Resolves a 412 conflict of an event against {@link DavTestServer}: the event has been downloaded
+ * (revision 0), its location has been changed locally and its summary on the server (revision 1).
+ */
+public class ConflictResolverTest extends InstrumentationTestCase {
+	static final String
+		PATH = "/dav/calendar/",
+		NAME = Fixtures.eventName(1),
+		LOCAL_LOCATION = "Local location",
+		SERVER_SUMMARY = "Event 1 (revision 1)";
+
+	DavTestServer server;
+	DavTestServer.Collection collection;
+	EntityCache cache;
+	CalDavCalendar remote;
+
+	InMemoryProvider provider;
+	ContentProviderClient client;
+	LocalCalendar local;
+
+	Event event;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new DavTestServer();
+		collection = server.addCollection(PATH, true);
+		collection.put(NAME, Fixtures.iCalendar(1, 0, 0));
+
+		cache = new EntityCache(new File(getInstrumentation().getTargetContext().getCacheDir(), "entities-test"), 1024*1024);
+		cache.clear();
+		remote = new CalDavCalendar(server.getBaseURL() + PATH, "", "", false);
+		remote.setEntityCache(cache);
+
+		provider = new InMemoryProvider();
+		client = InMemoryProvider.acquireClient(getInstrumentation().getContext(), provider, CalendarContract.AUTHORITY);
+		local = new LocalCalendar(new Account("davdroid-test", Constants.ACCOUNT_TYPE), client, 1, "test", null);
+		local.add(remote.fetch(NAME));
+		local.commit();
+
+		// concurrent changes
+		event = local.findByRemoteName(NAME, true);
+		event.setLocation(LOCAL_LOCATION);
+		collection.put(NAME, Fixtures.iCalendar(1, 1, 0));
+		try {
+			remote.update(event);
+			fail();
+		} catch(PreconditionFailedException e) {
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.release();
+		cache.clear();
+		server.close();
+	}
+
+
+	public void testServerWins() throws Exception {
+		resolve(Policy.SERVER_WINS);
+		assertEquals(SERVER_SUMMARY, localEvent().getSummary());
+		assertEquals("Room 1", localEvent().getLocation());
+		assertEquals(Fixtures.iCalendar(1, 1, 0), collection.get(NAME));
+	}
+
+	public void testClientWins() throws Exception {
+		resolve(Policy.CLIENT_WINS);
+		Event uploaded = serverEvent();
+		assertEquals("Event 1 (revision 0)", uploaded.getSummary());
+		assertEquals(LOCAL_LOCATION, uploaded.getLocation());
+	}
+
+	public void testMerge() throws Exception {
+		resolve(Policy.MERGE);
+		// changes of both sides are in the local and the server version
+		for (Event merged : new Event[] { localEvent(), serverEvent() }) {
+			assertEquals(SERVER_SUMMARY, merged.getSummary());
+			assertEquals(LOCAL_LOCATION, merged.getLocation());
+		}
+	}
+
+	public void testMergeWithoutBase() throws Exception {
+		cache.clear();
+		resolve(Policy.MERGE);
+		assertEquals(SERVER_SUMMARY, localEvent().getSummary());
+		assertEquals("Room 1", localEvent().getLocation());
+		assertEquals(Fixtures.iCalendar(1, 1, 0), collection.get(NAME));
+	}
+
+
+	void resolve(Policy policy) throws Exception {
+		ConflictResolver resolver = new ConflictResolver(local, remote, policy);
+		assertTrue(resolver.resolve(event));
+		local.commit();
+		assertEquals(0, resolver.getUnresolved());
+	}
+
+	Event localEvent() throws Exception {
+		return local.findByRemoteName(NAME, true);
+	}
+
+	Event serverEvent() throws Exception {
+		return remote.fetch(NAME);
+	}
+}
@@ -0,0 +1,372 @@
+package at.bitfire.davdroid.syncadapter.test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Log;
+
+/**
+ * Minimal embedded CalDAV/CardDAV server for benchmarks. Supports OPTIONS, PROPFIND
+ * (Depth 0/1: CTag, sync-token, ETags), calendar/addressbook-multiget REPORT, GET, PUT and
+ * DELETE with If-Match/If-None-Match, and gzip-compressed request bodies. Collections are
+ * kept in memory. Counts requests, listings, sent members and transferred bytes.
+ */
+public class DavTestServer implements Runnable {
+	private static final String TAG = "davdroid.DavTestServer";
+
+	private static final Pattern HREF = Pattern.compile("<(?:\\w+:)?href>([^<]*)</(?:\\w+:)?href>");
+
+	public static class Collection {
+		final boolean calendar;
+		final TreeMap<String, Member> members = new TreeMap<String, Member>();
+		final Map<String, Integer> rejectedPuts = new HashMap<String, Integer>();
+		int putDelay;
+		int cTag = (int)(System.currentTimeMillis() % 100000);
+
+		Collection(boolean calendar) {
+			this.calendar = calendar;
+		}
+
+		public synchronized void put(String name, String data) {
+			members.put(name, new Member(data));
+			cTag++;
+		}
+
+		public synchronized void remove(String name) {
+			members.remove(name);
+			cTag++;
+		}
+
+		/* PUTs of this member are answered with the given status code */
+		public synchronized void rejectPut(String name, int code) {
+			rejectedPuts.put(name, code);
+		}
+
+		/* accepted PUTs are answered after the given time (concurrent requests are delayed concurrently) */
+		public synchronized void delayPuts(int millis) {
+			putDelay = millis;
+		}
+
+		public synchronized int size() {
+			return members.size();
+		}
+
+		public synchronized String get(String name) {
+			Member member = members.get(name);
+			return (member != null) ? member.data : null;
+		}
+	}
+
+	static class Member {
+		private static final AtomicInteger nextETag = new AtomicInteger(1);
+
+		final String data, eTag;
+
+		Member(String data) {
+			this.data = data;
+			eTag = "\"" + nextETag.getAndIncrement() + "\"";
+		}
+	}
+
+	final ServerSocket serverSocket;
+	final Map<String, Collection> collections = new HashMap<String, Collection>();
+
+	public final AtomicInteger requests = new AtomicInteger(),
+		listings = new AtomicInteger(),			// PROPFIND Depth 1
+		membersSent = new AtomicInteger();		// members sent by GET/multiget
+	public final AtomicLong bytesReceived = new AtomicLong(), bytesSent = new AtomicLong();
+
+
+	public DavTestServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread thread = new Thread(this, "DavTestServer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public String getBaseURL() {
+		return "http://127.0.0.1:" + serverSocket.getLocalPort();
+	}
+
+	public Collection addCollection(String path, boolean calendar) {
+		Collection collection = new Collection(calendar);
+		synchronized(collections) {
+			collections.put(path, collection);
+		}
+		return collection;
+	}
+
+	public void resetCounters() {
+		requests.set(0);
+		listings.set(0);
+		membersSent.set(0);
+		bytesReceived.set(0);
+		bytesSent.set(0);
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+	}
+
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed())
+			try {
+				final Socket socket = serverSocket.accept();
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						handleConnection(socket);
+					}
+				}, "DavTestServer connection").start();
+			} catch (IOException e) {
+				if (!serverSocket.isClosed())
+					Log.e(TAG, "Couldn't accept connection", e);
+			}
+	}
+
+	void handleConnection(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				String requestLine = readLine(in);
+				if (requestLine == null)
+					break;
+				if (requestLine.isEmpty())
+					continue;
+
+				String[] request = requestLine.split(" ");
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = readLine(in)) != null && !line.isEmpty()) {
+					int colon = line.indexOf(':');
+					headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+				}
+
+				byte[] body = new byte[0];
+				if (headers.containsKey("content-length")) {
+					body = new byte[Integer.parseInt(headers.get("content-length"))];
+					int read = 0;
+					while (read < body.length) {
+						int n = in.read(body, read, body.length - read);
+						if (n == -1)
+							throw new EOFException();
+						read += n;
+					}
+				}
+				bytesReceived.addAndGet(requestLine.length() + body.length);
+				if ("gzip".equalsIgnoreCase(headers.get("content-encoding")))
+					body = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)));
+
+				requests.incrementAndGet();
+				Response response = handle(request[0], request[1], headers, new String(body, "UTF-8"));
+				response.write(out);
+				bytesSent.addAndGet(response.body.length);
+			}
+		} catch (SocketException e) {
+			// connection closed
+		} catch (IOException e) {
+			Log.w(TAG, "I/O error", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(100);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n')
+				return line.toString("ISO-8859-1").replaceAll("\r$", "");
+			line.write(b);
+		}
+		return (line.size() > 0) ? line.toString("ISO-8859-1") : null;
+	}
+
+
+	/* request handling */
+
+	static class Response {
+		final int code;
+		final Map<String, String> headers = new HashMap<String, String>();
+		final byte[] body;
+
+		Response(int code, String body) {
+			this.code = code;
+			this.body = (body != null) ? body.getBytes() : new byte[0];
+		}
+
+		void write(OutputStream out) throws IOException {
+			StringBuilder head = new StringBuilder();
+			head.append("HTTP/1.1 " + code + " " + reason(code) + "\r\n");
+			head.append("Content-Length: " + body.length + "\r\n");
+			head.append("Accept-Encoding: gzip\r\n");		// compressed request bodies are accepted (RFC 7694)
+			for (Map.Entry<String, String> header : headers.entrySet())
+				head.append(header.getKey() + ": " + header.getValue() + "\r\n");
+			head.append("\r\n");
+			out.write(head.toString().getBytes("ISO-8859-1"));
+			out.write(body);
+			out.flush();
+		}
+
+		static String reason(int code) {
+			switch (code) {
+			case 200: return "OK";
+			case 201: return "Created";
+			case 204: return "No Content";
+			case 207: return "Multi-Status";
+			case 403: return "Forbidden";
+			case 404: return "Not Found";
+			case 405: return "Method Not Allowed";
+			case 412: return "Precondition Failed";
+			default:  return "Status";
+			}
+		}
+	}
+
+	Response handle(String method, String path, Map<String, String> headers, String body) {
+		String collectionPath = path.substring(0, path.lastIndexOf('/') + 1),
+			name = path.substring(path.lastIndexOf('/') + 1);
+		Collection collection;
+		synchronized(collections) {
+			collection = collections.get(collectionPath);
+		}
+		if (collection == null)
+			return new Response(404, null);
+
+		int delay;
+		synchronized(collection) {
+			delay = collection.rejectedPuts.containsKey(name) ? 0 : collection.putDelay;
+		}
+		if ("PUT".equals(method) && delay > 0)
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+		synchronized(collection) {
+			if ("OPTIONS".equals(method)) {
+				Response response = new Response(200, null);
+				response.headers.put("DAV", "1, 2, calendar-access, addressbook");
+				response.headers.put("Allow", "OPTIONS, GET, PUT, DELETE, PROPFIND, REPORT");
+				return response;
+
+			} else if ("PROPFIND".equals(method))
+				return propfind(collection, collectionPath, !"0".equals(headers.get("depth")));
+
+			else if ("REPORT".equals(method))
+				return multiget(collection, body);
+
+			Member member = collection.members.get(name);
+			String ifMatch = headers.get("if-match"), ifNoneMatch = headers.get("if-none-match");
+			if ("GET".equals(method)) {
+				if (member == null)
+					return new Response(404, null);
+				Response response = new Response(200, member.data);
+				response.headers.put("ETag", member.eTag);
+				membersSent.incrementAndGet();
+				return response;
+
+			} else if ("PUT".equals(method)) {
+				if (collection.rejectedPuts.containsKey(name))
+					return new Response(collection.rejectedPuts.get(name), null);
+				if ((member != null && "*".equals(ifNoneMatch)) ||
+					(ifMatch != null && (member == null || (!"*".equals(ifMatch) && !ifMatch.equals(member.eTag)))))
+					return new Response(412, null);
+				collection.put(name, body);
+				Response response = new Response(member == null ? 201 : 204, null);
+				response.headers.put("ETag", collection.members.get(name).eTag);
+				return response;
+
+			} else if ("DELETE".equals(method)) {
+				if (member == null)
+					return new Response(404, null);
+				if (ifMatch != null && !ifMatch.equals(member.eTag))
+					return new Response(412, null);
+				collection.remove(name);
+				return new Response(204, null);
+			}
+		}
+		return new Response(405, null);
+	}
+
+	Response propfind(Collection collection, String path, boolean members) {
+		StringBuilder xml = new StringBuilder(members ? 100 * collection.members.size() : 500);
+		xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+			"<D:multistatus xmlns:D=\"DAV:\" xmlns:CS=\"http://calendarserver.org/ns/\">");
+		xml.append("<D:response><D:href>" + path + "</D:href><D:propstat><D:prop>" +
+			"<CS:getctag>" + collection.cTag + "</CS:getctag>" +
+			"<D:sync-token>http://davdroid.test/sync/" + collection.cTag + "</D:sync-token>" +
+			"</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>");
+		if (members) {
+			listings.incrementAndGet();
+			for (Map.Entry<String, Member> member : collection.members.entrySet())
+				xml.append("<D:response><D:href>" + path + member.getKey() + "</D:href><D:propstat><D:prop>" +
+					"<D:getetag>" + escape(member.getValue().eTag) + "</D:getetag>" +
+					"</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat></D:response>");
+		}
+		xml.append("</D:multistatus>");
+
+		Response response = new Response(207, xml.toString());
+		response.headers.put("Content-Type", "text/xml; charset=utf-8");
+		return response;
+	}
+
+	Response multiget(Collection collection, String body) {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
+			"<D:multistatus xmlns:D=\"DAV:\" xmlns:C=\"urn:ietf:params:xml:ns:caldav\" xmlns:CD=\"urn:ietf:params:xml:ns:carddav\">");
+
+		String dataElement = collection.calendar ? "C:calendar-data" : "CD:address-data";
+		Matcher matcher = HREF.matcher(body);
+		while (matcher.find()) {
+			String href = matcher.group(1).replace("&amp;", "&");
+			Member member = collection.members.get(href.substring(href.lastIndexOf('/') + 1));
+			xml.append("<D:response><D:href>" + escape(href) + "</D:href>");
+			if (member != null) {
+				membersSent.incrementAndGet();
+				xml.append("<D:propstat><D:prop>" +
+					"<D:getetag>" + escape(member.eTag) + "</D:getetag>" +
+					"<" + dataElement + ">" + escape(member.data) + "</" + dataElement + ">" +
+					"</D:prop><D:status>HTTP/1.1 200 OK</D:status></D:propstat>");
+			} else
+				xml.append("<D:propstat><D:prop/><D:status>HTTP/1.1 404 Not Found</D:status></D:propstat>");
+			xml.append("</D:response>");
+		}
+		xml.append("</D:multistatus>");
+
+		Response response = new Response(207, xml.toString());
+		response.headers.put("Content-Type", "text/xml; charset=utf-8");
+		return response;
+	}
+
+	static String escape(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
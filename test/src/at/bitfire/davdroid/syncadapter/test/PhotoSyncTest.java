@@ -0,0 +1,202 @@
+package at.bitfire.davdroid.syncadapter.test;
+
+import java.util.Arrays;
+
+import lombok.Cleanup;
+
+import org.apache.commons.codec.binary.Base64;
+
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Photo;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.resource.CardDavAddressBook;
+import at.bitfire.davdroid.resource.Contact;
+import at.bitfire.davdroid.resource.LocalAddressBook;
+import at.bitfire.davdroid.resource.test.InMemoryProvider;
+import at.bitfire.davdroid.syncadapter.PhotoSync;
+import at.bitfire.davdroid.test.Fixtures;
+
+/**
+ * Deferred photo sync of a contact from {@link DavTestServer} into a {@link LocalAddressBook}
+ * on {@link InMemoryProvider}.
+ */
+public class PhotoSyncTest extends InstrumentationTestCase {
+	static final String
+		PATH = "/dav/addressbook/",
+		NAME = Fixtures.contactName(1);
+	static final byte[]
+		PHOTO = { (byte)0xff, (byte)0xd8, 1, 2, 3, 4, 5, 6, 7, 8, 9 },
+		OTHER_PHOTO = { (byte)0xff, (byte)0xd8, 9, 8, 7 };
+
+	final Account account = new Account("davdroid-test", Constants.ACCOUNT_TYPE);
+
+	DavTestServer server;
+	DavTestServer.Collection collection;
+	CardDavAddressBook remote;
+
+	InMemoryProvider provider;
+	ContentProviderClient client;
+	LocalAddressBook local;
+	long localID;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new DavTestServer();
+		collection = server.addCollection(PATH, false);
+		collection.put(NAME, vCard(PHOTO));
+		remote = new CardDavAddressBook(server.getBaseURL() + PATH, "", "", false);
+
+		provider = new InMemoryProvider();
+		client = InMemoryProvider.acquireClient(getInstrumentation().getContext(), provider, ContactsContract.AUTHORITY);
+		local = newAddressBook();
+		local.add(remote.fetch(NAME));
+		local.commit();
+		localID = local.findByRemoteName(NAME, false).getLocalID();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.release();
+		server.close();
+	}
+
+
+	public void testDeferred() throws Exception {
+		assertNull(queryPhoto());
+		assertEquals(1, local.findPendingPhotos(Integer.MAX_VALUE).length);
+	}
+
+	public void testWriteReceived() throws Exception {
+		server.resetCounters();
+		PhotoSync photoSync = new PhotoSync(local, remote);
+		photoSync.writeReceived();
+		assertEquals(1, photoSync.getWritten());
+		assertEquals(0, server.requests.get());
+
+		assertTrue(Arrays.equals(PHOTO, queryPhoto()));
+		assertEquals(0, local.findPendingPhotos(Integer.MAX_VALUE).length);
+		assertNull(local.takeReceivedPhoto(NAME));
+	}
+
+	public void testFetch() throws Exception {
+		// another instance (like in a later sync) hasn't received the photo
+		PhotoSync photoSync = new PhotoSync(newAddressBook(), remote);
+		photoSync.writeReceived();
+		assertEquals(0, photoSync.getWritten());
+		photoSync.fetch();
+		assertEquals(1, photoSync.getFetched());
+
+		assertTrue(Arrays.equals(PHOTO, queryPhoto()));
+		assertEquals(0, local.findPendingPhotos(Integer.MAX_VALUE).length);
+	}
+
+	public void testUpdatePhoto() throws Exception {
+		new PhotoSync(local, remote).writeReceived();
+
+		// changed photo on the server
+		collection.put(NAME, vCard(OTHER_PHOTO));
+		local.updateByRemoteName(remote.fetch(NAME));
+		local.commit();
+		assertTrue(Arrays.equals(PHOTO, queryPhoto()));		// other data is updated, photo is deferred
+		assertEquals(1, local.findPendingPhotos(Integer.MAX_VALUE).length);
+
+		local.updatePhoto(localID, local.takeReceivedPhoto(NAME));
+		local.commit();
+		assertTrue(Arrays.equals(OTHER_PHOTO, queryPhoto()));
+		assertEquals(1, countPhotos());
+		assertEquals(0, local.findPendingPhotos(Integer.MAX_VALUE).length);
+	}
+
+	public void testDirtySkipped() throws Exception {
+		// local change
+		ContentValues values = new ContentValues();
+		values.put(RawContacts.STARRED, 1);
+		client.update(ContentUris.withAppendedId(RawContacts.CONTENT_URI, localID), values, null, null);
+
+		PhotoSync photoSync = new PhotoSync(local, remote);
+		photoSync.writeReceived();
+		photoSync.fetch();
+		assertEquals(0, photoSync.getWritten() + photoSync.getFetched());
+		assertNull(queryPhoto());
+
+		// after the upload, the local photo is the server photo
+		Contact contact = local.findByRemoteName(NAME, false);
+		local.clearDirty(contact);
+		local.commit();
+		assertEquals(0, local.findPendingPhotos(Integer.MAX_VALUE).length);
+	}
+
+	public void testClearDirtyResetsPhotoHashes() throws Exception {
+		new PhotoSync(local, remote).writeReceived();
+		assertNotNull(queryHash(RawContacts.SYNC3));
+
+		// the uploaded local photo isn't the last received photo anymore
+		local.clearDirty(local.findByRemoteName(NAME, false));
+		local.commit();
+		assertNull(queryHash(RawContacts.SYNC3));
+		assertNull(queryHash(RawContacts.SYNC4));
+	}
+
+	public void testReceivedBeyondLimit() throws Exception {
+		// more received photos than the address book keeps: the others are written with the contact data
+		for (int i = 2; i <= 100; i++) {
+			collection.put(Fixtures.contactName(i), vCard(i, PHOTO));
+			local.add(remote.fetch(Fixtures.contactName(i)));
+		}
+		local.commit();
+		assertEquals(100, local.findPendingPhotos(Integer.MAX_VALUE).length + countPhotos());
+
+		server.resetCounters();
+		PhotoSync photoSync = new PhotoSync(local, remote);
+		photoSync.writeReceived();
+		photoSync.fetch();
+		assertEquals(0, photoSync.getFetched());
+		assertEquals(0, server.requests.get());
+		assertEquals(100, countPhotos());
+		assertEquals(0, local.findPendingPhotos(Integer.MAX_VALUE).length);
+	}
+
+
+	LocalAddressBook newAddressBook() {
+		LocalAddressBook addressBook = new LocalAddressBook(account, client, null);
+		addressBook.setDeferPhotos(true);
+		return addressBook;
+	}
+
+	byte[] queryPhoto() throws Exception {
+		@Cleanup Cursor cursor = client.query(Data.CONTENT_URI, new String[] { Photo.PHOTO },
+				Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+				new String[] { String.valueOf(localID), Photo.CONTENT_ITEM_TYPE }, null);
+		return cursor.moveToNext() ? cursor.getBlob(0) : null;
+	}
+
+	String queryHash(String column) throws Exception {
+		@Cleanup Cursor cursor = client.query(ContentUris.withAppendedId(RawContacts.CONTENT_URI, localID), new String[] { column }, null, null, null);
+		assertTrue(cursor.moveToNext());
+		return cursor.getString(0);
+	}
+
+	int countPhotos() throws Exception {
+		@Cleanup Cursor cursor = client.query(Data.CONTENT_URI, new String[] { Data._ID },
+				Data.MIMETYPE + "=?", new String[] { Photo.CONTENT_ITEM_TYPE }, null);
+		return cursor.getCount();
+	}
+
+	static String vCard(byte[] photo) throws Exception {
+		return vCard(1, photo);
+	}
+
+	static String vCard(int i, byte[] photo) throws Exception {
+		return Fixtures.vCard(i, 0).replace("END:VCARD",
+			"PHOTO;ENCODING=b;TYPE=JPEG:" + new String(Base64.encodeBase64(photo), "US-ASCII") + "\r\nEND:VCARD");
+	}
+}
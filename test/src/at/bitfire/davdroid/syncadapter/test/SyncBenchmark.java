@@ -0,0 +1,303 @@
+package at.bitfire.davdroid.syncadapter.test;
+
+import java.util.Arrays;
+
+import lombok.Cleanup;
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.annotation.TargetApi;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.CalendarContract;
+import android.provider.CalendarContract.Calendars;
+import android.provider.CalendarContract.Events;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.resource.CalDavCalendar;
+import at.bitfire.davdroid.resource.CardDavAddressBook;
+import at.bitfire.davdroid.resource.LocalAddressBook;
+import at.bitfire.davdroid.resource.LocalCalendar;
+import at.bitfire.davdroid.resource.LocalCollection;
+import at.bitfire.davdroid.resource.RemoteCollection;
+import at.bitfire.davdroid.resource.SyncStateStore;
+import at.bitfire.davdroid.syncadapter.SyncManager;
+import at.bitfire.davdroid.test.BenchmarkTestCase;
+import at.bitfire.davdroid.test.Fixtures;
+
+/**
+ * End-to-end sync benchmark: drives SyncManager.synchronize() against the embedded {@link DavTestServer}
+ * and the real Calendar/Contacts providers. Collection sizes can be set by
+ * <pre>adb shell am instrument -w -e benchmark true -e benchmarkSizes 1000,10000,100000 -e class at.bitfire.davdroid.syncadapter.test.SyncBenchmark ...</pre>
+ * (default: 1000).
+ */
+public class SyncBenchmark extends BenchmarkTestCase {
+	static final String ACCOUNT_NAME = "davdroid-benchmark";
+
+	Context context;
+	Account account;
+	DavTestServer server;
+	SyncStateStore store;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		context = getInstrumentation().getTargetContext();
+		store = SyncStateStore.getInstance(context);
+
+		// account of our own type, but without automatic syncs
+		account = new Account(ACCOUNT_NAME, Constants.ACCOUNT_TYPE);
+		AccountManager.get(context).addAccountExplicitly(account, null, null);
+		ContentResolver.setIsSyncable(account, CalendarContract.AUTHORITY, 0);
+		ContentResolver.setIsSyncable(account, ContactsContract.AUTHORITY, 0);
+
+		server = new DavTestServer();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		server.close();
+		AccountManager.get(context).removeAccount(account, null, null);
+	}
+
+
+	public void testCalendarSync() throws Exception {
+		for (int size : getSizes())
+			runScenarios(new CalendarTarget(), size);
+	}
+
+	public void testAddressBookSync() throws Exception {
+		for (int size : getSizes())
+			runScenarios(new AddressBookTarget(), size);
+	}
+
+
+	/* scenarios */
+
+	void runScenarios(Target target, int size) throws Exception {
+		String path = "/dav/" + target.getName() + "-" + size + "/";
+		DavTestServer.Collection collection = server.addCollection(path, target instanceof CalendarTarget);
+		for (int i = 0; i < size; i++)
+			collection.put(target.memberName(i), target.generate(i, 0));
+
+		String url = server.getBaseURL() + path, key = account.name + " " + url;
+		resetSyncState(key);
+		target.setUp();
+		try {
+			LocalCollection<?> local = target.createLocal();
+			local.setSyncState(store, key);
+
+			// initial sync: all resources are new
+			sync(target, size, "initial", local, target.createRemote(url));
+			assertEquals(size, store.countEntries(key));
+
+			// nothing has changed
+			sync(target, size, "no-op", local, target.createRemote(url));
+
+			// small delta: some remote changes, some local changes
+			int delta = Math.max(size / 1000, 5);
+			changeRemote(target, collection, 0, delta, 1);
+			target.markDirty(delta);
+			sync(target, size, "small delta", local, target.createRemote(url));
+
+			// bulk delta: 20% changed, 5% removed, 5% added remotely
+			changeRemote(target, collection, delta, size / 5, 2);
+			for (int i = size - size/20; i < size; i++)
+				collection.remove(target.memberName(i));
+			for (int i = size; i < size + size/20; i++)
+				collection.put(target.memberName(i), target.generate(i, 0));
+			sync(target, size, "bulk delta", local, target.createRemote(url));
+			assertEquals(collection.size(), store.countEntries(key));
+		} finally {
+			target.tearDown();
+			resetSyncState(key);
+		}
+	}
+
+	void changeRemote(Target target, DavTestServer.Collection collection, int start, int count, int revision) {
+		for (int i = start; i < start + count; i++)
+			if (collection.get(target.memberName(i)) != null)
+				collection.put(target.memberName(i), target.generate(i, revision));
+	}
+
+	void sync(Target target, int size, String scenario, LocalCollection<?> local, RemoteCollection<?> remote) throws Exception {
+		server.resetCounters();
+		SyncResult syncResult = new SyncResult();
+
+		startAllocCounting();
+		long start = System.nanoTime();
+
+		new SyncManager(local, remote).synchronize(false, syncResult);
+
+		long time = (System.nanoTime() - start) / 1000000;
+		String allocations = stopAllocCounting();
+
+		report(String.format("%s %d %s: %d ms, %d requests, %d bytes sent, %d bytes received, %s, %s",
+			target.getName(), size, scenario,
+			time,
+			server.requests.get(), server.bytesReceived.get(), server.bytesSent.get(),
+			allocations,
+			syncResult.stats.toString()));
+	}
+
+	void resetSyncState(String key) {
+		store.replaceEntries(key, new SyncStateStore.Snapshot(0));
+		store.apply(key, Arrays.asList(SyncStateStore.Change.clearCheckpoint(), SyncStateStore.Change.cTag(null)), null);
+	}
+
+	int[] getSizes() {
+		String sizes = getArgument("benchmarkSizes");
+		if (sizes == null)
+			sizes = "1000";
+
+		String[] values = sizes.split(",");
+		int[] result = new int[values.length];
+		for (int i = 0; i < values.length; i++)
+			result[i] = Integer.parseInt(values[i].trim());
+		return result;
+	}
+
+
+	/* collection types */
+
+	abstract class Target {
+		ContentProviderClient client;
+
+		abstract String getName();
+		abstract String memberName(int i);
+		abstract String generate(int i, int revision);
+
+		abstract void setUp() throws Exception;
+		abstract void tearDown() throws Exception;
+		abstract LocalCollection<?> createLocal() throws Exception;
+		abstract RemoteCollection<?> createRemote(String url) throws Exception;
+
+		// marks the first count local entries as dirty (= locally modified)
+		abstract void markDirty(int count) throws Exception;
+
+		Uri syncAdapterURI(Uri uri, String callerIsSyncAdapter) {
+			return uri.buildUpon()
+				.appendQueryParameter(callerIsSyncAdapter, "true")
+				.appendQueryParameter(RawContacts.ACCOUNT_NAME, account.name)
+				.appendQueryParameter(RawContacts.ACCOUNT_TYPE, account.type)
+				.build();
+		}
+
+		void markDirty(Uri entriesURI, String columnID, String columnDirty, String selection, int count) throws Exception {
+			@Cleanup Cursor cursor = client.query(entriesURI, new String[] { columnID }, selection, null, columnID + " LIMIT " + count);
+			while (cursor != null && cursor.moveToNext()) {
+				ContentValues values = new ContentValues();
+				values.put(columnDirty, 1);
+				client.update(ContentUris.withAppendedId(entriesURI, cursor.getLong(0)), values, null, null);
+			}
+		}
+	}
+
+	@TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+	class CalendarTarget extends Target {
+		long calendarID;
+
+		@Override
+		String getName() {
+			return "calendar";
+		}
+
+		@Override
+		String memberName(int i) {
+			return Fixtures.eventName(i);
+		}
+
+		@Override
+		String generate(int i, int revision) {
+			return Fixtures.iCalendar(i, revision, 0);
+		}
+
+		@Override
+		void setUp() throws Exception {
+			client = context.getContentResolver().acquireContentProviderClient(CalendarContract.AUTHORITY);
+
+			ContentValues values = new ContentValues();
+			values.put(Calendars.ACCOUNT_NAME, account.name);
+			values.put(Calendars.ACCOUNT_TYPE, account.type);
+			values.put(Calendars.NAME, "benchmark");
+			values.put(Calendars.CALENDAR_DISPLAY_NAME, "Benchmark");
+			values.put(Calendars.OWNER_ACCOUNT, account.name);
+			values.put(Calendars.CALENDAR_ACCESS_LEVEL, Calendars.CAL_ACCESS_OWNER);
+			values.put(Calendars.SYNC_EVENTS, 1);
+			calendarID = ContentUris.parseId(client.insert(syncAdapterURI(Calendars.CONTENT_URI, CalendarContract.CALLER_IS_SYNCADAPTER), values));
+		}
+
+		@Override
+		void tearDown() throws Exception {
+			client.delete(ContentUris.withAppendedId(syncAdapterURI(Calendars.CONTENT_URI, CalendarContract.CALLER_IS_SYNCADAPTER), calendarID), null, null);
+			client.release();
+		}
+
+		@Override
+		LocalCollection<?> createLocal() throws Exception {
+			return new LocalCalendar(account, client, (int)calendarID, "benchmark", null);
+		}
+
+		@Override
+		RemoteCollection<?> createRemote(String url) throws Exception {
+			return new CalDavCalendar(url, "", "", false);
+		}
+
+		@Override
+		void markDirty(int count) throws Exception {
+			markDirty(syncAdapterURI(Events.CONTENT_URI, CalendarContract.CALLER_IS_SYNCADAPTER), Events._ID, Events.DIRTY,
+				Events.CALENDAR_ID + "=" + calendarID, count);
+		}
+	}
+
+	class AddressBookTarget extends Target {
+		@Override
+		String getName() {
+			return "addressbook";
+		}
+
+		@Override
+		String memberName(int i) {
+			return Fixtures.contactName(i);
+		}
+
+		@Override
+		String generate(int i, int revision) {
+			return Fixtures.vCard(i, revision);
+		}
+
+		@Override
+		void setUp() throws Exception {
+			client = context.getContentResolver().acquireContentProviderClient(ContactsContract.AUTHORITY);
+		}
+
+		@Override
+		void tearDown() throws Exception {
+			client.delete(syncAdapterURI(RawContacts.CONTENT_URI, ContactsContract.CALLER_IS_SYNCADAPTER), null, null);
+			client.release();
+		}
+
+		@Override
+		LocalCollection<?> createLocal() throws Exception {
+			return new LocalAddressBook(account, client, AccountManager.get(context));
+		}
+
+		@Override
+		RemoteCollection<?> createRemote(String url) throws Exception {
+			return new CardDavAddressBook(url, "", "", false);
+		}
+
+		@Override
+		void markDirty(int count) throws Exception {
+			markDirty(syncAdapterURI(RawContacts.CONTENT_URI, ContactsContract.CALLER_IS_SYNCADAPTER), RawContacts._ID, RawContacts.DIRTY,
+				RawContacts.DELETED + "=0", count);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package at.bitfire.davdroid.syncadapter.test;
+
+import junit.framework.TestCase;
+import at.bitfire.davdroid.syncadapter.SyncIntervalScheduler;
+
+public class SyncIntervalSchedulerTest extends TestCase {
+	static final long
+		MINUTE = 60*1000,
+		HOUR = 60*MINUTE,
+		DAY = 24*HOUR;
+
+	public void testMeanInterval() {
+		final long now = 100*DAY;
+		// first change: no interval yet
+		assertEquals(0, SyncIntervalScheduler.nextMeanInterval(0, 0, now));
+		// second change: first sample
+		assertEquals(2*HOUR, SyncIntervalScheduler.nextMeanInterval(0, now - 2*HOUR, now));
+		// moving average, weighted with 0.3
+		assertEquals((long)(0.3*HOUR + 0.7*2*HOUR), SyncIntervalScheduler.nextMeanInterval(2*HOUR, now - HOUR, now));
+		// long pauses are capped to two days
+		assertEquals(2*DAY, SyncIntervalScheduler.nextMeanInterval(0, now - 30*DAY, now));
+	}
+
+	public void testExpectedInterval() {
+		final long now = 100*DAY;
+		assertEquals(HOUR, SyncIntervalScheduler.expectedInterval(HOUR, now - 10*MINUTE, now));
+		// no change for longer than expected
+		assertEquals(5*HOUR, SyncIntervalScheduler.expectedInterval(HOUR, now - 5*HOUR, now));
+	}
+
+	public void testCalculateInterval() {
+		// no data yet
+		assertEquals(-1, SyncIntervalScheduler.calculateInterval(false, Long.MAX_VALUE, false, 0));
+		// keep current interval if the rate is unknown
+		assertEquals(2*HOUR, SyncIntervalScheduler.calculateInterval(false, Long.MAX_VALUE, false, 2*HOUR));
+		// poll about twice per expected change
+		assertEquals(3*HOUR, SyncIntervalScheduler.calculateInterval(true, 6*HOUR, false, 0));
+		// changes seen: tighten quickly
+		assertEquals(HOUR, SyncIntervalScheduler.calculateInterval(true, 6*HOUR, true, 2*HOUR));
+		// bounds
+		assertEquals(15*MINUTE, SyncIntervalScheduler.calculateInterval(true, 2*MINUTE, false, 0));
+		assertEquals(DAY, SyncIntervalScheduler.calculateInterval(true, 10*DAY, false, 0));
+	}
+
+	public void testIsAdaptable() {
+		// no periodic sync and none set by us
+		assertTrue(SyncIntervalScheduler.isAdaptable(0, new long[0]));
+		// only the default periodic sync registered by Android (new account)
+		assertTrue(SyncIntervalScheduler.isAdaptable(0, new long[] { DAY/1000 }));
+		// our own periodic sync
+		assertTrue(SyncIntervalScheduler.isAdaptable(HOUR, new long[] { HOUR/1000 }));
+		// periodic sync set by the user
+		assertFalse(SyncIntervalScheduler.isAdaptable(0, new long[] { HOUR/1000 }));
+		assertFalse(SyncIntervalScheduler.isAdaptable(0, new long[] { DAY/1000, HOUR/1000 }));
+		assertFalse(SyncIntervalScheduler.isAdaptable(HOUR, new long[] { 4*HOUR/1000 }));
+		// periodic sync removed by the user
+		assertFalse(SyncIntervalScheduler.isAdaptable(HOUR, new long[0]));
+	}
+}
@@ -0,0 +1,266 @@
+package at.bitfire.davdroid.syncadapter.test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import lombok.Cleanup;
+import android.accounts.Account;
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Note;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.InstrumentationTestCase;
+import at.bitfire.davdroid.Constants;
+import at.bitfire.davdroid.resource.CardDavAddressBook;
+import at.bitfire.davdroid.resource.LocalAddressBook;
+import at.bitfire.davdroid.resource.LocalStorageException;
+import at.bitfire.davdroid.resource.SyncStateStore;
+import at.bitfire.davdroid.resource.test.InMemoryProvider;
+import at.bitfire.davdroid.syncadapter.SyncManager;
+import at.bitfire.davdroid.test.Fixtures;
+import at.bitfire.davdroid.webdav.HttpException;
+
+/**
+ * SyncManager.synchronize() of an address book from {@link DavTestServer} into a
+ * {@link LocalAddressBook} on {@link InMemoryProvider}, with the sync state store.
+ */
+public class SyncManagerTest extends InstrumentationTestCase {
+	static final String PATH = "/dav/addressbook/";
+	static final int SIZE = 10;
+
+	final Account account = new Account("davdroid-test", Constants.ACCOUNT_TYPE);
+
+	DavTestServer server;
+	DavTestServer.Collection collection;
+	String url, key;
+	SyncStateStore store;
+
+	InMemoryProvider provider;
+	ContentProviderClient client;
+
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new DavTestServer();
+		collection = server.addCollection(PATH, false);
+		for (int i = 0; i < SIZE; i++)
+			collection.put(Fixtures.contactName(i), Fixtures.vCard(i, 0));
+		url = server.getBaseURL() + PATH;
+
+		store = SyncStateStore.getInstance(getInstrumentation().getTargetContext());
+		key = account.name + " " + url;
+		resetSyncState();
+
+		provider = new InMemoryProvider();
+		client = InMemoryProvider.acquireClient(getInstrumentation().getContext(), provider, ContactsContract.AUTHORITY);
+
+		// initial import
+		sync(1);
+		assertEquals(SIZE, store.countEntries(key));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		resetSyncState();
+		client.release();
+		server.close();
+	}
+
+
+	public void testRejectedUploadQuarantined() throws Exception {
+		long[] ids = markDirty(3);
+		String rejected = queryRemoteName(ids[1]);
+		collection.rejectPut(rejected, 403);
+
+		// the other records are uploaded, the rejected one doesn't abort the sync
+		sync(1);
+		assertEquals(0, countDirty(ids[0]) + countDirty(ids[2]));
+		assertEquals(1, countDirty(ids[1]));
+
+		SyncStateStore.QuarantineEntry entry = getQuarantined(ids[1]);
+		assertNotNull(entry);
+		assertTrue(entry.getLastError().contains("403"));
+
+		// not uploaded again while it's quarantined
+		sync(1);
+		assertEquals(1, countDirty(ids[1]));
+		assertEquals(1, getQuarantined(ids[1]).getFailures());
+	}
+
+	public void testConcurrentUploads() throws Exception {
+		for (int i = SIZE; i < 120; i++)
+			collection.put(Fixtures.contactName(i), Fixtures.vCard(i, 0));
+		sync(1);
+		long[] ids = markDirty(120);
+
+		// number of dirty contacts after every commit
+		final List<Integer> dirtyAfterCommit = new LinkedList<Integer>();
+		LocalAddressBook local = new LocalAddressBook(account, client, null) {
+			@Override
+			public void commit() throws LocalStorageException {
+				super.commit();
+				try {
+					dirtyAfterCommit.add(countDirty());
+				} catch(Exception e) {
+					throw new LocalStorageException(e);
+				}
+			}
+		};
+		sync(local, 4);
+
+		// every contact has been uploaded as itself, no matter in which order the uploads have finished
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals(0, countDirty(ids[i]));
+			int idx = Integer.parseInt(queryRemoteName(ids[i]).replaceAll("\\D", ""));
+			String uploaded = collection.get(Fixtures.contactName(idx));
+			assertFalse(Fixtures.vCard(idx, 0).equals(uploaded));
+			assertTrue(uploaded.contains("UID:test-" + idx + "\r\n"));
+		}
+
+		// local changes are committed in batches of 50 (SyncManager.MAX_PUSH_BATCH)
+		List<Integer> pushCommits = new LinkedList<Integer>();
+		for (int dirty : dirtyAfterCommit)
+			if (pushCommits.isEmpty() ? dirty < ids.length : dirty < pushCommits.get(pushCommits.size() - 1))
+				pushCommits.add(dirty);
+		assertEquals(Arrays.asList(70, 20, 0), pushCommits);
+	}
+
+	public void testConcurrentUploadFailure() throws Exception {
+		long[] ids = markDirty(SIZE);
+		collection.rejectPut(queryRemoteName(ids[0]), 500);
+		collection.delayPuts(200);
+
+		try {
+			sync(4);
+			fail();
+		} catch(HttpException e) {
+			assertEquals(500, e.getCode());
+		}
+
+		// uploads which were in flight when the first one failed have been finished and committed
+		int uploaded = 0;
+		for (long id : ids) {
+			String name = queryRemoteName(id);
+			boolean changed = !Fixtures.vCard(Integer.parseInt(name.replaceAll("\\D", "")), 0).equals(collection.get(name));
+			assertEquals(changed ? 0 : 1, countDirty(id));
+			if (changed)
+				uploaded++;
+		}
+		assertEquals(3, uploaded);
+		assertEquals(1, countDirty(ids[0]));
+	}
+
+	public void testConcurrentUploadConflict() throws Exception {
+		long[] ids = markDirty(5);
+		String conflicting = queryRemoteName(ids[2]);
+		int idx = Integer.parseInt(conflicting.replaceAll("\\D", ""));
+		collection.put(conflicting, Fixtures.vCard(idx, 1));
+
+		// 412 of a worker thread is resolved by the sync thread (server wins), the other uploads go on
+		sync(4);
+		assertEquals(Fixtures.vCard(idx, 1), collection.get(conflicting));
+		for (long id : ids)
+			assertEquals(0, countDirty(id));
+		assertEquals("Revision 1", queryNote(ids[2]));
+	}
+
+	public void testResumeCheckpoint() throws Exception {
+		for (int i = SIZE; i < SIZE + 20; i++)
+			collection.put(Fixtures.contactName(i), Fixtures.vCard(i, 0));
+
+		// interrupted after five new contacts have been applied (one commit per contact)
+		provider.failBatch(6);
+		try {
+			sync(1);
+			fail();
+		} catch(LocalStorageException e) {
+		}
+		SyncStateStore.Checkpoint checkpoint = store.getCheckpoint(key);
+		assertNotNull(checkpoint);
+		assertEquals(SIZE + 20, checkpoint.getListing().size());
+		assertEquals(5, checkpoint.getApplied().size());
+		assertEquals(SIZE + 5, countContacts());
+
+		// next sync: stored listing is used, only the remaining contacts are fetched
+		server.resetCounters();
+		sync(1);
+		assertEquals(0, server.listings.get());
+		assertEquals(15, server.membersSent.get());
+		assertEquals(SIZE + 20, countContacts());
+		assertNull(store.getCheckpoint(key));
+	}
+
+
+	SyncResult sync(int maxConcurrentUploads) throws Exception {
+		return sync(new LocalAddressBook(account, client, null), maxConcurrentUploads);
+	}
+
+	SyncResult sync(LocalAddressBook local, int maxConcurrentUploads) throws Exception {
+		local.setSyncState(store, key);
+
+		SyncManager syncManager = new SyncManager(local, new CardDavAddressBook(url, "", "", false));
+		syncManager.setMaxConcurrentUploads(maxConcurrentUploads);
+		SyncResult syncResult = new SyncResult();
+		syncManager.synchronize(false, syncResult);
+		return syncResult;
+	}
+
+	SyncStateStore.QuarantineEntry getQuarantined(long id) {
+		return store.getQuarantine(key, System.currentTimeMillis()).get(SyncStateStore.localItem(id));
+	}
+
+	void resetSyncState() {
+		store.replaceEntries(key, new SyncStateStore.Snapshot(0));
+		store.apply(key, Arrays.asList(SyncStateStore.Change.clearCheckpoint(), SyncStateStore.Change.cTag(null)), null);
+		for (String item : store.getQuarantine(key, System.currentTimeMillis()).keySet())
+			store.clearFailure(key, item);
+	}
+
+	/* changes the first count local contacts like the contacts app (sets DIRTY), returns their IDs */
+	long[] markDirty(int count) throws Exception {
+		long[] ids = new long[count];
+		@Cleanup Cursor cursor = client.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID }, null, null, null);
+		for (int i = 0; i < count && cursor.moveToNext(); i++) {
+			ids[i] = cursor.getLong(0);
+			ContentValues values = new ContentValues();
+			values.put(RawContacts.STARRED, 1);
+			client.update(ContentUris.withAppendedId(RawContacts.CONTENT_URI, ids[i]), values, null, null);
+		}
+		return ids;
+	}
+
+	int countContacts() throws Exception {
+		@Cleanup Cursor cursor = client.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID }, null, null, null);
+		return cursor.getCount();
+	}
+
+	int countDirty() throws Exception {
+		@Cleanup Cursor cursor = client.query(RawContacts.CONTENT_URI, new String[] { RawContacts._ID }, RawContacts.DIRTY + "=1", null, null);
+		return cursor.getCount();
+	}
+
+	int countDirty(long id) throws Exception {
+		@Cleanup Cursor cursor = client.query(ContentUris.withAppendedId(RawContacts.CONTENT_URI, id), new String[] { RawContacts.DIRTY }, null, null, null);
+		assertTrue(cursor.moveToNext());
+		return cursor.getInt(0);
+	}
+
+	String queryNote(long id) throws Exception {
+		@Cleanup Cursor cursor = client.query(Data.CONTENT_URI, new String[] { Note.NOTE },
+				Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?", new String[] { String.valueOf(id), Note.CONTENT_ITEM_TYPE }, null);
+		assertTrue(cursor.moveToNext());
+		return cursor.getString(0);
+	}
+
+	String queryRemoteName(long id) throws Exception {
+		@Cleanup Cursor cursor = client.query(ContentUris.withAppendedId(RawContacts.CONTENT_URI, id), new String[] { RawContacts.SOURCE_ID }, null, null, null);
+		assertTrue(cursor.moveToNext());
+		return cursor.getString(0);
+	}
+}
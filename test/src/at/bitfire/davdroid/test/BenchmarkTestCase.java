@@ -0,0 +1,72 @@
+package at.bitfire.davdroid.test;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.test.InstrumentationTestRunner;
+import android.util.Log;
+
+/**
+ * Base class of the benchmarks. Benchmarks only measure and don't belong to the regular test
+ * run, so they're skipped unless they're requested explicitly (Android 4.3+):
+ * <pre>adb shell am instrument -w -e benchmark true -e class [benchmark class] at.bitfire.davdroid.test/android.test.InstrumentationTestRunner</pre>
+ * Results are logged with tag davdroid.[benchmark class] when they're reported, and again
+ * all together after each benchmark.
+ */
+public abstract class BenchmarkTestCase extends InstrumentationTestCase {
+	protected final String TAG = "davdroid." + getClass().getSimpleName();
+
+	private List<String> results = new LinkedList<String>();
+
+
+	@Override
+	public void runBare() throws Throwable {
+		if (!"true".equals(getArgument("benchmark"))) {
+			Log.d(TAG, "Skipping " + getName() + ", run with -e benchmark true");
+			return;
+		}
+		try {
+			super.runBare();
+		} finally {
+			for (String result : results)
+				Log.i(TAG, result);
+			results.clear();
+		}
+	}
+
+	protected void report(String result) {
+		Log.i(TAG, result);
+		results.add(result);
+	}
+
+	/* returns an argument of the instrumentation (am instrument -e name value), or null */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	protected String getArgument(String name) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && getInstrumentation() instanceof InstrumentationTestRunner) {
+			Bundle arguments = ((InstrumentationTestRunner)getInstrumentation()).getArguments();
+			if (arguments != null)
+				return arguments.getString(name);
+		}
+		return null;
+	}
+
+
+	/* allocation counting (deprecated, but there's no replacement before Debug.getRuntimeStat() in Android 6) */
+
+	@SuppressWarnings("deprecation")
+	protected static void startAllocCounting() {
+		Debug.resetAllCounts();
+		Debug.startAllocCounting();
+	}
+
+	@SuppressWarnings("deprecation")
+	protected static String stopAllocCounting() {
+		Debug.stopAllocCounting();
+		return Debug.getGlobalAllocCount() + " allocations (" + Debug.getGlobalAllocSize() + " bytes)";
+	}
+}
@@ -0,0 +1,52 @@
+package at.bitfire.davdroid.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import at.bitfire.davdroid.BufferPool;
+
+public class BufferPoolTest extends TestCase {
+
+	public void testReuse() {
+		BufferPool.Buffer buffer = BufferPool.obtain();
+		buffer.write(1);
+		buffer.release();
+		
+		BufferPool.Buffer reused = BufferPool.obtain();
+		assertSame(buffer, reused);
+		assertEquals(0, reused.size());
+		reused.release();
+	}
+	
+	public void testReadFrom() throws Exception {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte)i;
+		
+		BufferPool.Buffer buffer = BufferPool.obtain();
+		buffer.readFrom(new ByteArrayInputStream(data));
+		assertEquals(data.length, buffer.size());
+		assertTrue(Arrays.equals(data, IOUtils.toByteArray(buffer.toInputStream())));
+		assertEquals(new String(Hex.encodeHex(MessageDigest.getInstance("MD5").digest(data))), buffer.md5Hex());
+		
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		buffer.toEntity().writeTo(os);
+		assertTrue(Arrays.equals(data, os.toByteArray()));
+		buffer.release();
+	}
+	
+	public void testWriteUTF8() throws Exception {
+		String s = "BEGIN:VCARD\nFN:Grüße €𝄞\nEND:VCARD";
+		BufferPool.Buffer buffer = BufferPool.obtain();
+		buffer.writeUTF8(s);
+		assertTrue(Arrays.equals(s.getBytes("UTF-8"), buffer.toByteArray()));
+		buffer.release();
+	}
+}
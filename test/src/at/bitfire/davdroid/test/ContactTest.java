@@ -9,9 +9,13 @@ package at.bitfire.davdroid.test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import lombok.Cleanup;
 import net.fortuna.ical4j.data.ParserException;
+
+import org.apache.commons.io.IOUtils;
+
 import android.content.res.AssetManager;
 import android.test.InstrumentationTestCase;
 import at.bitfire.davdroid.resource.Contact;
@@ -49,6 +53,57 @@ public class ContactTest extends InstrumentationTestCase {
 		assertEquals("forrestgump@example.com", c.getEmails().get(0).getValue());
 		
 		assertFalse(c.isStarred());
+		
+		// photo by URL isn't extracted
+		assertNull(c.getPhotoHash());
+	}
+	
+	public void testLazyPhoto() throws IOException {
+		Contact c = parseVCard("vcard3-photo.vcf");
+		assertEquals("Jane Doe", c.getDisplayName());
+		assertEquals("jane@example.com", c.getEmails().get(0).getValue());
+		assertEquals("After the photo", c.getNote());
+		
+		assertTrue(c.hasPhoto());
+		assertNotNull(c.getPhotoHash());
+		assertEquals(c.getPhotoHash(), parseVCard("vcard3-photo.vcf").getPhotoHash());
+		
+		@Cleanup InputStream in = assetMgr.open("test.random", AssetManager.ACCESS_STREAMING);
+		byte[] expected = Arrays.copyOf(IOUtils.toByteArray(in), 400);
+		assertTrue(Arrays.equals(expected, c.getPhoto()));
+	}
+	
+	public void testMerge() throws IOException {
+		Contact base = parseVCard("vcard3-sample1.vcf"),
+				local = parseVCard("vcard3-sample1.vcf"),
+				server = parseVCard("vcard3-sample1.vcf");
+		local.setNickName("Local nick");
+		local.getEmails().clear();
+		server.setNickName("Server nick");
+		server.setNote("Server note");
+		server.getEmails().get(0).setValue("server@example.com");
+		server.getPhoneNumbers().remove(1);
+		
+		local.mergeFrom(base, server);
+		// changed locally: kept, even if it has been changed on the server, too
+		assertEquals("Local nick", local.getNickName());
+		assertTrue(local.getEmails().isEmpty());
+		// unchanged locally: taken from server
+		assertEquals("Server note", local.getNote());
+		assertEquals(1, local.getPhoneNumbers().size());
+		assertEquals("Forrest Gump", local.getDisplayName());
+		assertEquals("Gump", local.getFamilyName());
+		assertFalse(local.hasPhoto());
+	}
+
+	public void testFingerprint() throws Exception {
+		Contact contact = parseVCard("vcard3-sample1.vcf");
+		String fingerprint = contact.fingerprint();
+		Thread.sleep(1000);		// REV changes
+		assertEquals(fingerprint, contact.fingerprint());
+		
+		contact.getEmails().clear();
+		assertFalse(fingerprint.equals(contact.fingerprint()));
 	}
 
 	
@@ -0,0 +1,71 @@
+package at.bitfire.davdroid.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import at.bitfire.davdroid.ETagList;
+import at.bitfire.davdroid.resource.SyncStateStore;
+
+public class ETagListTest extends TestCase {
+
+	public void testSort() {
+		ETagList list = new ETagList(2);
+		String[] names = { "e.ics", "b.ics", "a.ics", "d.ics", "c.ics", "f.ics", "aa.ics" };
+		for (String name : names)
+			list.add(name, "etag-" + name);
+		assertEquals(names.length, list.size());
+		
+		list.sort();
+		String[] sorted = { "a.ics", "aa.ics", "b.ics", "c.ics", "d.ics", "e.ics", "f.ics" };
+		for (int i = 0; i < sorted.length; i++) {
+			assertEquals(sorted[i], list.getName(i));
+			assertEquals("etag-" + sorted[i], list.getETag(i));
+		}
+	}
+	
+	public void testSortSnapshot() {
+		SyncStateStore.Snapshot snapshot = new SyncStateStore.Snapshot(0);
+		for (int i = 0; i < 10; i++)
+			snapshot.add((9 - i) + ".vcf", "etag-" + i, i, "hash-" + i);
+		snapshot.sort();
+		for (int i = 0; i < 10; i++) {
+			assertEquals(i + ".vcf", snapshot.getName(i));
+			assertEquals("etag-" + (9 - i), snapshot.getETag(i));
+			assertEquals(9 - i, snapshot.getLocalID(i));
+			assertEquals("hash-" + (9 - i), snapshot.getHash(i));
+		}
+	}
+	
+	public void testSortLarge() {
+		// big enough for the quicksort, with duplicate names
+		Random random = new Random(42);
+		SyncStateStore.Snapshot snapshot = new SyncStateStore.Snapshot(0);
+		for (int i = 0; i < 1000; i++) {
+			int n = random.nextInt(500);
+			snapshot.add(String.format("%03d.vcf", n), "etag-" + n, n, "hash-" + n);
+		}
+		snapshot.sort();
+		for (int i = 0; i < snapshot.size(); i++) {
+			if (i > 0)
+				assertTrue(snapshot.getName(i - 1).compareTo(snapshot.getName(i)) <= 0);
+			int n = Integer.parseInt(snapshot.getName(i).substring(0, 3));
+			assertEquals("etag-" + n, snapshot.getETag(i));
+			assertEquals(n, snapshot.getLocalID(i));
+			assertEquals("hash-" + n, snapshot.getHash(i));
+		}
+	}
+	
+	public void testIndexOf() {
+		ETagList list = new ETagList(0);
+		assertEquals(-1, list.indexOf("a.vcf"));
+		
+		for (int i = 0; i < 100; i++)
+			list.add(String.format("%03d.vcf", 99 - i), null);
+		list.sort();
+		assertEquals(0, list.indexOf("000.vcf"));
+		assertEquals(42, list.indexOf("042.vcf"));
+		assertEquals(99, list.indexOf("099.vcf"));
+		assertEquals(-1, list.indexOf("100.vcf"));
+	}
+
+}
@@ -0,0 +1,80 @@
+package at.bitfire.davdroid.test;
+
+import java.io.ByteArrayInputStream;
+
+import at.bitfire.davdroid.resource.Contact;
+import at.bitfire.davdroid.resource.Event;
+
+/**
+ * Generated events and contacts for tests and benchmarks. Resource i is called event-[i].ics
+ * or contact-[i].vcf and has the ETag "[i]-[revision]".
+ */
+public class Fixtures {
+
+	public static String eventName(int i) {
+		return "event-" + i + ".ics";
+	}
+
+	/* iCalendar of event i; with a reminder alarmMinutes before the start if alarmMinutes > 0 */
+	public static String iCalendar(int i, int revision, int alarmMinutes) {
+		String date = String.format("2014%02d%02d", 1 + (i/28) % 12, 1 + i % 28);
+		String ical = "BEGIN:VCALENDAR\r\n" +
+			"VERSION:2.0\r\n" +
+			"PRODID:-//bitfire web engineering//DAVdroid test//EN\r\n" +
+			"BEGIN:VEVENT\r\n" +
+			"UID:test-" + i + "@davdroid\r\n" +
+			"DTSTAMP:20140101T000000Z\r\n" +
+			"DTSTART:" + date + "T100000Z\r\n" +
+			"DTEND:" + date + "T110000Z\r\n" +
+			"SUMMARY:Event " + i + " (revision " + revision + ")\r\n" +
+			"LOCATION:Room " + (i % 100) + "\r\n" +
+			"DESCRIPTION:Synthetic event for tests and benchmarks\r\n";
+		if (alarmMinutes > 0)
+			ical += "BEGIN:VALARM\r\n" +
+				"ACTION:DISPLAY\r\n" +
+				"DESCRIPTION:Reminder\r\n" +
+				"TRIGGER:-PT" + alarmMinutes + "M\r\n" +
+				"END:VALARM\r\n";
+		return ical +
+			"END:VEVENT\r\n" +
+			"END:VCALENDAR\r\n";
+	}
+
+	public static Event event(int i, int revision, int alarmMinutes) throws Exception {
+		Event event = new Event(eventName(i), eTag(i, revision));
+		event.parseEntity(stream(iCalendar(i, revision, alarmMinutes)));
+		return event;
+	}
+
+
+	public static String contactName(int i) {
+		return "contact-" + i + ".vcf";
+	}
+
+	public static String vCard(int i, int revision) {
+		return "BEGIN:VCARD\r\n" +
+			"VERSION:3.0\r\n" +
+			"UID:test-" + i + "\r\n" +
+			"FN:Test Contact " + i + "\r\n" +
+			"N:Contact " + i + ";Test;;;\r\n" +
+			"EMAIL;TYPE=INTERNET:contact" + i + "@example.com\r\n" +
+			"TEL;TYPE=CELL:+43 1 " + i + "\r\n" +
+			"NOTE:Revision " + revision + "\r\n" +
+			"END:VCARD\r\n";
+	}
+
+	public static Contact contact(int i, int revision) throws Exception {
+		Contact contact = new Contact(contactName(i), eTag(i, revision));
+		contact.parseEntity(stream(vCard(i, revision)));
+		return contact;
+	}
+
+
+	static String eTag(int i, int revision) {
+		return "\"" + i + "-" + revision + "\"";
+	}
+
+	static ByteArrayInputStream stream(String data) throws Exception {
+		return new ByteArrayInputStream(data.getBytes("UTF-8"));
+	}
+}
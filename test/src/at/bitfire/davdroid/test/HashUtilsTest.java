@@ -0,0 +1,16 @@
+package at.bitfire.davdroid.test;
+
+import junit.framework.TestCase;
+import at.bitfire.davdroid.HashUtils;
+
+public class HashUtilsTest extends TestCase {
+
+	public void testMd5Hex() throws Exception {
+		assertEquals("d41d8cd98f00b204e9800998ecf8427e", HashUtils.md5Hex(new byte[0]));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", HashUtils.md5Hex("abc".getBytes("US-ASCII")));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", HashUtils.md5Hex("xxabcx".getBytes("US-ASCII"), 2, 3));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", HashUtils.md5Hex("abc"));
+		assertEquals(HashUtils.md5Hex("ä".getBytes("UTF-8")), HashUtils.md5Hex("ä"));
+	}
+
+}
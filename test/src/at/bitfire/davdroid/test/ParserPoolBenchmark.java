@@ -0,0 +1,50 @@
+package at.bitfire.davdroid.test;
+
+import java.io.StringReader;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+
+import org.simpleframework.xml.Serializer;
+import org.simpleframework.xml.core.Persister;
+
+import at.bitfire.davdroid.ParserPool;
+import at.bitfire.davdroid.webdav.DavMultistatus;
+
+/**
+ * Benchmarks the construction overhead of parsers which are created for every use against
+ * the per-thread parsers of {@link ParserPool}.
+ */
+public class ParserPoolBenchmark extends BenchmarkTestCase {
+	static final int ITERATIONS = 200;
+
+	public void testConstructionOverhead() throws Exception {
+		String ical = "BEGIN:VCALENDAR\r\n" + ParserPoolTest.EVENT.replace(";TZID=Custom/Zone", "") + "END:VCALENDAR\r\n";
+
+		for (int run = 0; run < 2; run++) {		// first run = warm-up
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				Serializer serializer = new Persister();
+				serializer.read(DavMultistatus.class, ParserPoolTest.MULTISTATUS, false);
+			}
+			long newSerializer = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				ParserPool.getSerializer().read(DavMultistatus.class, ParserPoolTest.MULTISTATUS, false);
+			long pooledSerializer = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				new CalendarBuilder().build(new StringReader(ical));
+			long newBuilder = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++)
+				ParserPool.getCalendarBuilder().build(new StringReader(ical));
+			long pooledBuilder = System.nanoTime() - start;
+
+			report(String.format("Multi-Status: %.0f µs (new Persister) vs. %.0f µs (pooled); iCalendar: %.0f µs (new CalendarBuilder) vs. %.0f µs (pooled)",
+				newSerializer / 1e3 / ITERATIONS, pooledSerializer / 1e3 / ITERATIONS, newBuilder / 1e3 / ITERATIONS, pooledBuilder / 1e3 / ITERATIONS));
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package at.bitfire.davdroid.test;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.component.VEvent;
+
+import org.simpleframework.xml.Serializer;
+
+import at.bitfire.davdroid.ParserPool;
+import at.bitfire.davdroid.webdav.DavMultistatus;
+
+public class ParserPoolTest extends TestCase {
+	static final String
+		MULTISTATUS = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+			"<multistatus xmlns=\"DAV:\"><response><href>/dav/event.ics</href><propstat>" +
+			"<prop><getetag>\"1\"</getetag></prop><status>HTTP/1.1 200 OK</status>" +
+			"</propstat></response></multistatus>",
+		VTIMEZONE = "BEGIN:VTIMEZONE\r\nTZID:Custom/Zone\r\n" +
+			"BEGIN:STANDARD\r\nDTSTART:19700101T000000\r\nTZOFFSETFROM:+0300\r\nTZOFFSETTO:+0300\r\nEND:STANDARD\r\n" +
+			"END:VTIMEZONE\r\n",
+		EVENT = "BEGIN:VEVENT\r\nUID:test\r\nDTSTART;TZID=Custom/Zone:20140101T100000\r\nEND:VEVENT\r\n";
+
+
+	public void testPerThread() throws InterruptedException {
+		final Object[] other = new Object[2];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				other[0] = ParserPool.getCalendarBuilder();
+				other[1] = ParserPool.getSerializer();
+			}
+		};
+		thread.start();
+		thread.join();
+
+		assertSame(ParserPool.getCalendarBuilder(), ParserPool.getCalendarBuilder());
+		assertSame(ParserPool.getSerializer(), ParserPool.getSerializer());
+		assertNotSame(other[0], ParserPool.getCalendarBuilder());
+		assertNotSame(other[1], ParserPool.getSerializer());
+	}
+
+	public void testCalendarBuilderReset() throws Exception {
+		// VTIMEZONE of the first iCalendar must not be used for the second one
+		VEvent withDefinition = parseEvent(ParserPool.getCalendarBuilder(), "BEGIN:VCALENDAR\r\n" + VTIMEZONE + EVENT + "END:VCALENDAR\r\n");
+		assertNotNull(withDefinition.getStartDate().getTimeZone());
+
+		String withoutDefinition = "BEGIN:VCALENDAR\r\n" + EVENT + "END:VCALENDAR\r\n";
+		assertEquals(
+			String.valueOf(parseEvent(new CalendarBuilder(), withoutDefinition).getStartDate().getTimeZone()),
+			String.valueOf(parseEvent(ParserPool.getCalendarBuilder(), withoutDefinition).getStartDate().getTimeZone())
+		);
+	}
+
+	public void testSerializer() throws Exception {
+		Serializer serializer = ParserPool.getSerializer();
+		assertNotNull(serializer.read(DavMultistatus.class, MULTISTATUS, false));
+		// reuse
+		assertNotNull(serializer.read(DavMultistatus.class, MULTISTATUS, false));
+	}
+
+
+	private static VEvent parseEvent(CalendarBuilder builder, String ical) throws Exception {
+		Calendar calendar = builder.build(new StringReader(ical));
+		return (VEvent)calendar.getComponent(VEvent.VEVENT);
+	}
+}
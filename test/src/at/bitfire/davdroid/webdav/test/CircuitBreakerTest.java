@@ -0,0 +1,88 @@
+package at.bitfire.davdroid.webdav.test;
+
+import java.net.URI;
+
+import junit.framework.TestCase;
+import at.bitfire.davdroid.webdav.CircuitBreaker;
+import at.bitfire.davdroid.webdav.ServiceUnavailableException;
+
+public class CircuitBreakerTest extends TestCase {
+	static final long MINUTE = 60*1000;
+
+	CircuitBreaker breaker;
+	long now = 1000000000000L;
+
+	@Override
+	protected void setUp() throws Exception {
+		breaker = CircuitBreaker.forHost(new URI("https://breaker-" + getName() + ".example.com/"));
+	}
+
+
+	public void testOpensAfterFailures() throws Exception {
+		breaker.onFailure(0, now);
+		breaker.onFailure(0, now);
+		breaker.checkClosed(now);
+		breaker.onFailure(0, now);
+		assertOpen(now);
+		assertOpen(now + MINUTE - 1);
+	}
+
+	public void testHalfOpen() throws Exception {
+		for (int i = 0; i < 3; i++)
+			breaker.onFailure(0, now);
+
+		// after the break, one probe is let through, other requests still fail
+		now += MINUTE;
+		breaker.checkClosed(now);
+		assertOpen(now);
+
+		// failed probe: break is doubled
+		breaker.onFailure(0, now);
+		assertOpen(now + 2*MINUTE - 1);
+		now += 2*MINUTE;
+		breaker.checkClosed(now);
+
+		// successful probe closes the circuit
+		breaker.onSuccess();
+		breaker.checkClosed(now);
+		breaker.checkClosed(now);
+	}
+
+	public void testReleaseProbe() throws Exception {
+		for (int i = 0; i < 3; i++)
+			breaker.onFailure(0, now);
+		now += MINUTE;
+		breaker.checkClosed(now);
+
+		// probe hasn't reported back (for instance, not retryable): next request may probe
+		breaker.releaseProbe();
+		breaker.checkClosed(now);
+		assertOpen(now);
+
+		// other threads can't release the probe
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				breaker.releaseProbe();
+			}
+		};
+		other.start();
+		other.join();
+		assertOpen(now);
+	}
+
+	public void testRetryAfter() throws Exception {
+		breaker.onFailure(now + 5*MINUTE, now);
+		assertOpen(now + 5*MINUTE - 1);
+		breaker.checkClosed(now + 5*MINUTE);
+	}
+
+
+	void assertOpen(long time) {
+		try {
+			breaker.checkClosed(time);
+			fail();
+		} catch(ServiceUnavailableException e) {
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package at.bitfire.davdroid.webdav.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpEntity;
+import org.w3c.dom.Document;
+
+import at.bitfire.davdroid.webdav.DavMultiget;
+import at.bitfire.davdroid.webdav.DavRequestBody;
+import at.bitfire.davdroid.webdav.HttpPropfind;
+
+public class DavRequestBodyTest extends TestCase {
+
+	public void testPropfind() throws Exception {
+		for (HttpPropfind.Mode mode : HttpPropfind.Mode.values()) {
+			Document doc = parse(DavRequestBody.propfind(mode));
+			assertEquals("DAV:", doc.getDocumentElement().getNamespaceURI());
+			assertEquals("propfind", doc.getDocumentElement().getLocalName());
+		}
+		
+		Document doc = parse(DavRequestBody.propfind(HttpPropfind.Mode.MEMBERS_ETAG));
+		assertEquals(1, doc.getElementsByTagNameNS("http://calendarserver.org/ns/", "getctag").getLength());
+		assertEquals(1, doc.getElementsByTagNameNS("DAV:", "getetag").getLength());
+	}
+	
+	public void testMultiget() throws Exception {
+		String hrefs[] = new String[] { "/dav/a&b.vcf", "/dav/<ü€𝄞>.vcf" };
+		HttpEntity entity = DavRequestBody.multiget(DavMultiget.Type.ADDRESS_BOOK, hrefs);
+		assertTrue(entity.isRepeatable());
+		
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		entity.writeTo(os);
+		assertEquals(entity.getContentLength(), os.size());
+		
+		Document doc = parse(os.toByteArray());
+		assertEquals("urn:ietf:params:xml:ns:carddav", doc.getDocumentElement().getNamespaceURI());
+		assertEquals("addressbook-multiget", doc.getDocumentElement().getLocalName());
+		for (int i = 0; i < hrefs.length; i++)
+			assertEquals(hrefs[i], doc.getElementsByTagNameNS("DAV:", "href").item(i).getTextContent());
+	}
+	
+	
+	private static Document parse(byte[] xml) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+	}
+}
@@ -0,0 +1,83 @@
+package at.bitfire.davdroid.webdav.test;
+
+import java.net.URI;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import at.bitfire.davdroid.webdav.HttpCompression;
+
+public class HttpCompressionTest extends TestCase {
+
+	public void testShouldCompress() {
+		HttpCompression compression = new HttpCompression();
+		URI location = URI.create("https://compression.example.com/dav/");
+		HttpEntity small = new ByteArrayEntity(new byte[100]),
+			large = new ByteArrayEntity(new byte[10000]);
+		
+		// unknown yet: only REPORTs are compressed to probe the host
+		assertFalse(compression.shouldCompress(location, "PUT", large));
+		assertTrue(compression.shouldCompress(location, "REPORT", large));
+		assertTrue(compression.isProbe(location));
+		
+		compression.checkAdvertised(location, response("gzip"));
+		assertFalse(compression.isProbe(location));
+		assertTrue(compression.shouldCompress(location, "PUT", large));
+		assertTrue(compression.shouldCompress(location, "REPORT", large));
+		assertFalse(compression.shouldCompress(location, "PUT", small));
+		assertFalse(compression.shouldCompress(location, "PROPFIND", large));
+		assertFalse(compression.shouldCompress(URI.create("https://other.compression.example.com/dav/"), "PUT", large));
+		
+		// responses without Accept-Encoding don't change anything
+		compression.checkAdvertised(location, response(null));
+		assertTrue(compression.shouldCompress(location, "PUT", large));
+		
+		compression.checkAdvertised(location, response("deflate, gzip;q=0"));
+		assertFalse(compression.shouldCompress(location, "PUT", large));
+		
+		// rejected hosts stay excluded
+		compression.setRejected(location);
+		compression.checkAdvertised(location, response("gzip"));
+		assertFalse(compression.shouldCompress(location, "PUT", large));
+	}
+	
+	public void testProbe() {
+		URI accepting = URI.create("https://accepting.compression.example.com/dav/"),
+			rejecting = URI.create("https://rejecting.compression.example.com/dav/");
+		HttpEntity large = new ByteArrayEntity(new byte[10000]);
+		
+		// successful compressed REPORT: PUTs are compressed, too (also by other clients)
+		new HttpCompression().setAccepted(accepting);
+		assertTrue(new HttpCompression().shouldCompress(accepting, "PUT", large));
+		
+		new HttpCompression().setRejected(rejecting);
+		new HttpCompression().setAccepted(rejecting);
+		assertFalse(new HttpCompression().shouldCompress(rejecting, "REPORT", large));
+	}
+	
+	public void testCompress() throws Exception {
+		String content = StringUtils.repeat("BEGIN:VCARD\r\nEND:VCARD\r\n", 200);
+		HttpEntity compressed = new HttpCompression().compress(new ByteArrayEntity(content.getBytes("UTF-8")));
+		
+		assertEquals("gzip", compressed.getContentEncoding().getValue());
+		assertTrue(compressed.isRepeatable());
+		assertTrue(compressed.getContentLength() < content.length());
+		assertEquals(content, IOUtils.toString(new GZIPInputStream(compressed.getContent()), "UTF-8"));
+	}
+	
+	
+	static HttpResponse response(String acceptEncoding) {
+		HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+		if (acceptEncoding != null)
+			response.addHeader("Accept-Encoding", acceptEncoding);
+		return response;
+	}
+}
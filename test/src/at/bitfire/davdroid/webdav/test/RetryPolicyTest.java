@@ -0,0 +1,53 @@
+package at.bitfire.davdroid.webdav.test;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpOptions;
+import org.apache.http.client.methods.HttpPut;
+
+import at.bitfire.davdroid.webdav.RetryPolicy;
+
+public class RetryPolicyTest extends TestCase {
+
+	public void testIsRetryable() throws Exception {
+		assertTrue(RetryPolicy.isRetryable(new HttpGet("http://example.com/")));
+		assertTrue(RetryPolicy.isRetryable(new HttpOptions("http://example.com/")));
+		
+		// unconditional modifications must not be repeated
+		assertFalse(RetryPolicy.isRetryable(new HttpDelete("http://example.com/test.ics")));
+		HttpPut put = new HttpPut("http://example.com/test.ics");
+		put.addHeader("If-None-Match", "*");
+		assertFalse(RetryPolicy.isRetryable(put));
+		
+		HttpDelete delete = new HttpDelete("http://example.com/test.ics");
+		delete.addHeader("If-Match", "\"1\"");
+		assertTrue(RetryPolicy.isRetryable(delete));
+	}
+	
+	public void testIsTransient() {
+		assertTrue(RetryPolicy.isTransient(503));
+		assertTrue(RetryPolicy.isTransient(429));
+		assertFalse(RetryPolicy.isTransient(500));
+		assertFalse(RetryPolicy.isTransient(404));
+	}
+
+	public void testParseRetryAfter() {
+		final long now = 1000000000000L;
+		assertEquals(now + 120*1000, RetryPolicy.parseRetryAfter("120", now));
+		assertEquals(784111777000L, RetryPolicy.parseRetryAfter("Sun, 06 Nov 1994 08:49:37 GMT", now));
+		assertEquals(0, RetryPolicy.parseRetryAfter("invalid", now));
+		assertEquals(0, RetryPolicy.parseRetryAfter(null, now));
+	}
+	
+	public void testGetDelay() {
+		for (int attempt = 1; attempt < 3; attempt++) {
+			long delay = RetryPolicy.getDelay(attempt, 0);
+			assertTrue(delay >= 0 && delay <= 30*1000);
+		}
+		assertEquals(-1, RetryPolicy.getDelay(3, 0));
+		// server wants us to wait longer than we're willing to block
+		assertEquals(-1, RetryPolicy.getDelay(1, System.currentTimeMillis() + 3600*1000));
+	}
+}